@@ -0,0 +1,125 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.util.Collections.emptyMap;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the identity store reads of a login whose profiles are served by the {@link DeviceProfileCache}. Verifying
+ * needs no read, but the versioned save in {@link OathHelper#saveOathDeviceSettings(TreeContext, DeviceProfileVersion,
+ * OathDeviceSettings, boolean)} always reads the profiles back from the store, so every successful login costs one
+ * store read. Each read of the stubbed store takes {@link #storeReadMicros}; the difference between the two
+ * benchmarks is the price of the read-back for that latency.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceProfileSaveBenchmark {
+    private static final int CACHE_TTL_SECONDS = 3600;
+
+    /** Simulated latency of one identity store read. */
+    @Param({"0", "500"})
+    public int storeReadMicros;
+
+    private OathHelper helper;
+    private TreeContext context;
+    private List<OathDeviceSettings> stored;
+
+    @Setup
+    public void setUp() throws Exception {
+        OathDeviceSettings device = new OathDeviceSettings();
+        device.setUUID("device");
+        device.setSharedSecret("0123456789abcdef0123456789abcdef");
+        device.setCounter(0);
+        stored = ImmutableList.of(device);
+
+        UserOathDeviceProfileManager profileManager = mock(UserOathDeviceProfileManager.class);
+        when(profileManager.getDeviceProfiles(any(), any())).thenAnswer(invocation -> {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(storeReadMicros));
+            return stored;
+        });
+        DeviceProfileWriter writer = mock(DeviceProfileWriter.class);
+        doAnswer(invocation -> {
+            stored = invocation.getArgument(2);
+            return null;
+        }).when(writer).save(any(), any(), any());
+        DeviceProfileWriteBehind writeBehind = mock(DeviceProfileWriteBehind.class);
+        when(writeBehind.overlay(any(), any(), any())).thenAnswer(invocation -> invocation.getArgument(2));
+
+        helper = new OathHelper(mock(Realm.class), profileManager, mock(CoreWrapper.class), new JwtBuilderFactory(),
+                mock(EncryptionKeyCache.class), new DeviceJsonUtils<>(OathDeviceSettings.class),
+                new DeviceProfileCache(), writeBehind, mock(DeviceProfilePrefetcher.class), writer);
+        context = new TreeContext(new JsonValue(ImmutableMap.of(USERNAME, "demo", REALM, "/")),
+                new ExternalRequestContext.Builder().parameters(emptyMap()).build(), ImmutableList.of());
+        helper.getOathDevices(context, CACHE_TTL_SECONDS);
+    }
+
+    /** Reading the profiles for verification, served by the cache. */
+    @Benchmark
+    public List<OathDeviceSettings> readCached() throws Exception {
+        return helper.getOathDevices(context, CACHE_TTL_SECONDS);
+    }
+
+    /** A whole successful login: the cached read, then the versioned save of the next counter. */
+    @Benchmark
+    public OathDeviceSettings readCachedAndSave() throws Exception {
+        OathDeviceSettings device = helper.getOathDevices(context, CACHE_TTL_SECONDS).get(0);
+        DeviceProfileVersion version = DeviceProfileVersion.of(device);
+        device.setCounter(device.getCounter() + 1);
+        helper.saveOathDeviceSettings(context, version, device, false);
+        return device;
+    }
+}
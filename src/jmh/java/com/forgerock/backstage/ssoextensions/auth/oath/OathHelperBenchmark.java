@@ -0,0 +1,172 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.forgerock.openam.secrets.Secrets;
+import org.forgerock.secrets.SecretsProvider;
+import org.forgerock.secrets.keys.DataEncryptionKey;
+import org.forgerock.secrets.keys.KeyFormatRaw;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+/**
+ * Measures the shared state crypto in {@link OathHelper}. The secret store is stubbed with a fixed AES key so the
+ * numbers cover JSON (de)serialisation and JWE work, not the secret store backend.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OathHelperBenchmark {
+
+    /** Length of the hex encoded shared secret in the device profile. */
+    @Param({"20", "40", "64"})
+    public int secretLength;
+
+    @Param({"0", "10"})
+    public int recoveryCodes;
+
+    @Param({"HOTP", "TOTP"})
+    public OathAlgorithm algorithm;
+
+    private OathHelper helper;
+    private OathDeviceSettings settings;
+    private JsonValue payload;
+    private String encryptedPayload;
+    private String encryptedSettings;
+    private String encryptedRegistration;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] rawKey = new byte[32];
+        new Random(1).nextBytes(rawKey);
+        DataEncryptionKey key = mock(DataEncryptionKey.class);
+        when(key.export(KeyFormatRaw.INSTANCE)).thenReturn(new SecretKeySpec(rawKey, "AES"));
+        SecretsProvider provider = mock(SecretsProvider.class);
+        doReturn(newResultPromise(key)).when(provider).getActiveSecret(any());
+        doReturn(newResultPromise(Stream.of(key))).when(provider).getValidSecrets(any());
+        Secrets secrets = mock(Secrets.class);
+        when(secrets.getRealmSecrets(any())).thenReturn(provider);
+
+        DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils = new DeviceJsonUtils<>(OathDeviceSettings.class);
+        helper = new OathHelper(mock(Realm.class), mock(UserOathDeviceProfileManager.class), mock(CoreWrapper.class),
+                new JwtBuilderFactory(), new EncryptionKeyCache(secrets), deviceJsonUtils, new DeviceProfileCache(),
+                mock(DeviceProfileWriteBehind.class), mock(DeviceProfilePrefetcher.class),
+                mock(DeviceProfileWriter.class));
+
+        settings = createSettings();
+        payload = deviceJsonUtils.toJsonValue(settings);
+        encryptedPayload = helper.encrypt(payload);
+        encryptedSettings = helper.encryptOathDeviceSettings(settings);
+        encryptedRegistration = helper.encryptRegistration(settings, settings.getRecoveryCodes());
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return helper.encrypt(payload);
+    }
+
+    @Benchmark
+    public JsonValue decrypt() {
+        return helper.decrypt(encryptedPayload);
+    }
+
+    @Benchmark
+    public String encryptOathDeviceSettings() throws IOException {
+        return helper.encryptOathDeviceSettings(settings);
+    }
+
+    @Benchmark
+    public OathDeviceSettings decryptOathDeviceSettings() throws IOException {
+        return helper.decryptOathDeviceSettings(encryptedSettings);
+    }
+
+    /** The registration node's shared state before the envelope: profile and recovery codes in separate JWEs. */
+    @Benchmark
+    public String encryptProfileAndList() throws IOException {
+        return helper.encryptOathDeviceSettings(settings) + helper.encryptList(settings.getRecoveryCodes());
+    }
+
+    @Benchmark
+    public String encryptRegistration() throws IOException {
+        return helper.encryptRegistration(settings, settings.getRecoveryCodes());
+    }
+
+    @Benchmark
+    public OathDeviceSettings decryptRegistration() throws IOException {
+        return helper.decryptRegistration(encryptedRegistration).getDeviceSettings();
+    }
+
+    private OathDeviceSettings createSettings() {
+        Random random = new Random(secretLength);
+        StringBuilder secret = new StringBuilder();
+        while (secret.length() < secretLength) {
+            secret.append(Integer.toHexString(random.nextInt(16)));
+        }
+        List<String> codes = new ArrayList<>();
+        for (int i = 0; i < recoveryCodes; i++) {
+            codes.add(Long.toString(Math.abs(random.nextLong()), 36));
+        }
+
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret(secret.toString());
+        settings.setDeviceName("OATH Device");
+        settings.setRecoveryCodes(codes);
+        if (algorithm == OathAlgorithm.HOTP) {
+            settings.setCounter(42);
+        } else {
+            settings.setLastLogin(1554119970L, TimeUnit.SECONDS);
+            settings.setClockDriftSeconds(30);
+        }
+        return settings;
+    }
+}
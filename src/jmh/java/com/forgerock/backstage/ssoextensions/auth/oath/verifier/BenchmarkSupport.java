@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import javax.xml.bind.DatatypeConverter;
+import java.util.Random;
+
+/**
+ * Fixtures shared by the verifier benchmarks.
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    static OathVerifierNode.Config config(int passwordLength, int totpTimeStepInWindow, int hotpWindowSize) {
+        return new OathVerifierNode.Config() {
+            @Override
+            public int minSharedSecretLength() {
+                return 1;
+            }
+
+            @Override
+            public int passwordLength() {
+                return passwordLength;
+            }
+
+            @Override
+            public int hotpWindowSize() {
+                return hotpWindowSize;
+            }
+
+            @Override
+            public int totpTimeStepInWindow() {
+                return totpTimeStepInWindow;
+            }
+
+            @Override
+            public int totpMaxClockDrift() {
+                return totpTimeStepInWindow;
+            }
+        };
+    }
+
+    /**
+     * A deterministic hex secret of the given length.
+     */
+    static String secret(int length) {
+        byte[] bytes = new byte[(length + 1) / 2];
+        new Random(length).nextBytes(bytes);
+        return DatatypeConverter.printHexBinary(bytes).substring(0, length).toLowerCase();
+    }
+
+    static String otp(OathDeviceSettings settings, int passwordLength, long counter)
+            throws OathVerificationException {
+        return format(engine(settings, passwordLength).generate(counter), passwordLength);
+    }
+
+    /**
+     * An OTP that matches none of the counters {@code from} to {@code from + window}.
+     */
+    static String missingOtp(OathDeviceSettings settings, int passwordLength, long from, int window)
+            throws OathVerificationException {
+        HmacOtpEngine engine = engine(settings, passwordLength);
+        for (int candidate = 0; ; candidate++) {
+            if (engine.scan(from, window, candidate) == HmacOtpEngine.NO_MATCH) {
+                return format(candidate, passwordLength);
+            }
+        }
+    }
+
+    private static HmacOtpEngine engine(OathDeviceSettings settings, int passwordLength)
+            throws OathVerificationException {
+        String secret = settings.getSharedSecret();
+        if (secret.length() % 2 != 0) {
+            secret = "0" + secret;
+        }
+        return new HmacOtpEngine(DatatypeConverter.parseHexBinary(secret), passwordLength);
+    }
+
+    private static String format(int otp, int passwordLength) {
+        return String.format("%0" + passwordLength + "d", otp);
+    }
+}
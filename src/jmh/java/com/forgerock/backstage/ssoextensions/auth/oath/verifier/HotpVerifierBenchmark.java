@@ -0,0 +1,93 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link HotpVerifier#verify(String)} across look-ahead window sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotpVerifierBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int hotpWindowSize;
+
+    /** Where in the window the code matches: the first counter, the last counter, or not at all. */
+    @Param({"first", "last", "miss"})
+    public String target;
+
+    @Param({"6", "8"})
+    public int passwordLength;
+
+    /** Length of the hex encoded shared secret. */
+    @Param({"20", "40", "64"})
+    public int secretLength;
+
+    private OathVerifierNode.Config config;
+    private OathDeviceSettings settings;
+    private String otp;
+
+    @Setup
+    public void setUp() throws OathVerificationException {
+        config = BenchmarkSupport.config(passwordLength, 0, hotpWindowSize);
+        settings = new OathDeviceSettings();
+        settings.setSharedSecret(BenchmarkSupport.secret(secretLength));
+        switch (target) {
+            case "first":
+                otp = BenchmarkSupport.otp(settings, passwordLength, 0);
+                break;
+            case "last":
+                otp = BenchmarkSupport.otp(settings, passwordLength, hotpWindowSize);
+                break;
+            default:
+                otp = BenchmarkSupport.missingOtp(settings, passwordLength, 0, hotpWindowSize);
+        }
+    }
+
+    @Benchmark
+    public boolean verify() {
+        settings.setCounter(0);
+        try {
+            new HotpVerifier(config, settings).verify(otp);
+            return true;
+        } catch (OathVerificationException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TotpVerifier#verify(String)} for codes matching each offset of the window, and for misses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TotpVerifierBenchmark {
+
+    /** Time steps checked on each side of the current one. */
+    @Param({"2", "5", "10"})
+    public int windowSize;
+
+    /** Offset of the matching time step, or "miss" for a code that matches none. */
+    @Param({"0", "1", "-1", "2", "-2", "miss"})
+    public String offset;
+
+    @Param({"6", "8"})
+    public int passwordLength;
+
+    /** Length of the hex encoded shared secret. */
+    @Param({"20", "40", "64"})
+    public int secretLength;
+
+    private final long time = 1554119995L;
+    private OathVerifierNode.Config config;
+    private OathDeviceSettings settings;
+    private String otp;
+
+    @Setup
+    public void setUp() throws OathVerificationException {
+        config = BenchmarkSupport.config(passwordLength, windowSize, 0);
+        settings = new OathDeviceSettings();
+        settings.setSharedSecret(BenchmarkSupport.secret(secretLength));
+        long step = time / config.totpTimeStepInterval();
+        otp = "miss".equals(offset)
+                ? BenchmarkSupport.missingOtp(settings, passwordLength, step - windowSize, 2 * windowSize)
+                : BenchmarkSupport.otp(settings, passwordLength, step + Integer.parseInt(offset));
+    }
+
+    @Benchmark
+    public boolean verify() {
+        settings.setLastLogin(0, TimeUnit.SECONDS);
+        settings.setClockDriftSeconds(0);
+        try {
+            new TotpVerifier(config, settings, time).verify(otp);
+            return true;
+        } catch (OathVerificationException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.loadtest;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfilePrefetcher;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileWriteBehind;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileWriter;
+import com.forgerock.backstage.ssoextensions.auth.oath.EncryptionKeyCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.AuditLogs;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathMetrics;
+import com.forgerock.backstage.ssoextensions.auth.oath.registration.OathRegistrationNode;
+import com.forgerock.backstage.ssoextensions.auth.oath.registration.RegistrationMaterialPool;
+import com.forgerock.backstage.ssoextensions.auth.oath.replay.ReplayStoreType;
+import com.forgerock.backstage.ssoextensions.auth.oath.replay.ReplayStores;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.AttemptLimiter;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.HmacKeyCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.HotpLookaheadIndex;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathProfilePrefetchNode;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNode;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.TotpDriftHistory;
+import com.google.common.collect.ImmutableList;
+import com.sun.identity.idm.AMIdentity;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.OathDevicesDao;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.forgerock.openam.secrets.Secrets;
+import org.forgerock.openam.utils.RecoveryCodeGenerator;
+import org.forgerock.secrets.SecretsProvider;
+import org.forgerock.secrets.keys.DataEncryptionKey;
+import org.forgerock.secrets.keys.KeyFormatRaw;
+import org.forgerock.util.thread.listener.ShutdownManager;
+
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * The nodes wired as Guice wires them in AM, with the identity store, the secret store and the core services replaced
+ * by in-memory stand-ins.
+ * <p>
+ * Device profiles are kept as JSON, as the identity store keeps them, so every read returns a fresh copy and the
+ * optimistic locking of {@link OathHelper} works as it does against a directory. An optional delay emulates the
+ * directory round trip of each read and write. The stand-ins are stub-only mocks: they record no invocations, so
+ * memory use stays flat over a long run.
+ */
+final class InMemoryDeployment {
+    private static final String DEVICE_NAME = "OATH Device";
+
+    private final DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils = new DeviceJsonUtils<>(OathDeviceSettings.class);
+    private final Map<List<String>, List<JsonValue>> profiles = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long storeLatencyNanos;
+    private final OathMetrics metrics = new OathMetrics();
+    private final OathHelper helper;
+    private final OathVerifierNode totpVerifier;
+    private final OathVerifierNode hotpVerifier;
+    private final OathRegistrationNode totpRegistration;
+    private final OathRegistrationNode hotpRegistration;
+    private final OathProfilePrefetchNode prefetch;
+    private final int minSharedSecretLength;
+
+    InMemoryDeployment(LoadTestOptions options) throws DevicePersistenceException {
+        this.storeLatencyNanos = TimeUnit.MICROSECONDS.toNanos(options.storeLatencyMicros);
+
+        UserOathDeviceProfileManager profileManager = profileManager();
+        ShutdownManager shutdownManager = stub(ShutdownManager.class);
+        DeviceProfilePrefetcher prefetcher = new DeviceProfilePrefetcher(profileManager, shutdownManager);
+        DeviceProfileWriter writer = new DeviceProfileWriter(devicesDao(), deviceJsonUtils);
+        helper = new OathHelper(stub(Realm.class), profileManager, coreWrapper(), new JwtBuilderFactory(),
+                new EncryptionKeyCache(secrets()), deviceJsonUtils, new DeviceProfileCache(),
+                new DeviceProfileWriteBehind(profileManager, writer, deviceJsonUtils, shutdownManager), prefetcher,
+                writer);
+        prefetch = new OathProfilePrefetchNode(stub(OathProfilePrefetchNode.Config.class), prefetcher);
+
+        TotpDriftHistory driftHistory = new TotpDriftHistory();
+        HotpLookaheadIndex lookaheadIndex = new HotpLookaheadIndex();
+        AttemptLimiter attemptLimiter = new AttemptLimiter();
+        HmacKeyCache keyCache = new HmacKeyCache();
+        ReplayStores replayStores = new ReplayStores(shutdownManager);
+        AuditLogs auditLogs = new AuditLogs(shutdownManager);
+        String replayStoreFile = replayStoreFile(options);
+        totpVerifier = new OathVerifierNode(verifierConfig(options, OathAlgorithm.TOTP, replayStoreFile), helper,
+                metrics, driftHistory, lookaheadIndex, attemptLimiter, keyCache, replayStores, auditLogs);
+        hotpVerifier = new OathVerifierNode(verifierConfig(options, OathAlgorithm.HOTP, replayStoreFile), helper,
+                metrics, driftHistory, lookaheadIndex, attemptLimiter, keyCache, replayStores, auditLogs);
+
+        RegistrationMaterialPool materialPool = new RegistrationMaterialPool(profileManager,
+                stub(RecoveryCodeGenerator.class), shutdownManager, metrics);
+        OathRegistrationNode.Config totpRegistrationConfig = registrationConfig(options, OathAlgorithm.TOTP);
+        minSharedSecretLength = totpRegistrationConfig.minSharedSecretLength();
+        totpRegistration = new OathRegistrationNode(totpRegistrationConfig, helper,
+                stub(RecoveryCodeGenerator.class), metrics, materialPool);
+        hotpRegistration = new OathRegistrationNode(registrationConfig(options, OathAlgorithm.HOTP), helper,
+                stub(RecoveryCodeGenerator.class), metrics, materialPool);
+    }
+
+    OathVerifierNode verifier(OathAlgorithm algorithm) {
+        return algorithm == OathAlgorithm.HOTP ? hotpVerifier : totpVerifier;
+    }
+
+    OathProfilePrefetchNode prefetch() {
+        return prefetch;
+    }
+
+    OathRegistrationNode registration(OathAlgorithm algorithm) {
+        return algorithm == OathAlgorithm.HOTP ? hotpRegistration : totpRegistration;
+    }
+
+    OathMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers a device for a user directly in the store, as if the user had registered earlier.
+     */
+    OathDeviceSettings register(String realm, String username) throws IOException {
+        OathDeviceSettings settings = createDeviceProfile(minSharedSecretLength);
+        settings.setRecoveryCodes(Collections.emptyList());
+        profiles.put(key(realm, username), Collections.singletonList(deviceJsonUtils.toJsonValue(settings)));
+        return settings;
+    }
+
+    /**
+     * @return a copy of the stored profile of the user, or null
+     */
+    OathDeviceSettings getStoredProfile(String realm, String username) throws IOException {
+        List<JsonValue> stored = profiles.get(key(realm, username));
+        return stored == null || stored.isEmpty() ? null : deviceJsonUtils.toDeviceSettingValue(stored.get(0));
+    }
+
+    private UserOathDeviceProfileManager profileManager() throws DevicePersistenceException {
+        UserOathDeviceProfileManager profileManager = stub(UserOathDeviceProfileManager.class);
+        when(profileManager.getDeviceProfiles(anyString(), anyString())).thenAnswer(invocation -> {
+            emulateRoundTrip();
+            List<JsonValue> stored = profiles.getOrDefault(key(invocation.getArgument(1), invocation.getArgument(0)),
+                    Collections.emptyList());
+            List<OathDeviceSettings> devices = new ArrayList<>(stored.size());
+            for (JsonValue profile : stored) {
+                devices.add(deviceJsonUtils.toDeviceSettingValue(profile));
+            }
+            return devices;
+        });
+        when(profileManager.createDeviceProfile(anyInt()))
+                .thenAnswer(invocation -> createDeviceProfile(invocation.getArgument(0)));
+        return profileManager;
+    }
+
+    private OathDevicesDao devicesDao() throws DevicePersistenceException {
+        OathDevicesDao devicesDao = stub(OathDevicesDao.class);
+        doAnswer(invocation -> {
+            emulateRoundTrip();
+            profiles.put(key(invocation.getArgument(1), invocation.getArgument(0)),
+                    ImmutableList.copyOf(invocation.<List<JsonValue>>getArgument(2)));
+            return null;
+        }).when(devicesDao).saveDeviceProfiles(anyString(), anyString(), any());
+        return devicesDao;
+    }
+
+    private OathDeviceSettings createDeviceProfile(int minSharedSecretLength) {
+        byte[] secret = new byte[(minSharedSecretLength + 1) / 2];
+        random.nextBytes(secret);
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret(DatatypeConverter.printHexBinary(secret).toLowerCase());
+        settings.setDeviceName(DEVICE_NAME);
+        settings.setUUID(UUID.randomUUID().toString());
+        return settings;
+    }
+
+    /**
+     * A secret store holding a single random AES key for the auth tree shared state.
+     */
+    private Secrets secrets() {
+        byte[] rawKey = new byte[32];
+        random.nextBytes(rawKey);
+        DataEncryptionKey key = stub(DataEncryptionKey.class);
+        when(key.export(KeyFormatRaw.INSTANCE)).thenReturn(new SecretKeySpec(rawKey, "AES"));
+        SecretsProvider provider = stub(SecretsProvider.class);
+        doReturn(newResultPromise(key)).when(provider).getActiveSecret(any());
+        doAnswer(invocation -> newResultPromise(Stream.of(key))).when(provider).getValidSecrets(any());
+        Secrets secrets = stub(Secrets.class);
+        when(secrets.getRealmSecrets(any())).thenReturn(provider);
+        return secrets;
+    }
+
+    /**
+     * Core services resolving every user to the same identity, which only lends its name to the registration QR code.
+     */
+    private CoreWrapper coreWrapper() {
+        AMIdentity identity = stub(AMIdentity.class);
+        when(identity.getName()).thenReturn("loadtest");
+        CoreWrapper coreWrapper = stub(CoreWrapper.class);
+        when(coreWrapper.getIdentity(anyString(), anyString())).thenReturn(identity);
+        return coreWrapper;
+    }
+
+    private void emulateRoundTrip() {
+        if (storeLatencyNanos > 0) {
+            LockSupport.parkNanos(storeLatencyNanos);
+        }
+    }
+
+    private static List<String> key(String realm, String username) {
+        return ImmutableList.of(realm, username);
+    }
+
+    private static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+
+    private static String replayStoreFile(LoadTestOptions options) {
+        if (options.replayStore != ReplayStoreType.SHARED_FILE || !options.replayStoreFile.isEmpty()) {
+            return options.replayStoreFile;
+        }
+        try {
+            Path file = Files.createTempFile("oath-replay", ".dat");
+            file.toFile().deleteOnExit();
+            return file.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static OathVerifierNode.Config verifierConfig(LoadTestOptions options, OathAlgorithm algorithm,
+            String replayStoreFile) {
+        return new OathVerifierNode.Config() {
+            @Override
+            public OathAlgorithm algorithm() {
+                return algorithm;
+            }
+
+            @Override
+            public int hotpWindowSize() {
+                return options.hotpWindowSize;
+            }
+
+            @Override
+            public int deviceProfileCacheTtl() {
+                return options.deviceProfileCacheTtl;
+            }
+
+            @Override
+            public boolean writeBehind() {
+                return options.writeBehind;
+            }
+
+            @Override
+            public boolean hotpLookaheadIndex() {
+                return options.hotpLookaheadIndex;
+            }
+
+            @Override
+            public HmacAlgorithm hashAlgorithm() {
+                return options.hashAlgorithm;
+            }
+
+            @Override
+            public ReplayStoreType replayStore() {
+                return options.replayStore;
+            }
+
+            @Override
+            public String replayStoreFile() {
+                return replayStoreFile;
+            }
+
+            @Override
+            public String auditLogDirectory() {
+                return options.auditLogDirectory;
+            }
+        };
+    }
+
+    private static OathRegistrationNode.Config registrationConfig(LoadTestOptions options, OathAlgorithm algorithm) {
+        return new OathRegistrationNode.Config() {
+            @Override
+            public OathAlgorithm algorithm() {
+                return algorithm;
+            }
+
+            @Override
+            public boolean pregenerate() {
+                return options.pregenerate;
+            }
+
+            @Override
+            public HmacAlgorithm hashAlgorithm() {
+                return options.hashAlgorithm;
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Collects the latencies and outcomes of one kind of journey on one driver thread. Every sample is kept, which at
+ * eight bytes a journey is cheap enough for runs of a few minutes and gives exact percentiles.
+ */
+final class LatencyRecorder {
+    private long[] samples = new long[1024];
+    private int count;
+    private long unexpected;
+    private long errors;
+
+    void record(long nanos, boolean expectedOutcome) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+        if (!expectedOutcome) {
+            unexpected++;
+        }
+    }
+
+    void error(long nanos) {
+        record(nanos, true);
+        errors++;
+    }
+
+    /**
+     * Adds the samples of another recorder to this one.
+     */
+    void merge(LatencyRecorder other) {
+        if (count + other.count > samples.length) {
+            samples = Arrays.copyOf(samples, count + other.count);
+        }
+        System.arraycopy(other.samples, 0, samples, count, other.count);
+        count += other.count;
+        unexpected += other.unexpected;
+        errors += other.errors;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getUnexpected() {
+        return unexpected;
+    }
+
+    long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @param percentiles the percentiles to compute, e.g. 99.9
+     * @return the latencies at the percentiles in microseconds, 0 without samples
+     */
+    double[] percentilesMicros(double... percentiles) {
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        double[] result = new double[percentiles.length];
+        for (int i = 0; i < percentiles.length && count > 0; i++) {
+            int rank = (int) Math.ceil(percentiles[i] / 100 * count) - 1;
+            result[i] = sorted[Math.max(0, Math.min(count - 1, rank))] / 1000.0;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.loadtest;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathStatistics;
+import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
+import org.apache.commons.codec.binary.Base32;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.ConfirmationCallback;
+import javax.security.auth.callback.NameCallback;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Collections.emptyMap;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+
+/**
+ * Drives authentication journeys through the verifier and registration nodes from many threads and reports
+ * throughput and latency percentiles per kind of journey. Each journey is the sequence of {@code process} calls AM
+ * makes for it, carrying the shared state and the filled in callbacks from one round to the next, against an
+ * {@link InMemoryDeployment}.
+ * <p>
+ * Run with {@code mvn -Ploadtest verify -Dloadtest.args="threads=32 storeLatencyMicros=800"}; see
+ * {@link LoadTestOptions} for the options.
+ */
+public final class LoadTest {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 100};
+    private static final ExternalRequestContext REQUEST =
+            new ExternalRequestContext.Builder().parameters(emptyMap()).build();
+    private static final Pattern SECRET = Pattern.compile("secret=([A-Z2-7]+)");
+    private static final Pattern COUNTER = Pattern.compile("counter=(\\d+)");
+    private static final Pattern HASH_ALGORITHM = Pattern.compile("algorithm=(SHA\\d+)");
+    private static final long STARVED_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * The kinds of journey, with the outcome each should end in.
+     */
+    enum Journey {
+        LOGIN("SUCCESS"),
+        WRONG_OTP("FAILURE"),
+        NOT_REGISTERED("NOT_REGISTERED"),
+        REGISTRATION("SUCCESS");
+
+        private final String expectedOutcome;
+
+        Journey(String expectedOutcome) {
+            this.expectedOutcome = expectedOutcome;
+        }
+    }
+
+    private final LoadTestOptions options;
+    private final InMemoryDeployment deployment;
+    private final SyntheticPopulation population;
+    private final AtomicLong starved = new AtomicLong();
+    private final AtomicLong registrations = new AtomicLong();
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+
+    LoadTest(LoadTestOptions options, InMemoryDeployment deployment, SyntheticPopulation population) {
+        this.options = options;
+        this.deployment = deployment;
+        this.population = population;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+        System.out.println("Load test: " + options);
+        InMemoryDeployment deployment = new InMemoryDeployment(options);
+        LoadTest loadTest = new LoadTest(options, deployment, SyntheticPopulation.register(deployment, options));
+        loadTest.report(loadTest.run(), System.out);
+        System.exit(0);
+    }
+
+    /**
+     * Runs the warm up and the measurement.
+     *
+     * @return the merged recorders of every driver thread
+     */
+    Map<Journey, LatencyRecorder> run() throws InterruptedException {
+        List<Map<Journey, LatencyRecorder>> recorders = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(options.threads);
+        for (int i = 0; i < options.threads; i++) {
+            Map<Journey, LatencyRecorder> threadRecorders = newRecorders();
+            recorders.add(threadRecorders);
+            Thread driver = new Thread(() -> {
+                try {
+                    drive(threadRecorders);
+                } finally {
+                    done.countDown();
+                }
+            }, "oath-load-test-" + i);
+            driver.setDaemon(true);
+            driver.start();
+        }
+
+        TimeUnit.SECONDS.sleep(options.warmupSeconds);
+        measuring = true;
+        TimeUnit.SECONDS.sleep(options.durationSeconds);
+        measuring = false;
+        stopped = true;
+        done.await();
+
+        Map<Journey, LatencyRecorder> merged = newRecorders();
+        for (Map<Journey, LatencyRecorder> threadRecorders : recorders) {
+            threadRecorders.forEach((journey, recorder) -> merged.get(journey).merge(recorder));
+        }
+        return merged;
+    }
+
+    private void drive(Map<Journey, LatencyRecorder> recorders) {
+        Random random = ThreadLocalRandom.current();
+        while (!stopped) {
+            Journey journey = pick(random.nextDouble());
+            boolean measured = measuring;
+            long start = System.nanoTime();
+            try {
+                Boolean expected = run(journey, random);
+                if (expected == null) {
+                    starved.incrementAndGet();
+                    LockSupport.parkNanos(STARVED_BACKOFF_NANOS);
+                } else if (measured) {
+                    recorders.get(journey).record(System.nanoTime() - start, expected);
+                }
+            } catch (Exception e) {
+                if (measured) {
+                    recorders.get(journey).error(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    private Journey pick(double draw) {
+        if (draw < options.wrongOtpRate) {
+            return Journey.WRONG_OTP;
+        }
+        if (draw < options.wrongOtpRate + options.unregisteredRate) {
+            return Journey.NOT_REGISTERED;
+        }
+        if (draw < options.wrongOtpRate + options.unregisteredRate + options.registrationRate) {
+            return Journey.REGISTRATION;
+        }
+        return Journey.LOGIN;
+    }
+
+    /**
+     * @return whether the journey ended in the expected outcome, or null if no user was free to make it
+     */
+    private Boolean run(Journey journey, Random random) throws Exception {
+        switch (journey) {
+            case NOT_REGISTERED:
+                return journey.expectedOutcome.equals(login("unregistered" + random.nextInt(Integer.MAX_VALUE),
+                        random.nextDouble() < options.totpShare ? OathAlgorithm.TOTP : OathAlgorithm.HOTP, null));
+            case REGISTRATION:
+                return journey.expectedOutcome.equals(register(
+                        random.nextDouble() < options.totpShare ? OathAlgorithm.TOTP : OathAlgorithm.HOTP));
+            default:
+                SyntheticPopulation.User user = population.acquire(random);
+                if (user == null) {
+                    return null;
+                }
+                try {
+                    boolean wrongOtp = journey == Journey.WRONG_OTP;
+                    String outcome = login(user.username, user.device.getAlgorithm(),
+                            wrongOtp ? user.device.wrongOtp() : user.device.otp());
+                    if (!journey.expectedOutcome.equals(outcome)) {
+                        user.device.resync(deployment.getStoredProfile(SyntheticPopulation.REALM, user.username));
+                        return false;
+                    }
+                    if (!wrongOtp) {
+                        user.device.accepted();
+                    }
+                    return true;
+                } finally {
+                    user.release();
+                }
+        }
+    }
+
+    /**
+     * Sends the verifier the user's first request, then the code in the callbacks it responds with. With
+     * {@code prefetch}, the prefetch node runs first and the user thinks before reaching the verifier.
+     */
+    private String login(String username, OathAlgorithm algorithm, String otp) throws Exception {
+        JsonValue sharedState = sharedState(username);
+        if (options.prefetch) {
+            deployment.prefetch().process(new TreeContext(sharedState, REQUEST, Collections.emptyList()));
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(options.thinkTimeMicros));
+        }
+        return verify(sharedState, deployment.verifier(algorithm), otp == null ? null : () -> otp);
+    }
+
+    /**
+     * Registers a new user's device, confirms that the QR code was scanned and verifies the first code of the device,
+     * which is read from the QR code's URI as an authenticator app would.
+     */
+    private String register(OathAlgorithm algorithm) throws Exception {
+        Node registration = deployment.registration(algorithm);
+        JsonValue sharedState = sharedState("registered" + registrations.incrementAndGet());
+        Action action = registration.process(new TreeContext(sharedState, REQUEST, Collections.emptyList()));
+        sharedState = next(sharedState, action);
+        SyntheticDevice device = scan(algorithm, action.callbacks);
+        confirm(action.callbacks);
+        action = registration.process(new TreeContext(sharedState, REQUEST, action.callbacks));
+        sharedState = next(sharedState, action);
+        return verify(sharedState, deployment.verifier(algorithm), device::otp);
+    }
+
+    private String verify(JsonValue sharedState, Node verifier, Supplier<String> otp) throws Exception {
+        Action action = verifier.process(new TreeContext(sharedState, REQUEST, Collections.emptyList()));
+        if (action.outcome != null) {
+            return action.outcome;
+        }
+        sharedState = next(sharedState, action);
+        for (Callback callback : action.callbacks) {
+            if (callback instanceof NameCallback) {
+                ((NameCallback) callback).setName(otp == null ? "" : otp.get());
+            }
+        }
+        confirm(action.callbacks);
+        return verifier.process(new TreeContext(sharedState, REQUEST, action.callbacks)).outcome;
+    }
+
+    private static SyntheticDevice scan(OathAlgorithm algorithm, List<? extends Callback> callbacks) {
+        for (Callback callback : callbacks) {
+            if (callback instanceof ScriptTextOutputCallback) {
+                String script = ((ScriptTextOutputCallback) callback).getMessage();
+                Matcher secret = SECRET.matcher(script);
+                if (!secret.find()) {
+                    break;
+                }
+                Matcher counter = COUNTER.matcher(script);
+                Matcher hashAlgorithm = HASH_ALGORITHM.matcher(script);
+                return new SyntheticDevice(algorithm,
+                        hashAlgorithm.find() ? HmacAlgorithm.valueOf(hashAlgorithm.group(1)) : HmacAlgorithm.SHA1,
+                        new Base32().decode(secret.group(1)), counter.find() ? Long.parseLong(counter.group(1)) : 0);
+            }
+        }
+        throw new IllegalStateException("No registration URI in the callbacks");
+    }
+
+    private static void confirm(List<? extends Callback> callbacks) {
+        for (Callback callback : callbacks) {
+            if (callback instanceof ConfirmationCallback) {
+                ((ConfirmationCallback) callback).setSelectedIndex(0);
+            }
+        }
+    }
+
+    private static JsonValue sharedState(String username) {
+        return json(object(field(USERNAME, username), field(REALM, SyntheticPopulation.REALM)));
+    }
+
+    private static JsonValue next(JsonValue sharedState, Action action) {
+        return action.sharedState == null ? sharedState : action.sharedState;
+    }
+
+    void report(Map<Journey, LatencyRecorder> recorders, PrintStream out) {
+        out.printf("%n%-16s %10s %10s %8s %8s %10s %10s %10s %10s %10s%n", "journey", "count", "per sec",
+                "unexp.", "errors", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        LatencyRecorder total = new LatencyRecorder();
+        for (Map.Entry<Journey, LatencyRecorder> entry : recorders.entrySet()) {
+            print(out, entry.getKey().name(), entry.getValue());
+            total.merge(entry.getValue());
+        }
+        print(out, "TOTAL", total);
+        if (starved.get() > 0) {
+            out.printf("%nNo free user was found %d times; increase the population for this concurrency.%n",
+                    starved.get());
+        }
+
+        OathStatistics statistics = deployment.getMetrics().getStatistics();
+        out.printf("%nNode phases, including the warm up:%n%-24s %12s %12s %12s%n", "phase", "count", "mean us",
+                "max us");
+        Map<String, Long> totals = statistics.getPhaseTotalMicros();
+        Map<String, Long> maxima = statistics.getPhaseMaxMicros();
+        statistics.getPhaseCounts().forEach((phase, count) -> out.printf("%-24s %12d %12.1f %12d%n", phase, count,
+                count == 0 ? 0.0 : (double) totals.get(phase) / count, maxima.get(phase)));
+        out.println("\nOutcomes: " + statistics.getOutcomes());
+        out.println("Failure reasons: " + statistics.getFailureReasons());
+    }
+
+    private void print(PrintStream out, String name, LatencyRecorder recorder) {
+        double[] latencies = recorder.percentilesMicros(PERCENTILES);
+        out.printf("%-16s %10d %10.1f %8d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name, recorder.getCount(),
+                (double) recorder.getCount() / options.durationSeconds, recorder.getUnexpected(), recorder.getErrors(),
+                latencies[0], latencies[1], latencies[2], latencies[3], latencies[4]);
+    }
+
+    private static Map<Journey, LatencyRecorder> newRecorders() {
+        Map<Journey, LatencyRecorder> recorders = new EnumMap<>(Journey.class);
+        for (Journey journey : Journey.values()) {
+            recorders.put(journey, new LatencyRecorder());
+        }
+        return recorders;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.loadtest;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.replay.ReplayStoreType;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Options of a load test run, given on the command line as {@code name=value}, e.g.
+ * {@code threads=32 wrongOtpRate=0.1 storeLatencyMicros=800}.
+ */
+final class LoadTestOptions {
+    /** Size of the registered user population. */
+    int users = 10000;
+    /** Share of the population, and of new registrations, using TOTP rather than HOTP. */
+    double totpShare = 0.5;
+    /** Number of concurrent journeys. */
+    int threads = 16;
+    /** Seconds to run before measuring. */
+    int warmupSeconds = 10;
+    /** Seconds to measure. */
+    int durationSeconds = 60;
+    /** Share of journeys in which a registered user enters a wrong OTP. */
+    double wrongOtpRate = 0.05;
+    /** Share of journeys by a user without a device. */
+    double unregisteredRate = 0.01;
+    /** Share of journeys registering a new device and verifying its first OTP. */
+    double registrationRate = 0.02;
+    /** Emulated identity store latency of each profile read and write. */
+    long storeLatencyMicros = 0;
+
+    int hotpWindowSize = 100;
+    int deviceProfileCacheTtl = 0;
+    boolean writeBehind = false;
+    boolean hotpLookaheadIndex = false;
+    boolean pregenerate = false;
+    /** Whether logins pass the prefetch node ahead of the verifier, with the emulated think time in between. */
+    boolean prefetch = false;
+    /** Emulated time the user takes between the prefetch node and entering the OTP. */
+    long thinkTimeMicros = 0;
+    HmacAlgorithm hashAlgorithm = HmacAlgorithm.SHA1;
+    /** The replay store of the verifiers. */
+    ReplayStoreType replayStore = ReplayStoreType.NONE;
+    /** The file of a shared file replay store, empty for a new temporary file. */
+    String replayStoreFile = "";
+    /** The audit log directory of the verifiers, empty for none. */
+    String auditLogDirectory = "";
+
+    static LoadTestOptions parse(String... args) {
+        LoadTestOptions options = new LoadTestOptions();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected name=value but got " + arg + ". " + usage());
+            }
+            options.set(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        if (options.wrongOtpRate + options.unregisteredRate + options.registrationRate > 1) {
+            throw new IllegalArgumentException("The failure and registration rates add up to more than 1");
+        }
+        return options;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object enumValue(Class<?> type, String value) {
+        return Enum.valueOf((Class) type, value);
+    }
+
+    private void set(String name, String value) {
+        try {
+            Field field = LoadTestOptions.class.getDeclaredField(name);
+            if (Modifier.isStatic(field.getModifiers())) {
+                throw new NoSuchFieldException(name);
+            }
+            if (field.getType() == int.class) {
+                field.setInt(this, Integer.parseInt(value));
+            } else if (field.getType() == long.class) {
+                field.setLong(this, Long.parseLong(value));
+            } else if (field.getType() == double.class) {
+                field.setDouble(this, Double.parseDouble(value));
+            } else if (field.getType().isEnum()) {
+                field.set(this, enumValue(field.getType(), value));
+            } else if (field.getType() == String.class) {
+                field.set(this, value);
+            } else {
+                field.setBoolean(this, Boolean.parseBoolean(value));
+            }
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("Unknown option " + name + ". " + usage());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String usage() {
+        return "Options: " + new LoadTestOptions();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Field field : LoadTestOptions.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            try {
+                result.append(result.length() == 0 ? "" : " ")
+                        .append(field.getName()).append('=').append(field.get(this));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return result.toString();
+    }
+}
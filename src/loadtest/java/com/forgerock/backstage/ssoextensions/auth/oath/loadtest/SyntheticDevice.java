@@ -0,0 +1,133 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.loadtest;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * The authenticator app of a synthetic user. Codes are computed independently of the verifier, following RFC 4226
+ * and RFC 6238 with the nodes' default settings apart from the hash function: six digits, dynamic truncation, no
+ * checksum and 30 second steps.
+ * <p>
+ * Not thread safe: a device is only used by the one journey its user is in.
+ */
+final class SyntheticDevice {
+    static final int DIGITS = 6;
+    static final int TIME_STEP_SECONDS = 30;
+    private static final int MODULUS = 1000000;
+
+    private final OathAlgorithm algorithm;
+    private final HmacAlgorithm hashAlgorithm;
+    private final byte[] key;
+    private Mac mac;
+    private long counter;
+    private long lastTimeStep = -1;
+
+    SyntheticDevice(OathAlgorithm algorithm, HmacAlgorithm hashAlgorithm, byte[] key, long counter) {
+        this.algorithm = algorithm;
+        this.hashAlgorithm = hashAlgorithm;
+        this.key = key;
+        this.counter = counter;
+    }
+
+    OathAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return false for a TOTP device that has already logged in during the current time step, as the verifier
+     * rejects a second code from the same step
+     */
+    boolean isReady() {
+        return algorithm == OathAlgorithm.HOTP || currentTimeStep() > lastTimeStep;
+    }
+
+    String otp() {
+        return format(generate(algorithm == OathAlgorithm.HOTP ? counter : currentTimeStep()));
+    }
+
+    /**
+     * @return a code that differs from the one {@link #otp()} returns
+     */
+    String wrongOtp() {
+        return format((Integer.parseInt(otp()) + MODULUS / 2) % MODULUS);
+    }
+
+    /**
+     * Moves the device on after the verifier accepted its code.
+     */
+    void accepted() {
+        if (algorithm == OathAlgorithm.HOTP) {
+            counter++;
+        } else {
+            lastTimeStep = currentTimeStep();
+        }
+    }
+
+    /**
+     * Aligns the device with the stored profile, after an unexpected outcome.
+     */
+    void resync(OathDeviceSettings stored) {
+        if (stored == null) {
+            return;
+        }
+        if (algorithm == OathAlgorithm.HOTP) {
+            counter = stored.getCounter();
+        } else {
+            lastTimeStep = stored.getLastLogin() / TIME_STEP_SECONDS;
+        }
+    }
+
+    private int generate(long movingFactor) {
+        byte[] hash;
+        try {
+            if (mac == null) {
+                mac = Mac.getInstance(hashAlgorithm.getMacName());
+                mac.init(new SecretKeySpec(key, "RAW"));
+            }
+            byte[] message = new byte[8];
+            for (int i = message.length - 1; i >= 0; i--) {
+                message[i] = (byte) (movingFactor & 0xff);
+                movingFactor >>>= 8;
+            }
+            hash = mac.doFinal(message);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        int offset = hash[hash.length - 1] & 0xf;
+        int binary = ((hash[offset] & 0x7f) << 24) | ((hash[offset + 1] & 0xff) << 16)
+                | ((hash[offset + 2] & 0xff) << 8) | (hash[offset + 3] & 0xff);
+        return binary % MODULUS;
+    }
+
+    private static long currentTimeStep() {
+        return System.currentTimeMillis() / 1000L / TIME_STEP_SECONDS;
+    }
+
+    private static String format(int otp) {
+        return String.format("%0" + DIGITS + "d", otp);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.loadtest;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Registered users with a TOTP or HOTP device each. A user is in at most one journey at a time, as a person would be.
+ */
+final class SyntheticPopulation {
+    static final String REALM = "/";
+    private static final int MAX_PICK_ATTEMPTS = 16;
+
+    private final User[] users;
+
+    private SyntheticPopulation(User[] users) {
+        this.users = users;
+    }
+
+    /**
+     * Registers the users' devices in the deployment's identity store.
+     */
+    static SyntheticPopulation register(InMemoryDeployment deployment, LoadTestOptions options) throws IOException {
+        Random random = new Random(options.users);
+        User[] users = new User[options.users];
+        for (int i = 0; i < users.length; i++) {
+            OathAlgorithm algorithm = random.nextDouble() < options.totpShare ? OathAlgorithm.TOTP : OathAlgorithm.HOTP;
+            String username = "user" + i;
+            OathDeviceSettings settings = deployment.register(REALM, username);
+            users[i] = new User(username, new SyntheticDevice(algorithm, options.hashAlgorithm,
+                    key(settings.getSharedSecret()), 0));
+        }
+        return new SyntheticPopulation(users);
+    }
+
+    /**
+     * Picks a random user who is not in a journey and whose device can produce a fresh code.
+     *
+     * @return the user, to be released after the journey, or null if none was found
+     */
+    User acquire(Random random) {
+        for (int attempt = 0; attempt < MAX_PICK_ATTEMPTS; attempt++) {
+            User user = users[random.nextInt(users.length)];
+            if (user.busy.compareAndSet(false, true)) {
+                if (user.device.isReady()) {
+                    return user;
+                }
+                user.release();
+            }
+        }
+        return null;
+    }
+
+    static byte[] key(String hexSecret) {
+        return DatatypeConverter.parseHexBinary(hexSecret.length() % 2 == 0 ? hexSecret : "0" + hexSecret);
+    }
+
+    static final class User {
+        final String username;
+        final SyntheticDevice device;
+        private final AtomicBoolean busy = new AtomicBoolean();
+
+        User(String username, SyntheticDevice device) {
+            this.username = username;
+            this.device = device;
+        }
+
+        void release() {
+            busy.set(false);
+        }
+    }
+}
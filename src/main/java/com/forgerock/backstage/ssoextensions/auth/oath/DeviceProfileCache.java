@@ -0,0 +1,196 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import org.forgerock.json.JsonValue;
+
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+
+/**
+ * A bounded, short lived cache of OATH device profiles keyed by realm and username.
+ * <p>
+ * An entry holds all of the user's profiles, as a JSON array. Users without a device are cached as well, so repeated
+ * lookups on the {@code NOT_REGISTERED} path do not hit the identity store. Each read states how old an entry it
+ * accepts, which lets every node pick its own TTL up to {@link #MAX_TTL_SECONDS}. Profiles are held as JSON so callers
+ * always get their own copy to mutate.
+ */
+@Singleton
+public class DeviceProfileCache {
+    static final int MAX_SIZE = 10000;
+    static final int MAX_TTL_SECONDS = 300;
+
+    private final Cache<List<String>, Entry> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public DeviceProfileCache() {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(MAX_SIZE)
+                .expireAfterWrite(MAX_TTL_SECONDS, TimeUnit.SECONDS)
+                .removalListener(notification -> {
+                    if (notification.wasEvicted()) {
+                        evictions.increment();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Looks up a cached profile.
+     *
+     * @param realm      the user's realm
+     * @param username   the username
+     * @param ttlSeconds the maximum age of an entry that is acceptable to the caller
+     * @return the cached entry, or null on a miss
+     */
+    public Entry get(String realm, String username, int ttlSeconds) {
+        Entry entry = cache.getIfPresent(key(realm, username));
+        long maxAge = TimeUnit.SECONDS.toMillis(Math.min(ttlSeconds, MAX_TTL_SECONDS));
+        if (entry == null || currentTimeMillis() - entry.loadedAt >= maxAge) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (!entry.isRegistered()) {
+            negativeHits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Caches profiles freshly read from the identity store.
+     *
+     * @param realm    the user's realm
+     * @param username the username
+     * @param profile  the profiles, or null if the user has no device
+     */
+    public void put(String realm, String username, JsonValue profile) {
+        cache.put(key(realm, username), new Entry(profile, currentTimeMillis()));
+    }
+
+    /**
+     * Writes a saved profile through to the cache if the user is already cached.
+     *
+     * @param realm    the user's realm
+     * @param username the username
+     * @param update   applies the saved profile to the cached profiles, which are null if the user had no device
+     */
+    public void update(String realm, String username, UnaryOperator<JsonValue> update) {
+        cache.asMap().computeIfPresent(key(realm, username),
+                (key, entry) -> new Entry(update.apply(entry.profile), currentTimeMillis()));
+    }
+
+    /**
+     * Drops the cached profile of a user.
+     *
+     * @param realm    the user's realm
+     * @param username the username
+     */
+    public void invalidate(String realm, String username) {
+        cache.invalidate(key(realm, username));
+    }
+
+    /**
+     * Returns a snapshot of the cache statistics.
+     *
+     * @return the statistics
+     */
+    public Statistics getStatistics() {
+        return new Statistics(hits.sum(), negativeHits.sum(), misses.sum(), evictions.sum(), cache.size());
+    }
+
+    private static List<String> key(String realm, String username) {
+        return ImmutableList.of(realm, username);
+    }
+
+    /**
+     * The cached device profiles, or the fact that the user has none.
+     */
+    public static final class Entry {
+        private final JsonValue profile;
+        private final long loadedAt;
+
+        private Entry(JsonValue profile, long loadedAt) {
+            this.profile = profile;
+            this.loadedAt = loadedAt;
+        }
+
+        public boolean isRegistered() {
+            return profile != null;
+        }
+
+        public JsonValue getProfile() {
+            return profile;
+        }
+    }
+
+    /**
+     * Point in time cache statistics.
+     */
+    public static final class Statistics {
+        private final long hitCount;
+        private final long negativeHitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long size;
+
+        Statistics(long hitCount, long negativeHitCount, long missCount, long evictionCount, long size) {
+            this.hitCount = hitCount;
+            this.negativeHitCount = negativeHitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.size = size;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /**
+         * @return the number of hits that found a user without a device, included in {@link #getHitCount()}
+         */
+        public long getNegativeHitCount() {
+            return negativeHitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
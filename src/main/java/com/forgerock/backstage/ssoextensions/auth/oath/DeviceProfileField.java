@@ -0,0 +1,63 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The fields of a device profile that the nodes change, tracked so that a save only carries what actually changed.
+ */
+public enum DeviceProfileField {
+    COUNTER {
+        @Override
+        void copy(OathDeviceSettings from, OathDeviceSettings to) {
+            to.setCounter(from.getCounter());
+        }
+    },
+    LAST_LOGIN {
+        @Override
+        void copy(OathDeviceSettings from, OathDeviceSettings to) {
+            to.setLastLogin(from.getLastLogin(), TimeUnit.SECONDS);
+        }
+    },
+    CLOCK_DRIFT {
+        @Override
+        void copy(OathDeviceSettings from, OathDeviceSettings to) {
+            to.setClockDriftSeconds(from.getClockDriftSeconds());
+        }
+    },
+    RECOVERY_CODES {
+        @Override
+        void copy(OathDeviceSettings from, OathDeviceSettings to) {
+            to.setRecoveryCodes(from.getRecoveryCodes() == null ? null : new ArrayList<>(from.getRecoveryCodes()));
+        }
+    };
+
+    /**
+     * Copies this field from one profile to another.
+     *
+     * @param from the profile holding the new value
+     * @param to   the profile to update
+     */
+    abstract void copy(OathDeviceSettings from, OathDeviceSettings to);
+}
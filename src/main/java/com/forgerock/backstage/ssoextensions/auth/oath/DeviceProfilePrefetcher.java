@@ -0,0 +1,202 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.thread.listener.ShutdownManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reads users' OATH device profiles from the identity store ahead of time, while the user is still busy with earlier
+ * steps of the tree.
+ * <p>
+ * Each prefetch puts a slot, keyed by realm and username, into a small local cache and reads the profiles into it on
+ * one of {@link #THREADS} background threads. Reads that cannot be queued are dropped. A slot is taken at most once,
+ * so the profiles are never shared between requests, and is dropped after {@link #SLOT_TTL_SECONDS} if nobody takes
+ * it. Taking a slot whose read has not started yet cancels the read and leaves it to the caller, as does taking a slot
+ * whose read does not finish within {@link #MAX_WAIT_MILLIS}.
+ */
+@Singleton
+public class DeviceProfilePrefetcher {
+    static final int THREADS = 4;
+    static final int MAX_QUEUED = 1000;
+    static final int MAX_SLOTS = 10000;
+    static final int SLOT_TTL_SECONDS = 60;
+    static final long MAX_WAIT_MILLIS = 20;
+
+    private final Logger logger = LoggerFactory.getLogger(DeviceProfilePrefetcher.class);
+    private final UserOathDeviceProfileManager userOathDeviceProfileManager;
+    private final Executor loader;
+    private final Cache<List<String>, Slot> slots = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SLOTS)
+            .expireAfterWrite(SLOT_TTL_SECONDS, TimeUnit.SECONDS)
+            .build();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile boolean shutdown;
+
+    @Inject
+    public DeviceProfilePrefetcher(UserOathDeviceProfileManager userOathDeviceProfileManager,
+                                   ShutdownManager shutdownManager) {
+        this(userOathDeviceProfileManager, shutdownManager, newLoader());
+    }
+
+    @VisibleForTesting
+    DeviceProfilePrefetcher(UserOathDeviceProfileManager userOathDeviceProfileManager,
+                            ShutdownManager shutdownManager,
+                            Executor loader) {
+        this.userOathDeviceProfileManager = userOathDeviceProfileManager;
+        this.loader = loader;
+        shutdownManager.addShutdownListener(this::shutdown);
+    }
+
+    /**
+     * Starts reading the user's device profiles, unless a read for the user is already pending.
+     *
+     * @param realm    the user's realm
+     * @param username the username
+     */
+    public void prefetch(String realm, String username) {
+        if (shutdown) {
+            return;
+        }
+        List<String> key = key(realm, username);
+        Slot slot = new Slot();
+        if (slots.asMap().putIfAbsent(key, slot) != null) {
+            return;
+        }
+        try {
+            loader.execute(() -> load(realm, username, slot));
+        } catch (RejectedExecutionException e) {
+            logger.debug("Prefetch queue full, skipping {} in realm {}", username, realm);
+            slots.asMap().remove(key, slot);
+        }
+    }
+
+    /**
+     * Takes the prefetched device profiles of a user. A read that is in progress is waited for briefly, as it is likely
+     * to finish sooner than a new one; a read that is slower than that, such as one stuck on an unresponsive identity
+     * store, is left behind so that the caller does not wait for it on top of its own read.
+     *
+     * @param realm    the user's realm
+     * @param username the username
+     * @return the device profiles, or null if they were not prefetched and have to be read by the caller
+     */
+    public List<OathDeviceSettings> take(String realm, String username) {
+        Slot slot = slots.asMap().remove(key(realm, username));
+        if (slot == null) {
+            return null;
+        }
+        if (slot.started.compareAndSet(false, true)) {
+            misses.increment();
+            return null;
+        }
+        try {
+            List<OathDeviceSettings> profiles = slot.profiles.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            hits.increment();
+            return profiles;
+        } catch (ExecutionException | TimeoutException e) {
+            logger.debug("Prefetch of {} in realm {} failed", username, realm, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @return the number of takes that found prefetched profiles
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of prefetches taken before their read started or that failed, leaving the read to the caller
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private void load(String realm, String username, Slot slot) {
+        if (!slot.started.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            slot.profiles.complete(userOathDeviceProfileManager.getDeviceProfiles(username, realm));
+        } catch (Exception e) {
+            slot.profiles.completeExceptionally(e);
+        }
+    }
+
+    private void shutdown() {
+        shutdown = true;
+        if (loader instanceof ExecutorService) {
+            ((ExecutorService) loader).shutdownNow();
+        }
+        slots.invalidateAll();
+    }
+
+    private static List<String> key(String realm, String username) {
+        return ImmutableList.of(realm, username);
+    }
+
+    private static ExecutorService newLoader() {
+        AtomicInteger threads = new AtomicInteger();
+        ThreadPoolExecutor loader = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_QUEUED), runnable -> {
+                    Thread thread = new Thread(runnable, "oath-profile-prefetch-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        loader.allowCoreThreadTimeOut(true);
+        return loader;
+    }
+
+    /**
+     * The profiles of one user, read at most once, either by the loader or, if it has not started yet, by the caller.
+     */
+    private static final class Slot {
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CompletableFuture<List<OathDeviceSettings>> profiles = new CompletableFuture<>();
+    }
+}
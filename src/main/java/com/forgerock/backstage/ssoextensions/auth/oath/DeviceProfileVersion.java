@@ -0,0 +1,106 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The replay relevant state of a device profile (HOTP counter, TOTP last login, clock drift and recovery codes) at the
+ * time it was read, used to detect concurrent updates when the profile is saved and to work out the
+ * {@link DeviceProfileField}s changed since.
+ */
+public final class DeviceProfileVersion {
+    private final int counter;
+    private final long lastLogin;
+    private final int clockDriftSeconds;
+    private final List<String> recoveryCodes;
+
+    private DeviceProfileVersion(int counter, long lastLogin, int clockDriftSeconds, List<String> recoveryCodes) {
+        this.counter = counter;
+        this.lastLogin = lastLogin;
+        this.clockDriftSeconds = clockDriftSeconds;
+        this.recoveryCodes = recoveryCodes;
+    }
+
+    /**
+     * Captures the version of a profile before it is modified.
+     *
+     * @param settings the device profile
+     * @return the version
+     */
+    public static DeviceProfileVersion of(OathDeviceSettings settings) {
+        List<String> recoveryCodes = settings.getRecoveryCodes();
+        return new DeviceProfileVersion(settings.getCounter(), settings.getLastLogin(), settings.getClockDriftSeconds(),
+                recoveryCodes == null ? null : new ArrayList<>(recoveryCodes));
+    }
+
+    /**
+     * Checks whether a stored profile is still at this version.
+     *
+     * @param stored the profile as currently stored
+     * @return true if nothing relevant changed since this version was captured
+     */
+    public boolean matches(OathDeviceSettings stored) {
+        return stored.getCounter() == counter
+                && stored.getLastLogin() == lastLogin
+                && stored.getClockDriftSeconds() == clockDriftSeconds
+                && Objects.equals(nullToEmpty(stored.getRecoveryCodes()), nullToEmpty(recoveryCodes));
+    }
+
+    /**
+     * Works out which fields of a profile changed since this version was captured.
+     *
+     * @param updated the profile after it was modified
+     * @return the changed fields, empty if there is nothing to save
+     */
+    public Set<DeviceProfileField> changedFields(OathDeviceSettings updated) {
+        Set<DeviceProfileField> changed = EnumSet.noneOf(DeviceProfileField.class);
+        if (updated.getCounter() != counter) {
+            changed.add(DeviceProfileField.COUNTER);
+        }
+        if (updated.getLastLogin() != lastLogin) {
+            changed.add(DeviceProfileField.LAST_LOGIN);
+        }
+        if (updated.getClockDriftSeconds() != clockDriftSeconds) {
+            changed.add(DeviceProfileField.CLOCK_DRIFT);
+        }
+        if (!Objects.equals(updated.getRecoveryCodes(), recoveryCodes)) {
+            changed.add(DeviceProfileField.RECOVERY_CODES);
+        }
+        return changed;
+    }
+
+    @Override
+    public String toString() {
+        return "counter=" + counter + ", lastLogin=" + lastLogin + ", clockDriftSeconds=" + clockDriftSeconds
+                + ", recoveryCodes=" + nullToEmpty(recoveryCodes).size();
+    }
+
+    private static List<String> nullToEmpty(List<String> recoveryCodes) {
+        return recoveryCodes == null ? Collections.emptyList() : recoveryCodes;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.thread.listener.ShutdownManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+
+/**
+ * Takes post-login device profile updates off the request path.
+ * <p>
+ * Updates are queued per realm and user, and within a user per device; a newer update for the same device replaces a
+ * pending one. A single background thread writes the queue to the identity store every
+ * {@link #FLUSH_INTERVAL_MILLIS}, at most {@link #BATCH_SIZE} users per pass unless that would leave an update pending
+ * for longer than {@link #MAX_STALENESS_MILLIS}. Once {@link #MAX_PENDING} users are pending further updates are
+ * refused, and the caller writes synchronously instead. The queue is drained when AM shuts down.
+ * <p>
+ * Until an update is written, reads are overlaid with the pending profile, so the pending counter or last login acts
+ * as the replay high-water mark on this server. Writes hold the same per-user lock as {@link OathHelper}'s saves, and a
+ * synchronous save, which is made on top of the overlaid profiles, {@link #discard discards} the pending updates it
+ * wrote. An update that cannot be written stays pending, and after {@link #MAX_WRITE_ATTEMPTS} failed attempts the
+ * user's further updates are refused, so they are saved synchronously until one succeeds.
+ */
+@Singleton
+public class DeviceProfileWriteBehind {
+    static final long FLUSH_INTERVAL_MILLIS = 250;
+    static final long MAX_STALENESS_MILLIS = 1000;
+    static final int BATCH_SIZE = 500;
+    static final int MAX_PENDING = 10000;
+    static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final Logger logger = LoggerFactory.getLogger(DeviceProfileWriteBehind.class);
+    private final UserOathDeviceProfileManager userOathDeviceProfileManager;
+    private final DeviceProfileWriter deviceProfileWriter;
+    private final DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils;
+    private final ConcurrentMap<List<String>, Pending> pending = new ConcurrentHashMap<>();
+    private final long flushIntervalMillis;
+    private volatile ScheduledExecutorService flusher;
+    private volatile boolean shutdown;
+
+    @Inject
+    public DeviceProfileWriteBehind(UserOathDeviceProfileManager userOathDeviceProfileManager,
+                                    DeviceProfileWriter deviceProfileWriter,
+                                    DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils,
+                                    ShutdownManager shutdownManager) {
+        this(userOathDeviceProfileManager, deviceProfileWriter, deviceJsonUtils, shutdownManager,
+                FLUSH_INTERVAL_MILLIS);
+    }
+
+    @VisibleForTesting
+    DeviceProfileWriteBehind(UserOathDeviceProfileManager userOathDeviceProfileManager,
+                             DeviceProfileWriter deviceProfileWriter,
+                             DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils,
+                             ShutdownManager shutdownManager,
+                             long flushIntervalMillis) {
+        this.userOathDeviceProfileManager = userOathDeviceProfileManager;
+        this.deviceProfileWriter = deviceProfileWriter;
+        this.deviceJsonUtils = deviceJsonUtils;
+        this.flushIntervalMillis = flushIntervalMillis;
+        shutdownManager.addShutdownListener(this::shutdown);
+    }
+
+    /**
+     * Queues a device profile to be saved.
+     *
+     * @param realm    the user's realm
+     * @param username the username
+     * @param settings the profile to save
+     * @return false if the queue is full or shut down, or the user's pending updates cannot be written, and the caller
+     * has to save synchronously
+     */
+    public boolean enqueue(String realm, String username, OathDeviceSettings settings) {
+        if (shutdown) {
+            return false;
+        }
+        List<String> key = key(realm, username);
+        Pending queued = pending.get(key);
+        if (queued == null && pending.size() >= MAX_PENDING) {
+            logger.warn("Write-behind queue is full, saving device profile synchronously");
+            return false;
+        }
+        if (queued != null && queued.attempts >= MAX_WRITE_ATTEMPTS) {
+            logger.debug("Pending device profile updates of {} cannot be written, saving synchronously", username);
+            return false;
+        }
+        JsonValue profile;
+        try {
+            profile = deviceJsonUtils.toJsonValue(settings);
+        } catch (IOException e) {
+            logger.warn("Cannot serialize device profile for write-behind", e);
+            return false;
+        }
+        String uuid = Objects.toString(settings.getUUID(), "");
+        pending.merge(key, new Pending(realm, username, ImmutableMap.of(uuid, profile), currentTimeMillis(), 0),
+                (current, update) -> current.with(uuid, profile));
+        startFlusher();
+        return true;
+    }
+
+    /**
+     * Drops the pending updates of a user. Called with the user's device profile lock held, after a synchronous save
+     * of the user's overlaid profiles, which has already written the pending updates.
+     *
+     * @param realm    the user's realm
+     * @param username the username
+     */
+    public void discard(String realm, String username) {
+        pending.remove(key(realm, username));
+    }
+
+    /**
+     * Overlays the profiles read from the identity store with any update still pending for them.
+     *
+     * @param realm    the user's realm
+     * @param username the username
+     * @param stored   the profiles as read from the identity store
+     * @return the profiles as they will be once the pending updates are written
+     */
+    public List<OathDeviceSettings> overlay(String realm, String username, List<OathDeviceSettings> stored) {
+        Pending update = pending.get(key(realm, username));
+        if (update == null) {
+            return stored;
+        }
+        List<OathDeviceSettings> result = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        if (stored != null) {
+            for (OathDeviceSettings settings : stored) {
+                String uuid = Objects.toString(settings.getUUID(), "");
+                JsonValue profile = update.profiles.get(uuid);
+                OathDeviceSettings overlaid = profile == null ? null : toSettings(profile);
+                result.add(overlaid == null ? settings : overlaid);
+                seen.add(uuid);
+            }
+        }
+        for (Map.Entry<String, JsonValue> entry : update.profiles.entrySet()) {
+            if (!seen.contains(entry.getKey())) {
+                OathDeviceSettings settings = toSettings(entry.getValue());
+                if (settings != null) {
+                    result.add(settings);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of users with an update waiting to be written
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Writes pending updates to the identity store.
+     *
+     * @param drain whether to write everything, rather than a batch plus whatever is getting stale
+     */
+    void flush(boolean drain) {
+        long staleBefore = currentTimeMillis() - MAX_STALENESS_MILLIS + flushIntervalMillis;
+        int written = 0;
+        for (Map.Entry<List<String>, Pending> entry : pending.entrySet()) {
+            Pending update = entry.getValue();
+            if (!drain && written >= BATCH_SIZE && update.enqueuedAt > staleBefore) {
+                continue;
+            }
+            write(entry.getKey(), update.realm, update.username);
+            written++;
+        }
+        if (written > 0) {
+            logger.debug("Wrote {} pending device profiles, {} still pending", written, pending.size());
+        }
+    }
+
+    private void write(List<String> key, String realm, String username) {
+        Lock lock = OathHelper.deviceProfileLock(realm, username);
+        lock.lock();
+        try {
+            // read again under the lock, a synchronous save may have written and discarded the update
+            Pending update = pending.get(key);
+            if (update == null) {
+                return;
+            }
+            try {
+                // the identity store keeps all of the user's profiles together, the others are written back unchanged
+                List<OathDeviceSettings> stored = userOathDeviceProfileManager.getDeviceProfiles(username, realm);
+                deviceProfileWriter.save(username, realm, overlay(realm, username, stored));
+                pending.remove(key, update);
+            } catch (DevicePersistenceException e) {
+                Pending retried = update.retried();
+                if (retried.attempts == MAX_WRITE_ATTEMPTS) {
+                    logger.error("Cannot write device profile update for {} in {} after {} attempts, keeping it "
+                            + "pending and saving further updates synchronously", username, realm, retried.attempts, e);
+                } else {
+                    logger.warn("Cannot write device profile update for {} in {}, will retry", username, realm, e);
+                }
+                pending.replace(key, update, retried);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startFlusher() {
+        if (flusher == null) {
+            synchronized (this) {
+                if (flusher == null && !shutdown) {
+                    flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "oath-device-profile-write-behind");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush(false);
+        } catch (RuntimeException e) {
+            logger.error("Unexpected error writing pending device profiles", e);
+        }
+    }
+
+    private synchronized void shutdown() {
+        shutdown = true;
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(MAX_STALENESS_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS && !pending.isEmpty(); attempt++) {
+            flush(true);
+        }
+        if (!pending.isEmpty()) {
+            logger.error("Could not write pending device profile updates of {} users before shutdown", pending.size());
+        }
+    }
+
+    private OathDeviceSettings toSettings(JsonValue profile) {
+        try {
+            return deviceJsonUtils.toDeviceSettingValue(profile);
+        } catch (IOException e) {
+            logger.warn("Cannot deserialize pending device profile", e);
+            return null;
+        }
+    }
+
+    private static List<String> key(String realm, String username) {
+        return ImmutableList.of(realm, username);
+    }
+
+    /**
+     * The updates pending for one user, by device UUID.
+     */
+    private static final class Pending {
+        private final String realm;
+        private final String username;
+        private final Map<String, JsonValue> profiles;
+        private final long enqueuedAt;
+        private final int attempts;
+
+        private Pending(String realm, String username, Map<String, JsonValue> profiles, long enqueuedAt,
+                        int attempts) {
+            this.realm = realm;
+            this.username = username;
+            this.profiles = profiles;
+            this.enqueuedAt = enqueuedAt;
+            this.attempts = attempts;
+        }
+
+        private Pending with(String uuid, JsonValue profile) {
+            Map<String, JsonValue> updated = new LinkedHashMap<>(profiles);
+            updated.put(uuid, profile);
+            return new Pending(realm, username, updated, enqueuedAt, attempts);
+        }
+
+        private Pending retried() {
+            return new Pending(realm, username, profiles, enqueuedAt, attempts + 1);
+        }
+    }
+}
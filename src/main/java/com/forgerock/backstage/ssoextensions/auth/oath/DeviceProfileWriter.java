@@ -0,0 +1,101 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.OathDevicesDao;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Writes the complete list of a user's OATH device profiles to the identity store.
+ * <p>
+ * {@link UserOathDeviceProfileManager#saveDeviceProfile} replaces the user's profiles with the single one it is given,
+ * which would delete the user's other devices, so saves go through the devices DAO with the merged list instead.
+ */
+@Singleton
+public class DeviceProfileWriter {
+    private final OathDevicesDao devicesDao;
+    private final DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils;
+
+    @Inject
+    public DeviceProfileWriter(OathDevicesDao devicesDao, DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils) {
+        this.devicesDao = devicesDao;
+        this.deviceJsonUtils = deviceJsonUtils;
+    }
+
+    /**
+     * Saves the user's device profiles, replacing the stored ones.
+     *
+     * @param username the username
+     * @param realm    the realm path
+     * @param devices  all of the user's device profiles
+     * @throws DevicePersistenceException if the profiles cannot be encoded or saved
+     */
+    public void save(String username, String realm, List<OathDeviceSettings> devices)
+            throws DevicePersistenceException {
+        List<JsonValue> profiles = new ArrayList<>(devices.size());
+        for (OathDeviceSettings device : devices) {
+            try {
+                profiles.add(deviceJsonUtils.toJsonValue(device));
+            } catch (IOException e) {
+                DevicePersistenceException failure = new DevicePersistenceException("Cannot encode device profile");
+                failure.initCause(e);
+                throw failure;
+            }
+        }
+        devicesDao.saveDeviceProfiles(username, realm, profiles);
+    }
+
+    /**
+     * Merges an updated device profile into the user's profiles.
+     *
+     * @param devices the user's profiles, may be null
+     * @param updated the updated profile
+     * @return the profiles with the one of the same UUID replaced by, or else followed by, the updated one
+     */
+    public static List<OathDeviceSettings> merge(List<OathDeviceSettings> devices, OathDeviceSettings updated) {
+        List<OathDeviceSettings> merged = new ArrayList<>();
+        boolean replaced = false;
+        if (devices != null) {
+            for (OathDeviceSettings device : devices) {
+                if (!replaced && Objects.equals(device.getUUID(), updated.getUUID())) {
+                    merged.add(updated);
+                    replaced = true;
+                } else {
+                    merged.add(device);
+                }
+            }
+        }
+        if (!replaced) {
+            merged.add(updated);
+        }
+        return merged;
+    }
+}
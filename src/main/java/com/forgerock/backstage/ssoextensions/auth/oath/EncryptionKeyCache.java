@@ -0,0 +1,169 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.util.concurrent.Striped;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.secrets.Secrets;
+import org.forgerock.openam.shared.secrets.Labels;
+import org.forgerock.secrets.NoSuchSecretException;
+import org.forgerock.secrets.Purpose;
+import org.forgerock.secrets.SecretsProvider;
+import org.forgerock.secrets.keys.DataEncryptionKey;
+import org.forgerock.secrets.keys.KeyFormatRaw;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+import static org.forgerock.secrets.Purpose.purpose;
+
+/**
+ * Caches the exported auth tree encryption keys per realm, so that encrypting and decrypting the shared state does
+ * not block on the secret store for every call.
+ * <p>
+ * Entries are reloaded after {@link #KEY_TTL_MILLIS}, or earlier when a payload cannot be decrypted with the cached
+ * keys. Besides the active key each entry holds every other valid key, so payloads encrypted before a rotation can
+ * still be decrypted while it is in progress. Early reloads happen at most once per {@link #REFRESH_INTERVAL_MILLIS}
+ * per realm, so that a flood of undecryptable payloads does not turn into a flood of secret store reads.
+ */
+@Singleton
+public class EncryptionKeyCache {
+    static final long KEY_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    static final long REFRESH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final Striped<Lock> REFRESH_LOCKS = Striped.lock(16);
+
+    private static final Purpose<DataEncryptionKey> AUTH_TREE_ENCRYPTION =
+            purpose(Labels.STATELESS_TOKEN_ENCRYPTION, DataEncryptionKey.class);
+
+    private final Secrets secrets;
+    private final long refreshIntervalMillis;
+    private final ConcurrentMap<Realm, RealmKeys> keys = new ConcurrentHashMap<>();
+
+    @Inject
+    public EncryptionKeyCache(Secrets secrets) {
+        this(secrets, REFRESH_INTERVAL_MILLIS);
+    }
+
+    EncryptionKeyCache(Secrets secrets, long refreshIntervalMillis) {
+        this.secrets = secrets;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    /**
+     * Returns the realm's active encryption key.
+     *
+     * @param realm the realm
+     * @return the exported active key
+     * @throws NoSuchSecretException if the realm has no active auth tree encryption key
+     */
+    public Key getActiveKey(Realm realm) throws NoSuchSecretException {
+        return get(realm).active;
+    }
+
+    /**
+     * Returns every valid decryption key for the realm, active key first.
+     *
+     * @param realm the realm
+     * @return the exported keys
+     * @throws NoSuchSecretException if the realm has no active auth tree encryption key
+     */
+    public List<Key> getValidKeys(Realm realm) throws NoSuchSecretException {
+        return get(realm).valid;
+    }
+
+    /**
+     * Reloads the realm's keys from the secret store, e.g. after a decryption failure that may be caused by a rotation.
+     * <p>
+     * Concurrent callers share a single reload, and keys loaded less than {@link #REFRESH_INTERVAL_MILLIS} ago are
+     * returned as they are.
+     *
+     * @param realm the realm
+     * @return every valid decryption key for the realm, active key first
+     * @throws NoSuchSecretException if the realm has no active auth tree encryption key
+     */
+    public List<Key> refresh(Realm realm) throws NoSuchSecretException {
+        Lock lock = REFRESH_LOCKS.get(realm);
+        lock.lock();
+        try {
+            RealmKeys cached = keys.get(realm);
+            if (cached != null && cached.loadedAt + refreshIntervalMillis > currentTimeMillis()) {
+                return cached.valid;
+            }
+            RealmKeys loaded = load(realm);
+            keys.put(realm, loaded);
+            return loaded.valid;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private RealmKeys get(Realm realm) throws NoSuchSecretException {
+        RealmKeys cached = keys.get(realm);
+        if (cached != null && cached.expiresAt > currentTimeMillis()) {
+            return cached;
+        }
+        RealmKeys loaded = load(realm);
+        keys.put(realm, loaded);
+        return loaded;
+    }
+
+    private RealmKeys load(Realm realm) throws NoSuchSecretException {
+        SecretsProvider provider = secrets.getRealmSecrets(realm);
+        DataEncryptionKey active = provider.getActiveSecret(AUTH_TREE_ENCRYPTION).getOrThrowUninterruptibly();
+
+        List<Key> valid = new ArrayList<>();
+        Key activeKey = active.export(KeyFormatRaw.INSTANCE);
+        valid.add(activeKey);
+        Iterator<DataEncryptionKey> iterator = provider.getValidSecrets(AUTH_TREE_ENCRYPTION)
+                .getOrThrowUninterruptibly().iterator();
+        while (iterator.hasNext()) {
+            DataEncryptionKey candidate = iterator.next();
+            if (!Objects.equals(candidate.getStableId(), active.getStableId())) {
+                valid.add(candidate.export(KeyFormatRaw.INSTANCE));
+            }
+        }
+        return new RealmKeys(activeKey, valid, currentTimeMillis());
+    }
+
+    private static final class RealmKeys {
+        private final Key active;
+        private final List<Key> valid;
+        private final long loadedAt;
+        private final long expiresAt;
+
+        RealmKeys(Key active, List<Key> valid, long loadedAt) {
+            this.active = active;
+            this.valid = Collections.unmodifiableList(valid);
+            this.loadedAt = loadedAt;
+            this.expiresAt = loadedAt + KEY_TTL_MILLIS;
+        }
+    }
+}
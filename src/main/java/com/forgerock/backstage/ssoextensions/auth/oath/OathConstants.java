@@ -21,4 +21,8 @@ package com.forgerock.backstage.ssoextensions.auth.oath;
 
 public class OathConstants {
     public static final String OATH_DEVICE_PROFILE_KEY = "oathDeviceProfile";
+    /** Device profile read from the identity store on the prompt round, carried encrypted into the submit round. */
+    public static final String OATH_LOADED_DEVICE_PROFILE_KEY = "oathLoadedDeviceProfile";
+    /** New device profile and its recovery codes, put into the shared state by the registration node. */
+    public static final String OATH_REGISTRATION_KEY = "oathRegistration";
 }
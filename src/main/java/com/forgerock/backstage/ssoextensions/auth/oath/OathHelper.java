@@ -19,11 +19,15 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath;
 
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathEvent;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathFlightRecorder;
 
+import com.google.common.util.concurrent.Striped;
 import com.google.inject.assistedinject.Assisted;
 import com.sun.identity.idm.AMIdentity;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.json.jose.exceptions.JweDecryptionException;
 import org.forgerock.json.jose.jwe.EncryptedJwt;
 import org.forgerock.json.jose.jwe.EncryptionMethod;
 import org.forgerock.json.jose.jwe.JweAlgorithm;
@@ -35,60 +39,98 @@ import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
 import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
 import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
 import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
-import org.forgerock.openam.secrets.Secrets;
-import org.forgerock.openam.shared.secrets.Labels;
-import org.forgerock.openam.utils.CollectionUtils;
 import org.forgerock.secrets.NoSuchSecretException;
-import org.forgerock.secrets.Purpose;
-import org.forgerock.secrets.SecretsProvider;
-import org.forgerock.secrets.keys.DataEncryptionKey;
-import org.forgerock.secrets.keys.KeyFormatRaw;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
 import static org.forgerock.json.JsonValue.*;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
-import static org.forgerock.secrets.Purpose.purpose;
 
 public class OathHelper {
     public static final String LIST_CLAIM_NAME = "list";
+    public static final String REGISTRATION_CLAIM_NAME = "reg";
+    private static final Striped<Lock> DEVICE_PROFILE_LOCKS = Striped.lock(64);
+    private final Logger logger = LoggerFactory.getLogger(OathHelper.class);
     private final UserOathDeviceProfileManager userOathDeviceProfileManager;
     private final CoreWrapper coreWrapper;
     private final Realm realm;
     private final JwtBuilderFactory jwtBuilderFactory;
-    private final Secrets secrets;
+    private final EncryptionKeyCache encryptionKeyCache;
     private final DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils;
-
-    private static final Purpose<DataEncryptionKey> AUTH_TREE_ENCRYPTION =
-            purpose(Labels.STATELESS_TOKEN_ENCRYPTION, DataEncryptionKey.class);
-
+    private final DeviceProfileCache deviceProfileCache;
+    private final DeviceProfileWriteBehind deviceProfileWriteBehind;
+    private final DeviceProfilePrefetcher deviceProfilePrefetcher;
+    private final DeviceProfileWriter deviceProfileWriter;
 
     @Inject
     public OathHelper(@Assisted Realm realm,
                       UserOathDeviceProfileManager userOathDeviceProfileManager,
                       CoreWrapper coreWrapper,
                       JwtBuilderFactory jwtBuilderFactory,
-                      Secrets secrets,
-                      DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils) {
+                      EncryptionKeyCache encryptionKeyCache,
+                      DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils,
+                      DeviceProfileCache deviceProfileCache,
+                      DeviceProfileWriteBehind deviceProfileWriteBehind,
+                      DeviceProfilePrefetcher deviceProfilePrefetcher,
+                      DeviceProfileWriter deviceProfileWriter) {
         this.realm = realm;
         this.userOathDeviceProfileManager = userOathDeviceProfileManager;
         this.coreWrapper = coreWrapper;
         this.jwtBuilderFactory = jwtBuilderFactory;
-        this.secrets = secrets;
+        this.encryptionKeyCache = encryptionKeyCache;
         this.deviceJsonUtils = deviceJsonUtils;
+        this.deviceProfileCache = deviceProfileCache;
+        this.deviceProfileWriteBehind = deviceProfileWriteBehind;
+        this.deviceProfilePrefetcher = deviceProfilePrefetcher;
+        this.deviceProfileWriter = deviceProfileWriter;
     }
 
     public String encryptOathDeviceSettings(OathDeviceSettings settings) throws IOException {
         return encrypt(deviceJsonUtils.toJsonValue(settings));
     }
 
+    /**
+     * Encrypts several device profiles for inclusion in a shared state.
+     *
+     * @param devices the device profiles
+     * @return the encrypted profiles
+     * @throws IOException if a profile cannot be encoded
+     */
+    public String encryptOathDevices(List<OathDeviceSettings> devices) throws IOException {
+        return encrypt(json(object(field(LIST_CLAIM_NAME, toJson(devices).getObject()))));
+    }
+
     public String encryptList(List list) {
         return encrypt(json(object(field(LIST_CLAIM_NAME, list))));
     }
 
+    /**
+     * Encrypts a new device profile together with the recovery codes to show, see {@link RegistrationEnvelope}.
+     *
+     * @param settings      the new device profile
+     * @param recoveryCodes the plain text recovery codes, may be empty
+     * @return the encrypted registration
+     * @throws IOException if the registration cannot be encoded
+     */
+    public String encryptRegistration(OathDeviceSettings settings, List<String> recoveryCodes) throws IOException {
+        return encrypt(json(object(field(REGISTRATION_CLAIM_NAME, RegistrationEnvelope.encode(settings, recoveryCodes)))));
+    }
+
     /**
      * Encrypt a payload for inclusion in a shared state.
      *
@@ -96,11 +138,10 @@ public class OathHelper {
      * @return the encrypted payload
      */
     public String encrypt(JsonValue payload) {
-        SecretsProvider provider = secrets.getRealmSecrets(realm);
-        DataEncryptionKey key;
+        OathEvent event = OathFlightRecorder.begin(OathEvent.JWE_ENCRYPT);
+        String outcome = OathEvent.ERROR;
         try {
-            key = provider.getActiveSecret(AUTH_TREE_ENCRYPTION).getOrThrowUninterruptibly();
-            return jwtBuilderFactory.jwe(key.export(KeyFormatRaw.INSTANCE))
+            String encrypted = jwtBuilderFactory.jwe(encryptionKeyCache.getActiveKey(realm))
                     .headers()
                     .alg(JweAlgorithm.DIRECT)
                     .enc(EncryptionMethod.A128CBC_HS256)
@@ -108,8 +149,12 @@ public class OathHelper {
                     .claims(new JwtClaimsSet(payload.asMap()))
                     .asJwt()
                     .build();
+            outcome = OathEvent.SUCCESS;
+            return encrypted;
         } catch (NoSuchSecretException e) {
             throw new IllegalStateException("No encryption found for AuthTrees", e);
+        } finally {
+            event.end(outcome);
         }
     }
 
@@ -117,36 +162,319 @@ public class OathHelper {
         return deviceJsonUtils.toDeviceSettingValue(decrypt(payload));
     }
 
+    /**
+     * Decrypts device profiles encrypted by {@link #encryptOathDevices(List)} or, for a single profile, by
+     * {@link #encryptOathDeviceSettings(OathDeviceSettings)}.
+     *
+     * @param payload the encrypted profiles
+     * @return the device profiles
+     * @throws IOException if a profile cannot be decoded
+     */
+    public List<OathDeviceSettings> decryptOathDevices(String payload) throws IOException {
+        JsonValue decrypted = decrypt(payload);
+        if (!decrypted.isDefined(LIST_CLAIM_NAME)) {
+            return singletonList(deviceJsonUtils.toDeviceSettingValue(decrypted));
+        }
+        return fromJson(decrypted.get(LIST_CLAIM_NAME));
+    }
+
     public List decryptList(String payload) {
         return decrypt(payload).get(LIST_CLAIM_NAME).asList();
     }
 
+    public RegistrationEnvelope decryptRegistration(String payload) throws IOException {
+        String encoded = decrypt(payload).get(REGISTRATION_CLAIM_NAME).asString();
+        if (encoded == null) {
+            throw new IOException("Registration payload is missing");
+        }
+        return RegistrationEnvelope.decode(encoded);
+    }
+
     /**
      * Decrypt an encrypted payload from a shared state.
+     * <p>
+     * The cached active key is tried first, then the other cached valid keys, so that payloads encrypted just before a
+     * secret rotation can still be read. Only if none of them fit are the realm's keys reloaded, in case the payload
+     * was encrypted with a key rotated in after they were cached.
      *
      * @param payload the payload to be decrypted
      * @return the decrypted payload
      */
     public JsonValue decrypt(String payload) {
-        SecretsProvider provider = secrets.getRealmSecrets(realm);
-        DataEncryptionKey key;
+        OathEvent event = OathFlightRecorder.begin(OathEvent.JWE_DECRYPT);
+        String outcome = OathEvent.ERROR;
         try {
-            key = provider.getActiveSecret(AUTH_TREE_ENCRYPTION).getOrThrowUninterruptibly();
             EncryptedJwt jwt = jwtBuilderFactory.reconstruct(payload, EncryptedJwt.class);
-            jwt.decrypt(key.export(KeyFormatRaw.INSTANCE));
-            return jwt.getClaimsSet().toJsonValue();
+            Key activeKey = encryptionKeyCache.getActiveKey(realm);
+            JsonValue decrypted;
+            try {
+                jwt.decrypt(activeKey);
+                decrypted = jwt.getClaimsSet().toJsonValue();
+            } catch (JweDecryptionException e) {
+                decrypted = decryptWithValidKeys(payload, activeKey, e);
+            }
+            outcome = OathEvent.SUCCESS;
+            return decrypted;
         } catch (NoSuchSecretException e) {
             throw new IllegalStateException("No encryption found for AuthTrees", e);
+        } finally {
+            event.end(outcome);
         }
     }
 
-    public OathDeviceSettings getOathDeviceSettings(TreeContext context) throws DevicePersistenceException {
-        List<OathDeviceSettings> deviceProfiles = userOathDeviceProfileManager.getDeviceProfiles(getUsername(context), getRealm(context));
-        return CollectionUtils.getFirstItem(deviceProfiles, null);
+    private JsonValue decryptWithValidKeys(String payload, Key activeKey, JweDecryptionException cause)
+            throws NoSuchSecretException {
+        Set<Key> tried = new HashSet<>(singleton(activeKey));
+        JsonValue decrypted = decryptWithUntriedKeys(payload, encryptionKeyCache.getValidKeys(realm), tried);
+        if (decrypted == null) {
+            decrypted = decryptWithUntriedKeys(payload, encryptionKeyCache.refresh(realm), tried);
+        }
+        if (decrypted == null) {
+            throw cause;
+        }
+        return decrypted;
+    }
+
+    private JsonValue decryptWithUntriedKeys(String payload, List<Key> keys, Set<Key> tried) {
+        for (Key key : keys) {
+            if (!tried.add(key)) {
+                continue;
+            }
+            EncryptedJwt jwt = jwtBuilderFactory.reconstruct(payload, EncryptedJwt.class);
+            try {
+                jwt.decrypt(key);
+                return jwt.getClaimsSet().toJsonValue();
+            } catch (JweDecryptionException e) {
+                // try the next valid key
+            }
+        }
+        return null;
+    }
+
+    private List<OathDeviceSettings> getDeviceProfiles(String username, String realm) throws DevicePersistenceException {
+        List<OathDeviceSettings> deviceProfiles = userOathDeviceProfileManager.getDeviceProfiles(username, realm);
+        if (username == null || realm == null) {
+            return deviceProfiles;
+        }
+        return deviceProfileWriteBehind.overlay(realm, username, deviceProfiles);
+    }
+
+    /**
+     * Reads all of the user's device profiles through the {@link DeviceProfileCache}. Profiles read ahead by the
+     * {@link DeviceProfilePrefetcher} are used first, as they are the most recent.
+     *
+     * @param context         the tree context holding the username and realm
+     * @param cacheTtlSeconds the maximum age of cached profiles, 0 bypasses the cache
+     * @return the device profiles, empty if the user has no device
+     * @throws DevicePersistenceException if the profiles could not be read from the identity store
+     */
+    public List<OathDeviceSettings> getOathDevices(TreeContext context, int cacheTtlSeconds)
+            throws DevicePersistenceException {
+        String username = getUsername(context);
+        String realm = getRealm(context);
+        if (username == null || realm == null) {
+            return nullToEmpty(getDeviceProfiles(username, realm));
+        }
+
+        List<OathDeviceSettings> prefetched = deviceProfilePrefetcher.take(realm, username);
+        if (prefetched != null) {
+            List<OathDeviceSettings> devices = deviceProfileWriteBehind.overlay(realm, username, prefetched);
+            if (cacheTtlSeconds > 0) {
+                cacheDevices(realm, username, devices);
+            }
+            return devices;
+        }
+        if (cacheTtlSeconds <= 0) {
+            return nullToEmpty(getDeviceProfiles(username, realm));
+        }
+
+        DeviceProfileCache.Entry entry = deviceProfileCache.get(realm, username, cacheTtlSeconds);
+        if (entry != null) {
+            if (!entry.isRegistered()) {
+                return emptyList();
+            }
+            try {
+                return fromJson(entry.getProfile());
+            } catch (IOException e) {
+                logger.warn("Cannot deserialize cached device profile", e);
+                deviceProfileCache.invalidate(realm, username);
+            }
+        }
+
+        List<OathDeviceSettings> devices = nullToEmpty(getDeviceProfiles(username, realm));
+        cacheDevices(realm, username, devices);
+        return devices;
     }
 
+    private void cacheDevices(String realm, String username, List<OathDeviceSettings> devices) {
+        try {
+            deviceProfileCache.put(realm, username, devices.isEmpty() ? null : toJson(devices));
+        } catch (IOException e) {
+            logger.warn("Cannot serialize device profile for caching", e);
+        }
+    }
+
+    private static List<OathDeviceSettings> nullToEmpty(List<OathDeviceSettings> devices) {
+        return devices == null ? emptyList() : devices;
+    }
+
+    private JsonValue toJson(List<OathDeviceSettings> devices) throws IOException {
+        JsonValue profiles = json(array());
+        for (OathDeviceSettings device : devices) {
+            profiles.add(deviceJsonUtils.toJsonValue(device).getObject());
+        }
+        return profiles;
+    }
+
+    private List<OathDeviceSettings> fromJson(JsonValue profiles) throws IOException {
+        List<OathDeviceSettings> devices = new ArrayList<>(profiles.size());
+        for (JsonValue profile : profiles) {
+            devices.add(deviceJsonUtils.toDeviceSettingValue(profile));
+        }
+        return devices;
+    }
+
+    /**
+     * Saves a device profile, replacing the user's profile with the same UUID or else adding it to the user's profiles.
+     *
+     * @param context        the tree context holding the username and realm
+     * @param deviceSettings the profile to save
+     * @throws DevicePersistenceException if the identity store could not be read or written
+     */
     public void saveOathDeviceSettings(TreeContext context, OathDeviceSettings deviceSettings) throws DevicePersistenceException {
-        userOathDeviceProfileManager.saveDeviceProfile(getUsername(context), getRealm(context), deviceSettings);
+        String username = getUsername(context);
+        String realm = getRealm(context);
+        Lock lock = deviceProfileLock(realm, username);
+        lock.lock();
+        try {
+            saveDevices(username, realm, DeviceProfileWriter.merge(getDeviceProfiles(username, realm), deviceSettings));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes all of the user's profiles, read with any pending write-behind update overlaid, so those are written too.
+     */
+    private void saveDevices(String username, String realm, List<OathDeviceSettings> devices)
+            throws DevicePersistenceException {
+        deviceProfileWriter.save(username, realm, devices);
+        if (username == null || realm == null) {
+            return;
+        }
+        // the pending updates were saved with the devices and must not overwrite them later
+        deviceProfileWriteBehind.discard(realm, username);
+        updateCachedProfiles(realm, username, devices);
+    }
+
+    private void updateCachedProfiles(String realm, String username, List<OathDeviceSettings> devices) {
+        try {
+            deviceProfileCache.update(realm, username, profiles -> {
+                try {
+                    return toJson(devices);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            logger.warn("Cannot update cached device profiles", e);
+            deviceProfileCache.invalidate(realm, username);
+        }
+    }
+
+    /**
+     * Saves a device profile unless it has been updated since it was read.
+     * <p>
+     * The stored profile with the same UUID is read back and compared against the expected version before writing. A
+     * profile not yet in the store (e.g. one just registered) is always saved. Saves for the same user are serialised
+     * within this server, so concurrent logins on one node never need a second attempt; across servers the check
+     * narrows the race to the read-back/write round-trip, which is as far as the device profile API allows.
+     * <p>
+     * Only the {@link DeviceProfileField}s that changed since {@code expected} are applied, on top of the profile read
+     * back from the store, so other fields updated elsewhere in the meantime (e.g. the device name) are not overwritten.
+     * Nothing is written at all if no field changed.
+     * <p>
+     * With {@code writeBehind} the profile is handed to the {@link DeviceProfileWriteBehind} queue instead of being
+     * written straight away, unless the queue is full. Pending updates take part in the version check, and a
+     * synchronous save writes and discards the pending updates of the user.
+     * <p>
+     * The user's other profiles are written back unchanged, as the identity store keeps all of a user's profiles in
+     * one attribute.
+     * <p>
+     * Every save therefore reads the user's profiles from the identity store, bypassing the {@link DeviceProfileCache},
+     * even when the profiles were just read for verification. With the cache or the prefetch node, a successful login
+     * still costs this one identity store read, inside the user's lock; {@code DeviceProfileSaveBenchmark} measures it.
+     * The round-trip is kept deliberately: the attribute written is built from what was read, so a cached or
+     * prefetched copy that missed a change made on another server would silently drop that change, and the version
+     * check would compare against a stale profile. The device profile API has no conditional write that could detect
+     * such a change without reading.
+     *
+     * @param context     the tree context holding the username and realm
+     * @param expected    the version of the profile that was verified against
+     * @param updated     the profile to save
+     * @param writeBehind whether the write may be deferred
+     * @throws DeviceProfileConflictException if the stored profile no longer matches the expected version
+     * @throws DevicePersistenceException if the identity store could not be read or written
+     */
+    public void saveOathDeviceSettings(TreeContext context, DeviceProfileVersion expected, OathDeviceSettings updated,
+                                       boolean writeBehind)
+            throws DeviceProfileConflictException, DevicePersistenceException {
+        String username = getUsername(context);
+        String realm = getRealm(context);
+        Lock lock = deviceProfileLock(realm, username);
+        lock.lock();
+        try {
+            List<OathDeviceSettings> devices = getDeviceProfiles(username, realm);
+            OathDeviceSettings stored = findByUuid(devices, updated.getUUID());
+            if (stored != null && !expected.matches(stored)) {
+                if (username != null && realm != null) {
+                    deviceProfileCache.invalidate(realm, username);
+                }
+                throw new DeviceProfileConflictException("Device profile changed since it was read, expected "
+                        + expected + " but found " + DeviceProfileVersion.of(stored), stored);
+            }
+            OathDeviceSettings toSave = updated;
+            if (stored != null) {
+                Set<DeviceProfileField> changes = expected.changedFields(updated);
+                if (changes.isEmpty()) {
+                    logger.debug("Device profile unchanged, skipping save");
+                    return;
+                }
+                logger.debug("Saving changed device profile fields {}", changes);
+                for (DeviceProfileField field : changes) {
+                    field.copy(updated, stored);
+                }
+                toSave = stored;
+            }
+            List<OathDeviceSettings> merged = DeviceProfileWriter.merge(devices, toSave);
+            if (writeBehind && username != null && realm != null
+                    && deviceProfileWriteBehind.enqueue(realm, username, toSave)) {
+                updateCachedProfiles(realm, username, merged);
+                return;
+            }
+            saveDevices(username, realm, merged);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private OathDeviceSettings findByUuid(List<OathDeviceSettings> deviceProfiles, String uuid) {
+        if (deviceProfiles == null) {
+            return null;
+        }
+        for (OathDeviceSettings deviceProfile : deviceProfiles) {
+            if (Objects.equals(deviceProfile.getUUID(), uuid)) {
+                return deviceProfile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the lock that serialises the device profile saves of a user within this server
+     */
+    public static Lock deviceProfileLock(String realm, String username) {
+        return DEVICE_PROFILE_LOCKS.get(realm + '/' + username);
     }
 
     public OathDeviceSettings createDeviceProfile(int minSharedSecretLength) {
@@ -0,0 +1,190 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the registration node hands over to the verifier node: the new device profile and the recovery codes to show
+ * once the device is verified, in one compact binary payload so that they travel in a single JWE.
+ * <p>
+ * The payload starts with a version byte, followed by the length-prefixed profile section and the recovery code
+ * section. Each section is only decoded when it is first asked for.
+ */
+public final class RegistrationEnvelope {
+    static final int VERSION = 1;
+
+    private final byte[] payload;
+    private final int profileOffset;
+    private final int profileLength;
+    private OathDeviceSettings deviceSettings;
+    private List<String> recoveryCodes;
+
+    private RegistrationEnvelope(byte[] payload, int profileOffset, int profileLength) {
+        this.payload = payload;
+        this.profileOffset = profileOffset;
+        this.profileLength = profileLength;
+    }
+
+    /**
+     * Encodes a new registration.
+     *
+     * @param settings      the device profile
+     * @param recoveryCodes the plain text recovery codes to show, may be empty
+     * @return the base64url encoded payload
+     */
+    public static String encode(OathDeviceSettings settings, List<String> recoveryCodes) throws IOException {
+        ByteArrayOutputStream profile = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(profile)) {
+            writeNullable(out, settings.getUUID());
+            writeNullable(out, settings.getDeviceName());
+            writeNullable(out, settings.getSharedSecret());
+            out.writeLong(settings.getLastLogin());
+            out.writeInt(settings.getCounter());
+            out.writeBoolean(settings.getChecksumDigit());
+            out.writeInt(settings.getTruncationOffset());
+            out.writeInt(settings.getClockDriftSeconds());
+            writeList(out, settings.getRecoveryCodes());
+        }
+
+        ByteArrayOutputStream envelope = new ByteArrayOutputStream(profile.size() + 128);
+        try (DataOutputStream out = new DataOutputStream(envelope)) {
+            out.writeByte(VERSION);
+            out.writeInt(profile.size());
+            profile.writeTo(out);
+            writeList(out, recoveryCodes);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(envelope.toByteArray());
+    }
+
+    /**
+     * Reads the header of an encoded registration, leaving the sections to be decoded on demand.
+     *
+     * @param encoded as returned by {@link #encode(OathDeviceSettings, List)}
+     * @return the registration
+     * @throws IOException if the payload is malformed or of an unknown version
+     */
+    public static RegistrationEnvelope decode(String encoded) throws IOException {
+        byte[] payload;
+        try {
+            payload = Base64.getUrlDecoder().decode(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Registration payload is not base64url encoded", e);
+        }
+        if (payload.length < 5) {
+            throw new IOException("Registration payload is truncated");
+        }
+        if (payload[0] != VERSION) {
+            throw new IOException("Unsupported registration payload version " + payload[0]);
+        }
+        int profileLength = ((payload[1] & 0xff) << 24) | ((payload[2] & 0xff) << 16) | ((payload[3] & 0xff) << 8)
+                | (payload[4] & 0xff);
+        if (profileLength < 0 || profileLength > payload.length - 5) {
+            throw new IOException("Registration payload is truncated");
+        }
+        return new RegistrationEnvelope(payload, 5, profileLength);
+    }
+
+    /**
+     * @return the device profile
+     * @throws IOException if the profile section is malformed
+     */
+    public OathDeviceSettings getDeviceSettings() throws IOException {
+        if (deviceSettings == null) {
+            try (DataInputStream in = section(profileOffset, profileLength)) {
+                OathDeviceSettings settings = new OathDeviceSettings();
+                settings.setUUID(readNullable(in));
+                settings.setDeviceName(readNullable(in));
+                settings.setSharedSecret(readNullable(in));
+                settings.setLastLogin(in.readLong(), TimeUnit.SECONDS);
+                settings.setCounter(in.readInt());
+                settings.setChecksumDigit(in.readBoolean());
+                settings.setTruncationOffset(in.readInt());
+                settings.setClockDriftSeconds(in.readInt());
+                settings.setRecoveryCodes(readList(in));
+                deviceSettings = settings;
+            }
+        }
+        return deviceSettings;
+    }
+
+    /**
+     * @return the plain text recovery codes to show, empty if none were generated
+     * @throws IOException if the recovery code section is malformed
+     */
+    public List<String> getRecoveryCodes() throws IOException {
+        if (recoveryCodes == null) {
+            int offset = profileOffset + profileLength;
+            try (DataInputStream in = section(offset, payload.length - offset)) {
+                recoveryCodes = readList(in);
+            }
+        }
+        return recoveryCodes;
+    }
+
+    private DataInputStream section(int offset, int length) {
+        return new DataInputStream(new ByteArrayInputStream(payload, offset, length));
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeList(DataOutputStream out, List<String> values) throws IOException {
+        if (values == null) {
+            out.writeShort(0);
+            return;
+        }
+        out.writeShort(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int size = in.readUnsignedShort();
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(in.readUTF());
+        }
+        return values;
+    }
+}
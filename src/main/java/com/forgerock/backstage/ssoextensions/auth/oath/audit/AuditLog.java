@@ -0,0 +1,257 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.FailureReason;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNodeOutcomeProvider.OATHOutcome;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+
+/**
+ * An append-only log of verification events, in memory-mapped segment files of fixed size {@link AuditRecord}s.
+ * <p>
+ * Request threads encode their record into a ring buffer and return; they never wait for the file. Slots are claimed
+ * with a compare-and-set, and a record that finds the ring full is dropped and counted instead of blocking the login.
+ * A single writer thread copies the records in order into the current segment, starts a new segment when it is full,
+ * deletes the oldest segments beyond the retained number, and forces the segment to disk every
+ * {@link #FORCE_INTERVAL_MILLIS}. When the ring is empty the writer parks until a request thread publishes a record,
+ * or until the next force is due. Segments can be decoded with {@link AuditLogReader}.
+ */
+public class AuditLog implements Closeable {
+    /** 65536 records, 4 MiB per segment. */
+    static final int SEGMENT_RECORDS = 1 << 16;
+    static final int RING_RECORDS = 1 << 14;
+    static final long FORCE_INTERVAL_MILLIS = 1000;
+    private static final long FORCE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(FORCE_INTERVAL_MILLIS);
+
+    private final Logger logger = LoggerFactory.getLogger(AuditLog.class);
+    private final Path directory;
+    private final int segmentRecords;
+    private final int ringMask;
+    private final ByteBuffer ring;
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile int retainedSegments;
+    private volatile boolean closed;
+    private volatile boolean writerIdle;
+    private AuditSegment segment;
+
+    /**
+     * Opens an audit log, starting a new segment in the directory.
+     *
+     * @param directory        the directory of the segments, created if it does not exist
+     * @param retainedSegments the number of segments to keep
+     * @throws IOException if the first segment cannot be created
+     */
+    public AuditLog(Path directory, int retainedSegments) throws IOException {
+        this(directory, retainedSegments, SEGMENT_RECORDS, RING_RECORDS);
+    }
+
+    @VisibleForTesting
+    AuditLog(Path directory, int retainedSegments, int segmentRecords, int ringRecords) throws IOException {
+        if (Integer.bitCount(ringRecords) != 1) {
+            throw new IllegalArgumentException("The ring size must be a power of two");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.retainedSegments = Math.max(1, retainedSegments);
+        this.segmentRecords = segmentRecords;
+        this.ringMask = ringRecords - 1;
+        this.ring = ByteBuffer.allocate(ringRecords * AuditRecord.BYTES);
+        this.published = new AtomicLongArray(ringRecords);
+        for (int slot = 0; slot < ringRecords; slot++) {
+            published.set(slot, -1);
+        }
+        this.segment = AuditSegment.create(directory, segmentRecords);
+        deleteExpiredSegments();
+        writer = new Thread(this::write, "oath-audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a verification event, unless the ring is full or the log closed.
+     *
+     * @param realm         the user's realm
+     * @param username      the username, which is only stored hashed
+     * @param outcome       the outcome the verifier went to
+     * @param failureReason why the verification failed, or null
+     * @param matchedOffset the offset of the matching step or counter, 0 if none matched
+     * @param latencyNanos  the time the verifier took
+     * @return whether the event was queued
+     */
+    public boolean append(String realm, String username, OATHOutcome outcome, FailureReason failureReason,
+                          int matchedOffset, long latencyNanos) {
+        // everything that can fail is done before claiming a slot, as the writer waits for every claimed slot
+        Objects.requireNonNull(outcome);
+        long timestamp = currentTimeMillis();
+        long userHash = AuditRecord.userHash(realm, username);
+        byte[] realmBytes = AuditRecord.realmBytes(realm);
+        int latencyMicros = (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        long sequence;
+        do {
+            sequence = head.get();
+            if (closed || sequence - tail.get() > ringMask) {
+                dropped.increment();
+                return false;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & ringMask);
+        AuditRecord.encode(ring, slot * AuditRecord.BYTES, timestamp, userHash, realmBytes, outcome, failureReason,
+                matchedOffset, latencyMicros);
+        // a full store, so that either the writer sees the record or this thread sees the writer idle
+        published.set(slot, sequence);
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * @param retainedSegments the number of segments to keep, including the current one
+     */
+    public void setRetainedSegments(int retainedSegments) {
+        int retained = Math.max(1, retainedSegments);
+        if (this.retainedSegments != retained) {
+            this.retainedSegments = retained;
+        }
+    }
+
+    /**
+     * @return the number of events dropped because the writer fell behind
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of events written to the segments
+     */
+    public long getWrittenCount() {
+        return tail.get();
+    }
+
+    private void write() {
+        long lastForce = System.nanoTime();
+        boolean unforced = false;
+        while (!closed || tail.get() < head.get()) {
+            if (unforced && System.nanoTime() - lastForce > FORCE_INTERVAL_NANOS) {
+                force();
+                lastForce = System.nanoTime();
+                unforced = false;
+            }
+            long sequence = tail.get();
+            int slot = (int) (sequence & ringMask);
+            if (published.get(slot) == sequence) {
+                try {
+                    copy(slot * AuditRecord.BYTES);
+                    unforced = true;
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Could not write to the audit log in {}", directory, e);
+                }
+                tail.lazySet(sequence + 1);
+                continue;
+            }
+            if (sequence < head.get()) {
+                // claimed, about to be published
+                Thread.yield();
+                continue;
+            }
+            writerIdle = true;
+            if (published.get(slot) != sequence && !closed) {
+                long untilForce = lastForce + FORCE_INTERVAL_NANOS - System.nanoTime();
+                LockSupport.parkNanos(this, unforced ? Math.max(untilForce, 1) : FORCE_INTERVAL_NANOS);
+            }
+            writerIdle = false;
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the audit log segment in {}", directory, e);
+        }
+    }
+
+    private void force() {
+        try {
+            segment.force();
+        } catch (RuntimeException e) {
+            logger.warn("Could not force the audit log segment in {} to disk", directory, e);
+        }
+    }
+
+    private void copy(int from) throws IOException {
+        if (segment.isFull()) {
+            segment.close();
+            segment = AuditSegment.create(directory, segmentRecords);
+            deleteExpiredSegments();
+        }
+        ByteBuffer buffer = segment.buffer();
+        int to = segment.next();
+        // the timestamp goes last, as a zero timestamp marks the end of the segment for concurrent readers
+        for (int i = Long.BYTES; i < AuditRecord.BYTES; i += Long.BYTES) {
+            buffer.putLong(to + i, ring.getLong(from + i));
+        }
+        buffer.putLong(to, ring.getLong(from));
+    }
+
+    private void deleteExpiredSegments() {
+        try {
+            List<Path> segments = AuditSegment.list(directory);
+            for (int i = 0; i < segments.size() - retainedSegments; i++) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        } catch (IOException e) {
+            logger.warn("Could not delete old audit log segments in {}", directory, e);
+        }
+    }
+
+    /**
+     * Stops accepting events, and waits for the queued ones to be written.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
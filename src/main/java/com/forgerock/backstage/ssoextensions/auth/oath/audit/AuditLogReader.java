@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes audit log segments.
+ * <p>
+ * From the command line it prints the records of the given segment files, or of all segments in the given directories,
+ * as tab separated lines of timestamp, user hash, realm, outcome, failure reason, matched offset and latency in
+ * microseconds:
+ * <pre>
+ * java -cp &lt;classpath&gt; com.forgerock.backstage.ssoextensions.auth.oath.audit.AuditLogReader \
+ *     [--user &lt;realm&gt; &lt;username&gt;] &lt;segment or directory&gt;...
+ * </pre>
+ * With {@code --user} only the records of that user are printed.
+ */
+public final class AuditLogReader {
+
+    private AuditLogReader() {
+    }
+
+    public static void main(String... args) throws IOException {
+        Long userHash = null;
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--user".equals(args[i]) && i + 2 < args.length) {
+                userHash = AuditRecord.userHash(args[i + 1], args[i + 2]);
+                i += 2;
+            } else {
+                paths.add(Paths.get(args[i]));
+            }
+        }
+        if (paths.isEmpty()) {
+            System.err.println("Usage: AuditLogReader [--user <realm> <username>] <segment or directory>...");
+            System.exit(1);
+        }
+        for (Path path : paths) {
+            for (AuditRecord record : read(path)) {
+                if (userHash == null || record.getUserHash() == userHash) {
+                    System.out.println(record);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a segment, or all segments of an audit log directory, oldest first.
+     *
+     * @param path a segment file or the directory of an audit log
+     * @return the records
+     * @throws IOException if a segment cannot be read
+     */
+    public static List<AuditRecord> read(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return AuditSegment.read(path);
+        }
+        List<AuditRecord> records = new ArrayList<>();
+        for (Path segment : AuditSegment.list(path)) {
+            records.addAll(AuditSegment.read(segment));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import com.google.common.base.Strings;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.thread.listener.ShutdownManager;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+
+/**
+ * The audit logs of this AM server, opened on first use and shared by all nodes that log to the same directory.
+ * <p>
+ * A directory whose log cannot be opened is not tried again for {@link #RETRY_INTERVAL_MILLIS}, so a misconfigured
+ * directory costs one failed attempt, and one warning, per interval rather than per login.
+ */
+@Singleton
+public class AuditLogs {
+    static final long RETRY_INTERVAL_MILLIS = 60000;
+
+    private final ConcurrentMap<Path, AuditLog> logs = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path, Long> failures = new ConcurrentHashMap<>();
+    private final long retryIntervalMillis;
+
+    @Inject
+    public AuditLogs(ShutdownManager shutdownManager) {
+        this(shutdownManager, RETRY_INTERVAL_MILLIS);
+    }
+
+    @VisibleForTesting
+    AuditLogs(ShutdownManager shutdownManager, long retryIntervalMillis) {
+        this.retryIntervalMillis = retryIntervalMillis;
+        shutdownManager.addShutdownListener(this::shutdown);
+    }
+
+    /**
+     * Gets the audit log of a directory.
+     *
+     * @param directory        the directory, or empty for none
+     * @param retainedSegments the number of segments to keep
+     * @return the audit log, or null if the directory is empty or its log failed to open within the retry interval
+     * @throws UncheckedIOException if the audit log cannot be opened
+     */
+    public AuditLog get(String directory, int retainedSegments) {
+        if (Strings.isNullOrEmpty(directory)) {
+            return null;
+        }
+        Path path = Paths.get(directory).toAbsolutePath();
+        AuditLog log = logs.get(path);
+        if (log == null) {
+            Long failedAt = failures.get(path);
+            if (failedAt != null && currentTimeMillis() - failedAt < retryIntervalMillis) {
+                return null;
+            }
+            try {
+                log = logs.computeIfAbsent(path, absent -> open(absent, retainedSegments));
+            } catch (UncheckedIOException e) {
+                failures.put(path, currentTimeMillis());
+                throw e;
+            }
+            failures.remove(path);
+        }
+        log.setRetainedSegments(retainedSegments);
+        return log;
+    }
+
+    private static AuditLog open(Path directory, int retainedSegments) {
+        try {
+            return new AuditLog(directory, retainedSegments);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the audit log in " + directory, e);
+        }
+    }
+
+    private void shutdown() {
+        for (AuditLog log : logs.values()) {
+            log.close();
+        }
+        logs.clear();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.FailureReason;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNodeOutcomeProvider.OATHOutcome;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * A verification event in the audit log.
+ * <p>
+ * Each record takes {@link #BYTES} bytes, big endian:
+ * <pre>
+ *  0  long  timestamp, in milliseconds since the epoch
+ *  8  long  user hash, see {@link #userHash(String, String)}
+ * 16  int   latency, in microseconds
+ * 20  int   matched offset
+ * 24  byte  outcome, the ordinal of {@link OATHOutcome}
+ * 25  byte  failure reason, the ordinal of {@link FailureReason} plus one, or zero
+ * 26  byte  length of the realm
+ * 27  byte  unused
+ * 28  byte[{@value #REALM_BYTES}] realm, UTF-8, cut at {@value #REALM_BYTES} bytes
+ * </pre>
+ * New outcomes and failure reasons must be appended to their enums so that older records keep their meaning.
+ */
+public final class AuditRecord {
+    /** The size of a record. */
+    public static final int BYTES = 64;
+    static final int REALM_BYTES = 36;
+
+    private final long timestamp;
+    private final long userHash;
+    private final String realm;
+    private final OATHOutcome outcome;
+    private final FailureReason failureReason;
+    private final int matchedOffset;
+    private final int latencyMicros;
+
+    AuditRecord(long timestamp, long userHash, String realm, OATHOutcome outcome, FailureReason failureReason,
+                int matchedOffset, int latencyMicros) {
+        this.timestamp = timestamp;
+        this.userHash = userHash;
+        this.realm = realm;
+        this.outcome = outcome;
+        this.failureReason = failureReason;
+        this.matchedOffset = matchedOffset;
+        this.latencyMicros = latencyMicros;
+    }
+
+    /**
+     * Hashes a user for the audit log, so that the log does not disclose who logged in but the events of a known user
+     * can still be found.
+     *
+     * @param realm    the user's realm
+     * @param username the username
+     * @return the first eight bytes of the SHA-256 hash of the realm and username
+     */
+    public static long userHash(String realm, String username) {
+        return Hashing.sha256().newHasher()
+                .putString(String.valueOf(realm), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(username), StandardCharsets.UTF_8)
+                .hash().asLong();
+    }
+
+    static byte[] realmBytes(String realm) {
+        byte[] bytes = String.valueOf(realm).getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= REALM_BYTES ? bytes : Arrays.copyOf(bytes, REALM_BYTES);
+    }
+
+    static void encode(ByteBuffer buffer, int at, long timestamp, long userHash, byte[] realm, OATHOutcome outcome,
+                       FailureReason failureReason, int matchedOffset, int latencyMicros) {
+        buffer.putLong(at, timestamp)
+                .putLong(at + 8, userHash)
+                .putInt(at + 16, latencyMicros)
+                .putInt(at + 20, matchedOffset)
+                .put(at + 24, (byte) outcome.ordinal())
+                .put(at + 25, (byte) (failureReason == null ? 0 : failureReason.ordinal() + 1))
+                .put(at + 26, (byte) realm.length)
+                .put(at + 27, (byte) 0);
+        for (int i = 0; i < REALM_BYTES; i++) {
+            buffer.put(at + 28 + i, i < realm.length ? realm[i] : 0);
+        }
+    }
+
+    /**
+     * @return the record at the given position, or null if there is none as the timestamp is zero
+     */
+    static AuditRecord decode(ByteBuffer buffer, int at) {
+        long timestamp = buffer.getLong(at);
+        if (timestamp == 0) {
+            return null;
+        }
+        byte[] realm = new byte[Math.min(REALM_BYTES, buffer.get(at + 26) & 0xff)];
+        for (int i = 0; i < realm.length; i++) {
+            realm[i] = buffer.get(at + 28 + i);
+        }
+        int reason = buffer.get(at + 25) & 0xff;
+        return new AuditRecord(timestamp, buffer.getLong(at + 8), new String(realm, StandardCharsets.UTF_8),
+                OATHOutcome.values()[buffer.get(at + 24) & 0xff],
+                reason == 0 ? null : FailureReason.values()[reason - 1],
+                buffer.getInt(at + 20), buffer.getInt(at + 16));
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getUserHash() {
+        return userHash;
+    }
+
+    /**
+     * @return the realm, cut at {@value #REALM_BYTES} bytes
+     */
+    public String getRealm() {
+        return realm;
+    }
+
+    public OATHOutcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return why the verification failed, or null
+     */
+    public FailureReason getFailureReason() {
+        return failureReason;
+    }
+
+    public int getMatchedOffset() {
+        return matchedOffset;
+    }
+
+    public int getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    /**
+     * @return the record as a tab separated line
+     */
+    @Override
+    public String toString() {
+        return Instant.ofEpochMilli(timestamp) + "\t" + String.format("%016x", userHash) + "\t" + realm + "\t"
+                + outcome + "\t" + (failureReason == null ? "-" : failureReason) + "\t" + matchedOffset + "\t"
+                + latencyMicros;
+    }
+}
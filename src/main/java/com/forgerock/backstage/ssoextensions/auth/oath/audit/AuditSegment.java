@@ -0,0 +1,155 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+
+/**
+ * A segment file of the audit log: a {@link #HEADER_BYTES} header holding a magic number, the file format version and
+ * the record size, followed by a fixed number of {@link AuditRecord#BYTES} byte records. The file is created at its
+ * full size and filled from the start, so the first record with a zero timestamp marks the end.
+ */
+final class AuditSegment implements Closeable {
+    static final long MAGIC = 0x4F41544841554454L; // "OATHAUDT"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final String PREFIX = "oath-audit-";
+    static final String SUFFIX = ".seg";
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private int count;
+
+    private AuditSegment(FileChannel channel, MappedByteBuffer buffer, int capacity) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates a new segment, named after the current time.
+     *
+     * @param directory the directory of the audit log
+     * @param capacity  the number of records
+     * @return the segment
+     * @throws IOException if the file cannot be created
+     */
+    static AuditSegment create(Path directory, int capacity) throws IOException {
+        FileChannel channel = null;
+        for (long name = currentTimeMillis(); channel == null; name++) {
+            try {
+                channel = FileChannel.open(directory.resolve(String.format("%s%013d%s", PREFIX, name, SUFFIX)),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                // a segment was created in the same millisecond
+            }
+        }
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_BYTES + (long) capacity * AuditRecord.BYTES);
+            buffer.putLong(0, MAGIC).putInt(8, VERSION).putInt(12, AuditRecord.BYTES);
+            return new AuditSegment(channel, buffer, capacity);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the segment files of an audit log, oldest first
+     * @throws IOException if the directory cannot be listed
+     */
+    static List<Path> list(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Reads the records of a segment file.
+     *
+     * @param file the segment file
+     * @return the records, in the order they were written
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    static List<AuditRecord> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_BYTES || buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION
+                    || buffer.getInt(12) != AuditRecord.BYTES) {
+                throw new IOException("Not an audit log segment: " + file);
+            }
+            List<AuditRecord> records = new ArrayList<>();
+            for (int at = HEADER_BYTES; at + AuditRecord.BYTES <= buffer.limit(); at += AuditRecord.BYTES) {
+                AuditRecord record = AuditRecord.decode(buffer, at);
+                if (record == null) {
+                    break;
+                }
+                records.add(record);
+            }
+            return records;
+        }
+    }
+
+    boolean isFull() {
+        return count == capacity;
+    }
+
+    /**
+     * @return the position of the next record, which the caller has to fill
+     */
+    int next() {
+        return HEADER_BYTES + count++ * AuditRecord.BYTES;
+    }
+
+    MappedByteBuffer buffer() {
+        return buffer;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
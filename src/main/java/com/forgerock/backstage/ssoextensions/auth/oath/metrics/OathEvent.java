@@ -0,0 +1,84 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.metrics;
+
+/**
+ * A Java Flight Recorder event around one phase of the OATH nodes, started by {@link OathFlightRecorder#begin}.
+ * <p>
+ * The setters return the event so that it can be filled in where it is started. An event that is not recorded, because
+ * the JVM has no flight recorder or the event is disabled, is {@link #NONE}, on which every call is a no-op.
+ */
+public interface OathEvent {
+    /** The phase of {@link com.forgerock.backstage.ssoextensions.auth.oath.OathHelper#encrypt}. */
+    String JWE_ENCRYPT = "JWE_ENCRYPT";
+    /** The phase of {@link com.forgerock.backstage.ssoextensions.auth.oath.OathHelper#decrypt}. */
+    String JWE_DECRYPT = "JWE_DECRYPT";
+    /** The outcome of a phase that completed. */
+    String SUCCESS = "SUCCESS";
+    /** The outcome of a phase that failed with an unexpected exception. */
+    String ERROR = "ERROR";
+
+    /** The event that is not recorded. */
+    OathEvent NONE = new OathEvent() {
+        @Override
+        public OathEvent algorithm(String algorithm) {
+            return this;
+        }
+
+        @Override
+        public OathEvent windowSize(int windowSize) {
+            return this;
+        }
+
+        @Override
+        public OathEvent steps(int steps) {
+            return this;
+        }
+
+        @Override
+        public void end(String outcome) {
+        }
+    };
+
+    /**
+     * @param algorithm the OATH algorithm of the node
+     * @return this event
+     */
+    OathEvent algorithm(String algorithm);
+
+    /**
+     * @param windowSize the configured window of the node: the HOTP window size or the TOTP steps in the window
+     * @return this event
+     */
+    OathEvent windowSize(int windowSize);
+
+    /**
+     * @param steps the number of steps or counters the OTP was checked against
+     * @return this event
+     */
+    OathEvent steps(int steps);
+
+    /**
+     * Ends the phase and records the event, if it lasted longer than the threshold of the recording.
+     *
+     * @param outcome {@link #SUCCESS}, {@link #ERROR} or the failure reason
+     */
+    void end(String outcome);
+}
@@ -0,0 +1,49 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.metrics;
+
+/**
+ * Starts the Java Flight Recorder events of the OATH nodes.
+ * <p>
+ * This is the Java 8 version, which records nothing. On Java 11 and later the multi-release jar provides a version
+ * that records {@code com.forgerock.oath.Phase} events whenever a recording enables them.
+ */
+public final class OathFlightRecorder {
+
+    private OathFlightRecorder() {
+    }
+
+    /**
+     * @return whether the events are recorded on this JVM
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Starts the event of a phase.
+     *
+     * @param phase the phase name, an {@link OathPhase} or one of the {@link OathEvent} phases
+     * @return the started event, or {@link OathEvent#NONE} if it is not recorded
+     */
+    public static OathEvent begin(String phase) {
+        return OathEvent.NONE;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of {@link OathMetricsSink}s the OATH nodes report to.
+ * <p>
+ * The built-in {@link OathStatistics} is always registered and published over JMX, where AM's monitoring (or any JMX
+ * client) can read it. Further sinks, e.g. bridges to a metrics library, are picked up through
+ * {@link ServiceLoader} or registered at runtime.
+ */
+@Singleton
+public class OathMetrics {
+    private static final Logger logger = LoggerFactory.getLogger(OathMetrics.class);
+
+    private final OathStatistics statistics = new OathStatistics();
+    private final List<OathMetricsSink> sinks = new CopyOnWriteArrayList<>();
+
+    public OathMetrics() {
+        sinks.add(statistics);
+        for (OathMetricsSink sink : ServiceLoader.load(OathMetricsSink.class, OathMetrics.class.getClassLoader())) {
+            sinks.add(sink);
+        }
+        publish(OathStatistics.OBJECT_NAME, statistics);
+    }
+
+    /**
+     * Adds a sink that receives every measurement from now on.
+     *
+     * @param sink the sink
+     */
+    public void register(OathMetricsSink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * @return the built-in statistics
+     */
+    public OathStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Marks the start of a phase.
+     *
+     * @return the start time to pass to {@link #stop(OathPhase, long)}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the end of a phase.
+     *
+     * @param phase the phase
+     * @param start the value returned by {@link #start()}
+     */
+    public void stop(OathPhase phase, long start) {
+        long nanos = System.nanoTime() - start;
+        for (OathMetricsSink sink : sinks) {
+            sink.phase(phase, nanos);
+        }
+    }
+
+    public void outcome(String outcome) {
+        for (OathMetricsSink sink : sinks) {
+            sink.outcome(outcome);
+        }
+    }
+
+    public void failure(String reason) {
+        for (OathMetricsSink sink : sinks) {
+            sink.failure(reason);
+        }
+    }
+
+    public void windowOffset(int offset) {
+        for (OathMetricsSink sink : sinks) {
+            sink.windowOffset(offset);
+        }
+    }
+
+    /**
+     * Publishes an MXBean over JMX, replacing one already registered under the same name.
+     *
+     * @param objectName the JMX object name
+     * @param mxBean     the MXBean
+     */
+    public void publish(String objectName, Object mxBean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mxBean, name);
+        } catch (JMException | SecurityException e) {
+            logger.warn("Cannot publish {} over JMX", objectName, e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the built-in OATH node statistics, published as {@value OathStatistics#OBJECT_NAME}.
+ */
+public interface OathMetricsMXBean {
+
+    /**
+     * @return the number of times each phase ran, by phase name
+     */
+    Map<String, Long> getPhaseCounts();
+
+    /**
+     * @return the total time spent in each phase in microseconds, by phase name
+     */
+    Map<String, Long> getPhaseTotalMicros();
+
+    /**
+     * @return the longest single run of each phase in microseconds, by phase name
+     */
+    Map<String, Long> getPhaseMaxMicros();
+
+    /**
+     * @return the number of times each verifier outcome was reached, by outcome name
+     */
+    Map<String, Long> getOutcomes();
+
+    /**
+     * @return the number of failed verifications, by failure reason
+     */
+    Map<String, Long> getFailureReasons();
+
+    /**
+     * @return the number of successful verifications, by matched window offset
+     */
+    Map<String, Long> getWindowOffsets();
+}
@@ -0,0 +1,58 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.metrics;
+
+/**
+ * Receives the measurements taken by the OATH nodes.
+ * <p>
+ * Implementations are called on the request thread and must be cheap and thread safe. They are either registered
+ * with {@link OathMetrics#register(OathMetricsSink)} or discovered through {@link java.util.ServiceLoader}.
+ */
+public interface OathMetricsSink {
+
+    /**
+     * Records the duration of a phase.
+     *
+     * @param phase the phase
+     * @param nanos the duration in nanoseconds
+     */
+    void phase(OathPhase phase, long nanos);
+
+    /**
+     * Records the outcome the verifier node went to.
+     *
+     * @param outcome the outcome name
+     */
+    void outcome(String outcome);
+
+    /**
+     * Records why a verification failed.
+     *
+     * @param reason the failure reason name
+     */
+    void failure(String reason);
+
+    /**
+     * Records the offset of the matching step or counter after a successful verification.
+     *
+     * @param offset the offset from the expected step or counter
+     */
+    void windowOffset(int offset);
+}
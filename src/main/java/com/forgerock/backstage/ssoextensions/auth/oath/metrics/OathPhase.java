@@ -0,0 +1,38 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.metrics;
+
+/**
+ * The timed phases of the OATH nodes.
+ */
+public enum OathPhase {
+    /** Reading the device profile from the identity store (or the device profile cache). */
+    PROFILE_LOAD,
+    /** Decrypting a device profile carried in the shared state. */
+    SHARED_STATE_DECRYPT,
+    /** Computing and comparing OTPs across the window. */
+    OTP_COMPUTATION,
+    /** Recording the accepted OTP in the replay store. */
+    REPLAY_CHECK,
+    /** Saving the updated device profile. */
+    SAVE,
+    /** Encrypting the new device profile and recovery codes into the shared state during registration. */
+    REGISTRATION_ENCRYPT
+}
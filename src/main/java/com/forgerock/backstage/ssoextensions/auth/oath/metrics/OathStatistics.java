@@ -0,0 +1,122 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The built-in {@link OathMetricsSink}, keeping running totals in striped counters.
+ */
+public final class OathStatistics implements OathMetricsSink, OathMetricsMXBean {
+    public static final String OBJECT_NAME = "com.forgerock.backstage.ssoextensions.auth.oath:type=OathMetrics";
+
+    private final LongAdder[] phaseCounts = new LongAdder[OathPhase.values().length];
+    private final LongAdder[] phaseNanos = new LongAdder[OathPhase.values().length];
+    private final LongAccumulator[] phaseMaxNanos = new LongAccumulator[OathPhase.values().length];
+    private final ConcurrentMap<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> failureReasons = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, LongAdder> windowOffsets = new ConcurrentHashMap<>();
+
+    public OathStatistics() {
+        for (int i = 0; i < phaseCounts.length; i++) {
+            phaseCounts[i] = new LongAdder();
+            phaseNanos[i] = new LongAdder();
+            phaseMaxNanos[i] = new LongAccumulator(Math::max, 0);
+        }
+    }
+
+    @Override
+    public void phase(OathPhase phase, long nanos) {
+        phaseCounts[phase.ordinal()].increment();
+        phaseNanos[phase.ordinal()].add(nanos);
+        phaseMaxNanos[phase.ordinal()].accumulate(nanos);
+    }
+
+    @Override
+    public void outcome(String outcome) {
+        outcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void failure(String reason) {
+        failureReasons.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void windowOffset(int offset) {
+        windowOffsets.computeIfAbsent(offset, key -> new LongAdder()).increment();
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        for (OathPhase phase : OathPhase.values()) {
+            result.put(phase.name(), phaseCounts[phase.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseTotalMicros() {
+        Map<String, Long> result = new TreeMap<>();
+        for (OathPhase phase : OathPhase.values()) {
+            result.put(phase.name(), TimeUnit.NANOSECONDS.toMicros(phaseNanos[phase.ordinal()].sum()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMaxMicros() {
+        Map<String, Long> result = new TreeMap<>();
+        for (OathPhase phase : OathPhase.values()) {
+            result.put(phase.name(), TimeUnit.NANOSECONDS.toMicros(phaseMaxNanos[phase.ordinal()].get()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getOutcomes() {
+        return snapshot(outcomes);
+    }
+
+    @Override
+    public Map<String, Long> getFailureReasons() {
+        return snapshot(failureReasons);
+    }
+
+    @Override
+    public Map<String, Long> getWindowOffsets() {
+        return snapshot(windowOffsets);
+    }
+
+    private static <K> Map<String, Long> snapshot(Map<K, LongAdder> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<K, LongAdder> entry : counters.entrySet()) {
+            result.put(String.valueOf(entry.getKey()), entry.getValue().sum());
+        }
+        return result;
+    }
+}
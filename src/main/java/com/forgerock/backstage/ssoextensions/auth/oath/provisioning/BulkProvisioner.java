@@ -0,0 +1,339 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.registration.OathRegistrationNodeConfig;
+import com.google.common.base.Throwables;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Provisions OATH device profiles for many users at once, e.g. to enrol hardware tokens or migrate users.
+ * <p>
+ * Records are streamed from a {@link ProvisioningReader} and handed, in batches of {@link Options#batchSize()}, to a
+ * bounded pool of {@link Options#threads()} workers. When the pool is saturated the reading thread processes a batch
+ * itself, so memory use does not depend on the size of the input. Profiles are built as the registration node builds
+ * them, using the given seed or a new secret, and saved to a {@link DeviceProfileStore}.
+ * <p>
+ * For every record a CSV line {@code number,username,realm,uuid,status,detail} is written to the report, the detail
+ * being the {@code otpauth} URI of a provisioned device or the error. With a checkpoint file, a run that is stopped
+ * can be started again on the same input and only processes the batches that had not completed. A batch that fails,
+ * e.g. as the report cannot be written, fails the run.
+ * <p>
+ * Saving to the identity store needs AM's services, so a real run is started inside AM with an
+ * {@link IdentityStoreDeviceProfileStore} (see the README). From the command line it makes a dry run against an
+ * {@link InMemoryDeviceProfileStore} with the default options, which checks every record and writes the report
+ * without saving anything:
+ * <pre>
+ * java -cp &lt;classpath&gt; com.forgerock.backstage.ssoextensions.auth.oath.provisioning.BulkProvisioner \
+ *     [--json] &lt;input&gt; &lt;report&gt;
+ * </pre>
+ * With {@code --json} the input is read as JSON lines rather than CSV.
+ */
+public class BulkProvisioner {
+    static final String SUCCESS = "SUCCESS";
+    static final String FAILED = "FAILED";
+    private static final Pattern HEX = Pattern.compile("[0-9a-fA-F]+");
+    private static final String DEVICE_NAME = "OATH Device";
+
+    private final Logger logger = LoggerFactory.getLogger(BulkProvisioner.class);
+    private final DeviceProfileStore store;
+    private final Options options;
+
+    /**
+     * Options of a provisioning run. The device settings match those of the registration node.
+     */
+    public interface Options extends OathRegistrationNodeConfig {
+        default int threads() {
+            return 4;
+        }
+
+        default int batchSize() {
+            return 100;
+        }
+    }
+
+    public BulkProvisioner(DeviceProfileStore store, Options options) {
+        this.store = store;
+        this.options = options;
+    }
+
+    public static void main(String... args) throws IOException, InterruptedException {
+        boolean json = args.length > 0 && "--json".equals(args[0]);
+        int first = json ? 1 : 0;
+        if (args.length - first != 2) {
+            System.err.println("Usage: BulkProvisioner [--json] <input> <report>");
+            System.exit(1);
+        }
+        try (Reader reader = Files.newBufferedReader(Paths.get(args[first]), StandardCharsets.UTF_8);
+             ProvisioningReader input = json ? ProvisioningReader.jsonLines(reader) : ProvisioningReader.csv(reader);
+             Writer report = Files.newBufferedWriter(Paths.get(args[first + 1]), StandardCharsets.UTF_8)) {
+            ProvisioningStatistics statistics = new BulkProvisioner(new InMemoryDeviceProfileStore(),
+                    new Options() { }).run(input, report, null);
+            System.out.println(statistics);
+        }
+    }
+
+    /**
+     * Provisions every record of the input.
+     *
+     * @param input      the users to provision
+     * @param report     where the result of each record is written
+     * @param checkpoint the checkpoint file, or null to always start from the first record
+     * @return the statistics of the run
+     * @throws IOException if the input, report or checkpoint cannot be read or written
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public ProvisioningStatistics run(ProvisioningReader input, Writer report, Path checkpoint)
+            throws IOException, InterruptedException {
+        Checkpoint progress = Checkpoint.load(checkpoint);
+        ProvisioningStatistics statistics = new ProvisioningStatistics();
+        ReportWriter out = new ReportWriter(report);
+        if (!progress.isResumed()) {
+            out.header();
+        } else {
+            logger.info("Resuming provisioning after record {}", progress.getResumedFrom());
+        }
+
+        ExecutorService workers = newWorkers();
+        try {
+            List<Future<?>> submitted = new ArrayList<>();
+            List<Item> batch = new ArrayList<>(options.batchSize());
+            long batchIndex = 0;
+            for (Item item = read(input); item != null; item = read(input)) {
+                if (progress.isCompleted(item.number)) {
+                    statistics.skipped();
+                    continue;
+                }
+                batch.add(item);
+                if (batch.size() >= options.batchSize()) {
+                    // stop reading as soon as a batch failed, and keep the list to the batches still running
+                    checkCompleted(submitted, false);
+                    submitted.add(submit(workers, batch, batchIndex++, progress, statistics, out));
+                    batch = new ArrayList<>(options.batchSize());
+                }
+            }
+            if (!batch.isEmpty()) {
+                submitted.add(submit(workers, batch, batchIndex, progress, statistics, out));
+            }
+            checkCompleted(submitted, true);
+        } finally {
+            workers.shutdown();
+        }
+        out.flush();
+        statistics.finished();
+        logger.info("Provisioning finished: {}", statistics);
+        return statistics;
+    }
+
+    private Item read(ProvisioningReader input) throws IOException {
+        try {
+            ProvisioningRecord record = input.next();
+            return record == null ? null : new Item(record.getNumber(), record, null);
+        } catch (MalformedRecordException e) {
+            return new Item(e.getNumber(), null, e.getMessage());
+        }
+    }
+
+    private Future<?> submit(ExecutorService workers, List<Item> batch, long batchIndex, Checkpoint progress,
+                             ProvisioningStatistics statistics, ReportWriter out) {
+        return workers.submit(() -> {
+            for (Item item : batch) {
+                provision(item, statistics, out);
+            }
+            progress.completed(batchIndex, batch.get(0).number, batch.get(batch.size() - 1).number);
+        });
+    }
+
+    /**
+     * Drops the batches that have completed from the list, failing if any of them failed.
+     *
+     * @param submitted the batches
+     * @param wait      whether to wait for every batch to complete
+     */
+    private static void checkCompleted(List<Future<?>> submitted, boolean wait)
+            throws IOException, InterruptedException {
+        for (Iterator<Future<?>> batches = submitted.iterator(); batches.hasNext(); ) {
+            Future<?> batch = batches.next();
+            if (!wait && !batch.isDone()) {
+                continue;
+            }
+            try {
+                batch.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+                Throwables.throwIfUnchecked(cause);
+                throw new IOException(cause);
+            }
+            batches.remove();
+        }
+    }
+
+    private void provision(Item item, ProvisioningStatistics statistics, ReportWriter out) {
+        if (item.record == null) {
+            statistics.failed(MalformedRecordException.class.getSimpleName());
+            out.line(item.number, null, null, null, FAILED, item.error);
+            return;
+        }
+        ProvisioningRecord record = item.record;
+        String uuid = null;
+        String status = FAILED;
+        String detail;
+        try {
+            OathDeviceSettings settings = createDeviceSettings(record);
+            store.saveDeviceProfile(record.getUsername(), record.getRealm(), settings);
+            detail = OtpAuthUri.of(settings, record.getUsername(), options.algorithm(), options.hashAlgorithm(),
+                    options.issuerName(), options.passwordLength(), options.totpTimeStepInterval());
+            uuid = settings.getUUID();
+            status = SUCCESS;
+            statistics.succeeded();
+        } catch (IllegalArgumentException | DevicePersistenceException e) {
+            statistics.failed(e.getClass().getSimpleName());
+            detail = e.getMessage();
+        } catch (RuntimeException e) {
+            logger.warn("Cannot provision record {}", record.getNumber(), e);
+            statistics.failed(e.getClass().getSimpleName());
+            detail = e.toString();
+        }
+        // outside of the try, a report that cannot be written fails the batch rather than the record
+        out.line(record.getNumber(), record.getUsername(), record.getRealm(), uuid, status, detail);
+    }
+
+    /**
+     * Builds the device profile as {@code OathRegistrationNode} does, with the record's seed if it has one.
+     */
+    OathDeviceSettings createDeviceSettings(ProvisioningRecord record) {
+        OathDeviceSettings settings;
+        if (record.getSharedSecret() == null) {
+            settings = store.createDeviceProfile(options.minSharedSecretLength());
+        } else {
+            String secret = record.getSharedSecret().replaceAll("\\s+", "");
+            if (!HEX.matcher(secret).matches() || secret.length() < options.minSharedSecretLength()) {
+                throw new IllegalArgumentException("Shared secret is not a hex value of at least "
+                        + options.minSharedSecretLength() + " characters");
+            }
+            settings = new OathDeviceSettings();
+            settings.setSharedSecret(secret);
+            settings.setDeviceName(DEVICE_NAME);
+            settings.setUUID(UUID.randomUUID().toString());
+        }
+        if (record.getDeviceName() != null) {
+            settings.setDeviceName(record.getDeviceName());
+        }
+        if (record.getCounter() != null) {
+            settings.setCounter(record.getCounter());
+        }
+        settings.setChecksumDigit(options.checksum());
+        settings.setRecoveryCodes(Collections.emptyList());
+        return settings;
+    }
+
+    private ExecutorService newWorkers() {
+        AtomicInteger count = new AtomicInteger();
+        int threads = Math.max(1, options.threads());
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "oath-provisioning-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    private static final class Item {
+        private final long number;
+        private final ProvisioningRecord record;
+        private final String error;
+
+        Item(long number, ProvisioningRecord record, String error) {
+            this.number = number;
+            this.record = record;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Writes report lines from several workers, one whole line at a time.
+     */
+    private static final class ReportWriter {
+        private final Writer writer;
+
+        ReportWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        void header() {
+            write("number,username,realm,uuid,status,detail\n");
+        }
+
+        void line(long number, String username, String realm, String uuid, String status, String detail) {
+            write(number + "," + csv(username) + ',' + csv(realm) + ',' + csv(uuid) + ',' + status + ','
+                    + csv(detail) + '\n');
+        }
+
+        synchronized void flush() throws IOException {
+            writer.flush();
+        }
+
+        private synchronized void write(String line) {
+            try {
+                writer.write(line);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static String csv(String value) {
+            if (value == null) {
+                return "";
+            }
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+                return value;
+            }
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which input records a provisioning run has completed, so that an interrupted run can be resumed.
+ * <p>
+ * Batches complete out of order on the worker pool. The first line of the file is the number of the record up to
+ * which every batch has completed, and each further line {@code first-last} is a batch completed beyond it. Resuming
+ * therefore neither skips a record that was not processed nor provisions one twice. The file is replaced atomically.
+ */
+final class Checkpoint {
+    private final Path file;
+    private final long resumedFrom;
+    private final List<Range> resumedRanges;
+    private final Map<Long, Range> completedBatches = new HashMap<>();
+    private long nextBatch;
+    private long completedUpTo;
+
+    private Checkpoint(Path file, long resumedFrom, List<Range> resumedRanges) {
+        this.file = file;
+        this.resumedFrom = resumedFrom;
+        this.resumedRanges = resumedRanges;
+        this.completedUpTo = resumedFrom;
+    }
+
+    /**
+     * @param file the checkpoint file, or null to not keep one
+     * @return the checkpoint, resumed from the file if it exists
+     * @throws IOException if the file exists but cannot be read
+     */
+    static Checkpoint load(Path file) throws IOException {
+        if (file == null || !Files.exists(file)) {
+            return new Checkpoint(file, 0, Collections.emptyList());
+        }
+        String content = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+        if (content.isEmpty()) {
+            return new Checkpoint(file, 0, Collections.emptyList());
+        }
+        try {
+            String[] lines = content.split("\\s+");
+            List<Range> ranges = new ArrayList<>();
+            for (int i = 1; i < lines.length; i++) {
+                int separator = lines[i].indexOf('-');
+                ranges.add(new Range(Long.parseLong(lines[i].substring(0, separator)),
+                        Long.parseLong(lines[i].substring(separator + 1))));
+            }
+            return new Checkpoint(file, Long.parseLong(lines[0]), ranges);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid checkpoint file " + file, e);
+        }
+    }
+
+    /**
+     * @return the number of the record up to which a previous run completed every record, 0 for a fresh run
+     */
+    long getResumedFrom() {
+        return resumedFrom;
+    }
+
+    /**
+     * @return whether a previous run completed any record
+     */
+    boolean isResumed() {
+        return resumedFrom > 0 || !resumedRanges.isEmpty();
+    }
+
+    /**
+     * @param number the number of an input record
+     * @return whether a previous run completed the record
+     */
+    boolean isCompleted(long number) {
+        if (number <= resumedFrom) {
+            return true;
+        }
+        for (Range range : resumedRanges) {
+            if (range.contains(number)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized long getCompletedUpTo() {
+        return completedUpTo;
+    }
+
+    /**
+     * Marks a batch as completed.
+     *
+     * @param batch       the 0-based index of the batch in this run
+     * @param firstRecord the number of the first record in the batch
+     * @param lastRecord  the number of the last record in the batch
+     */
+    synchronized void completed(long batch, long firstRecord, long lastRecord) {
+        completedBatches.put(batch, new Range(firstRecord, lastRecord));
+        while (completedBatches.containsKey(nextBatch)) {
+            completedUpTo = completedBatches.remove(nextBatch++).last;
+        }
+        write();
+    }
+
+    private void write() {
+        if (file == null) {
+            return;
+        }
+        StringBuilder content = new StringBuilder(Long.toString(completedUpTo));
+        // records of ranges below the watermark were either completed by this run or skipped as already completed
+        for (Range range : resumedRanges) {
+            if (range.last > completedUpTo) {
+                content.append('\n').append(range);
+            }
+        }
+        for (Range range : completedBatches.values()) {
+            content.append('\n').append(range);
+        }
+        try {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, content.toString().getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write checkpoint " + file, e);
+        }
+    }
+
+    private static final class Range {
+        private final long first;
+        private final long last;
+
+        Range(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        boolean contains(long number) {
+            return number >= first && number <= last;
+        }
+
+        @Override
+        public String toString() {
+            return first + "-" + last;
+        }
+    }
+}
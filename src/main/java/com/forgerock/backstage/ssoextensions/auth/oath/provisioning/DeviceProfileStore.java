@@ -0,0 +1,49 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+/**
+ * Where the {@link BulkProvisioner} creates and saves device profiles.
+ */
+public interface DeviceProfileStore {
+
+    /**
+     * Creates a device profile with a new random shared secret.
+     *
+     * @param minSharedSecretLength the minimum length of the hex encoded secret
+     * @return the new, unsaved device profile
+     */
+    OathDeviceSettings createDeviceProfile(int minSharedSecretLength);
+
+    /**
+     * Adds a device profile to the user's devices, replacing the one with the same UUID if there is one. The user's
+     * other devices are kept.
+     *
+     * @param username the username
+     * @param realm    the realm path
+     * @param settings the device profile
+     * @throws DevicePersistenceException if the profile cannot be saved
+     */
+    void saveDeviceProfile(String username, String realm, OathDeviceSettings settings)
+            throws DevicePersistenceException;
+}
@@ -0,0 +1,73 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileWriter;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+
+import javax.inject.Inject;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Saves provisioned profiles to the identity store, next to the user's existing devices, and drops any cached profile
+ * of the user.
+ * <p>
+ * The profiles are read through AM's {@link UserOathDeviceProfileManager} and written back as a whole with the
+ * {@link DeviceProfileWriter}, as the manager's own save would replace all of the user's devices with the new one. The
+ * save holds the same per-user lock as the nodes' saves, so a login on this server cannot write back a list missing
+ * the new device.
+ */
+public class IdentityStoreDeviceProfileStore implements DeviceProfileStore {
+    private final UserOathDeviceProfileManager userOathDeviceProfileManager;
+    private final DeviceProfileWriter deviceProfileWriter;
+    private final DeviceProfileCache deviceProfileCache;
+
+    @Inject
+    public IdentityStoreDeviceProfileStore(UserOathDeviceProfileManager userOathDeviceProfileManager,
+                                           DeviceProfileWriter deviceProfileWriter,
+                                           DeviceProfileCache deviceProfileCache) {
+        this.userOathDeviceProfileManager = userOathDeviceProfileManager;
+        this.deviceProfileWriter = deviceProfileWriter;
+        this.deviceProfileCache = deviceProfileCache;
+    }
+
+    @Override
+    public OathDeviceSettings createDeviceProfile(int minSharedSecretLength) {
+        return userOathDeviceProfileManager.createDeviceProfile(minSharedSecretLength);
+    }
+
+    @Override
+    public void saveDeviceProfile(String username, String realm, OathDeviceSettings settings)
+            throws DevicePersistenceException {
+        Lock lock = OathHelper.deviceProfileLock(realm, username);
+        lock.lock();
+        try {
+            deviceProfileWriter.save(username, realm, DeviceProfileWriter.merge(
+                    userOathDeviceProfileManager.getDeviceProfiles(username, realm), settings));
+        } finally {
+            lock.unlock();
+        }
+        deviceProfileCache.invalidate(realm, username);
+    }
+}
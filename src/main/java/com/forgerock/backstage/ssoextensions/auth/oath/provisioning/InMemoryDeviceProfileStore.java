@@ -0,0 +1,79 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileWriter;
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import javax.xml.bind.DatatypeConverter;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps provisioned profiles in memory, for dry runs and tests.
+ */
+public class InMemoryDeviceProfileStore implements DeviceProfileStore {
+    private static final String DEVICE_NAME = "OATH Device";
+    private static final int MIN_SECRET_BYTES = 8;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<List<String>, List<OathDeviceSettings>> profiles = new ConcurrentHashMap<>();
+
+    @Override
+    public OathDeviceSettings createDeviceProfile(int minSharedSecretLength) {
+        byte[] secret = new byte[Math.max(MIN_SECRET_BYTES, (minSharedSecretLength + 1) / 2)];
+        random.nextBytes(secret);
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret(DatatypeConverter.printHexBinary(secret));
+        settings.setDeviceName(DEVICE_NAME);
+        settings.setUUID(UUID.randomUUID().toString());
+        return settings;
+    }
+
+    @Override
+    public void saveDeviceProfile(String username, String realm, OathDeviceSettings settings) {
+        profiles.compute(ImmutableList.of(realm, username),
+                (key, devices) -> DeviceProfileWriter.merge(devices, settings));
+    }
+
+    /**
+     * @return the profile most recently added for the user, or null
+     */
+    public OathDeviceSettings getDeviceProfile(String username, String realm) {
+        List<OathDeviceSettings> devices = getDeviceProfiles(username, realm);
+        return devices.isEmpty() ? null : devices.get(devices.size() - 1);
+    }
+
+    /**
+     * @return all saved profiles of the user
+     */
+    public List<OathDeviceSettings> getDeviceProfiles(String username, String realm) {
+        return profiles.getOrDefault(ImmutableList.of(realm, username), Collections.emptyList());
+    }
+
+    public int size() {
+        return profiles.size();
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import java.io.IOException;
+
+/**
+ * Thrown for an input line that cannot be turned into a {@link ProvisioningRecord}. The line has been consumed, so
+ * reading can carry on.
+ */
+public class MalformedRecordException extends IOException {
+    private final long number;
+
+    public MalformedRecordException(long number, String message) {
+        super("Record " + number + ": " + message);
+        this.number = number;
+    }
+
+    /**
+     * @return the 1-based position of the malformed record in the input
+     */
+    public long getNumber() {
+        return number;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import org.apache.commons.codec.binary.Base32;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * Builds the {@code otpauth://} key URI an authenticator app is registered with, in the same shape as the
+ * registration node's QR code but without needing the user's identity.
+ */
+final class OtpAuthUri {
+
+    private OtpAuthUri() {
+    }
+
+    static String of(OathDeviceSettings settings, String username, OathAlgorithm algorithm,
+                     HmacAlgorithm hashAlgorithm, String issuer, int passwordLength, int totpTimeStepInterval) {
+        byte[] key = DatatypeConverter.parseHexBinary(evenLength(settings.getSharedSecret()));
+        String secret = new Base32().encodeAsString(key).replace("=", "");
+        StringBuilder uri = new StringBuilder("otpauth://")
+                .append(OathAlgorithm.HOTP.equals(algorithm) ? "hotp" : "totp")
+                .append('/').append(encode(issuer)).append(':').append(encode(username))
+                .append("?secret=").append(secret)
+                .append("&issuer=").append(encode(issuer))
+                .append("&digits=").append(passwordLength);
+        if (OathAlgorithm.HOTP.equals(algorithm)) {
+            uri.append("&counter=").append(settings.getCounter());
+        } else {
+            uri.append("&period=").append(totpTimeStepInterval);
+        }
+        if (hashAlgorithm != HmacAlgorithm.SHA1) {
+            uri.append("&algorithm=").append(hashAlgorithm.name());
+        }
+        return uri.toString();
+    }
+
+    private static String evenLength(String hex) {
+        return hex.length() % 2 == 0 ? hex : "0" + hex;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams {@link ProvisioningRecord}s from CSV or JSON lines input, one line at a time.
+ * <p>
+ * Both formats use the fields {@value #USERNAME}, {@value #REALM}, {@value #SHARED_SECRET}, {@value #DEVICE_NAME} and
+ * {@value #COUNTER}; only the username and realm are required. CSV input starts with a header row naming the columns.
+ */
+public abstract class ProvisioningReader implements Closeable {
+    static final String USERNAME = "username";
+    static final String REALM = "realm";
+    static final String SHARED_SECRET = "sharedSecret";
+    static final String DEVICE_NAME = "deviceName";
+    static final String COUNTER = "counter";
+
+    private final BufferedReader reader;
+    private long number;
+
+    ProvisioningReader(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    /**
+     * @param reader the CSV input, starting with a header row
+     * @return a reader of the input
+     */
+    public static ProvisioningReader csv(Reader reader) {
+        return new Csv(reader);
+    }
+
+    /**
+     * @param reader the input, one JSON object per line
+     * @return a reader of the input
+     */
+    public static ProvisioningReader jsonLines(Reader reader) {
+        return new JsonLines(reader);
+    }
+
+    /**
+     * @return the next record, or null at the end of the input
+     * @throws MalformedRecordException if the line is malformed, reading can carry on with the next one
+     * @throws IOException if the input cannot be read
+     */
+    public ProvisioningRecord next() throws IOException {
+        String line;
+        do {
+            line = readLine();
+            if (line == null) {
+                return null;
+            }
+        } while (line.trim().isEmpty());
+        number++;
+        Map<String, String> fields;
+        try {
+            fields = parse(line);
+        } catch (IOException e) {
+            throw new MalformedRecordException(number, e.getMessage());
+        }
+        String username = fields.get(USERNAME);
+        String realm = fields.get(REALM);
+        if (isEmpty(username) || isEmpty(realm)) {
+            throw new MalformedRecordException(number, "no " + (isEmpty(username) ? USERNAME : REALM));
+        }
+        String counter = fields.get(COUNTER);
+        try {
+            return new ProvisioningRecord(number, username.trim(), realm.trim(), emptyToNull(fields.get(SHARED_SECRET)),
+                    emptyToNull(fields.get(DEVICE_NAME)), isEmpty(counter) ? null : Integer.valueOf(counter.trim()));
+        } catch (NumberFormatException e) {
+            throw new MalformedRecordException(number, "invalid " + COUNTER);
+        }
+    }
+
+    String readLine() throws IOException {
+        return reader.readLine();
+    }
+
+    abstract Map<String, String> parse(String line) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    private static String emptyToNull(String value) {
+        return isEmpty(value) ? null : value.trim();
+    }
+
+    private static final class Csv extends ProvisioningReader {
+        private List<String> header;
+
+        Csv(Reader reader) {
+            super(reader);
+        }
+
+        @Override
+        Map<String, String> parse(String line) throws IOException {
+            List<String> values = split(line);
+            Map<String, String> fields = new HashMap<>();
+            for (int i = 0; i < header.size() && i < values.size(); i++) {
+                fields.put(header.get(i), values.get(i));
+            }
+            return fields;
+        }
+
+        @Override
+        String readLine() throws IOException {
+            if (header == null) {
+                String line = super.readLine();
+                if (line == null) {
+                    return null;
+                }
+                header = new ArrayList<>();
+                for (String column : split(line)) {
+                    header.add(column.trim());
+                }
+            }
+            return super.readLine();
+        }
+
+        /**
+         * Splits a CSV line, honouring double quoted values with doubled quotes inside.
+         */
+        private static List<String> split(String line) throws IOException {
+            List<String> values = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        value.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    values.add(value.toString());
+                    value.setLength(0);
+                } else {
+                    value.append(c);
+                }
+            }
+            if (quoted) {
+                throw new IOException("Unterminated quote in CSV line");
+            }
+            values.add(value.toString());
+            return values;
+        }
+    }
+
+    private static final class JsonLines extends ProvisioningReader {
+        private static final ObjectMapper MAPPER = new ObjectMapper();
+
+        JsonLines(Reader reader) {
+            super(reader);
+        }
+
+        @Override
+        Map<String, String> parse(String line) throws IOException {
+            JsonNode node = MAPPER.readTree(line);
+            if (node == null || !node.isObject()) {
+                throw new IOException("JSON line is not an object");
+            }
+            Map<String, String> fields = new HashMap<>();
+            node.fields().forEachRemaining(field ->
+                    fields.put(field.getKey(), field.getValue().isNull() ? null : field.getValue().asText()));
+            return fields;
+        }
+    }
+}
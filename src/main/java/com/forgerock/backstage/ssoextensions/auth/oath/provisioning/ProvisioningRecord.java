@@ -0,0 +1,74 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+/**
+ * One user to provision, as read from the input.
+ */
+public final class ProvisioningRecord {
+    private final long number;
+    private final String username;
+    private final String realm;
+    private final String sharedSecret;
+    private final String deviceName;
+    private final Integer counter;
+
+    /**
+     * @param number       the 1-based position of the record in the input
+     * @param username     the username
+     * @param realm        the realm path
+     * @param sharedSecret the hex encoded seed of a hardware token, or null to generate a new secret
+     * @param deviceName   the device name, or null for the default
+     * @param counter      the initial HOTP counter, or null for the default
+     */
+    public ProvisioningRecord(long number, String username, String realm, String sharedSecret, String deviceName,
+                              Integer counter) {
+        this.number = number;
+        this.username = username;
+        this.realm = realm;
+        this.sharedSecret = sharedSecret;
+        this.deviceName = deviceName;
+        this.counter = counter;
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public String getSharedSecret() {
+        return sharedSecret;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public Integer getCounter() {
+        return counter;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of a provisioning run. Safe to read while the run is in progress.
+ */
+public final class ProvisioningStatistics {
+    private final long startNanos = System.nanoTime();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private volatile long endNanos;
+
+    void skipped() {
+        skipped.increment();
+    }
+
+    void succeeded() {
+        succeeded.increment();
+    }
+
+    void failed(String error) {
+        failed.increment();
+        errors.computeIfAbsent(error, key -> new LongAdder()).increment();
+    }
+
+    void finished() {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the number of records skipped because a previous run completed them
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    public long getSucceeded() {
+        return succeeded.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of failed records, by error type
+     */
+    public Map<String, Long> getErrors() {
+        Map<String, Long> result = new TreeMap<>();
+        errors.forEach((error, count) -> result.put(error, count.sum()));
+        return result;
+    }
+
+    public long getElapsedMillis() {
+        long end = endNanos == 0 ? System.nanoTime() : endNanos;
+        return TimeUnit.NANOSECONDS.toMillis(end - startNanos);
+    }
+
+    /**
+     * @return the number of records processed per second, successful or not
+     */
+    public double getThroughput() {
+        long elapsed = getElapsedMillis();
+        return elapsed == 0 ? 0 : (getSucceeded() + getFailed()) * 1000d / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("succeeded=%d, failed=%d, skipped=%d, elapsed=%dms, throughput=%.1f/s, errors=%s",
+                getSucceeded(), getFailed(), getSkipped(), getElapsedMillis(), getThroughput(), getErrors());
+    }
+}
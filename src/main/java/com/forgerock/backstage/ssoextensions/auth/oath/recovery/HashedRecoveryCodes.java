@@ -0,0 +1,125 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.recovery;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recovery codes as stored on a device profile, either salted SHA-256 hashes or, for profiles registered before
+ * hashing was enabled, plain text.
+ * <p>
+ * All codes of a device share one salt, so a submitted code is hashed once and found with a single map lookup. The
+ * codes are long random strings, which is what makes a fast hash sufficient. A hashed code is stored as
+ * {@code {SSHA-256}<salt>$<hash>}, both parts base64 encoded.
+ */
+public final class HashedRecoveryCodes {
+    static final String PREFIX = "{SSHA-256}";
+    private static final int SALT_LENGTH = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Map<String, Map<String, String>> hashedBySalt = new HashMap<>();
+    private final List<String> plain = new ArrayList<>();
+
+    private HashedRecoveryCodes(List<String> stored) {
+        if (stored == null) {
+            return;
+        }
+        for (String code : stored) {
+            int separator = code.indexOf('$');
+            if (code.startsWith(PREFIX) && separator > PREFIX.length()) {
+                hashedBySalt.computeIfAbsent(code.substring(PREFIX.length(), separator), salt -> new HashMap<>())
+                        .put(code.substring(separator + 1), code);
+            } else {
+                plain.add(code);
+            }
+        }
+    }
+
+    /**
+     * @param stored the recovery codes of a device profile
+     * @return the codes, ready to be checked
+     */
+    public static HashedRecoveryCodes of(List<String> stored) {
+        return new HashedRecoveryCodes(stored);
+    }
+
+    /**
+     * Hashes freshly generated recovery codes for storage, using a new salt.
+     *
+     * @param codes the plain text codes
+     * @return the codes to store on the device profile
+     */
+    public static List<String> hash(List<String> codes) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        String encodedSalt = Base64.getEncoder().encodeToString(salt);
+        List<String> hashed = new ArrayList<>(codes.size());
+        for (String code : codes) {
+            hashed.add(PREFIX + encodedSalt + '$' + Base64.getEncoder().encodeToString(digest(salt, code)));
+        }
+        return hashed;
+    }
+
+    /**
+     * Finds the stored entry matching a submitted code.
+     *
+     * @param code the code entered by the user
+     * @return the stored entry to remove from the profile, or null if the code does not match
+     */
+    public String find(String code) {
+        if (code == null) {
+            return null;
+        }
+        for (Map.Entry<String, Map<String, String>> salted : hashedBySalt.entrySet()) {
+            byte[] digest = digest(Base64.getDecoder().decode(salted.getKey()), code);
+            String encoded = Base64.getEncoder().encodeToString(digest);
+            String stored = salted.getValue().get(encoded);
+            if (stored != null && MessageDigest.isEqual(digest,
+                    Base64.getDecoder().decode(stored.substring(stored.indexOf('$') + 1)))) {
+                return stored;
+            }
+        }
+        byte[] submitted = code.getBytes(StandardCharsets.UTF_8);
+        for (String stored : plain) {
+            if (MessageDigest.isEqual(submitted, stored.getBytes(StandardCharsets.UTF_8))) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] digest(byte[] salt, String code) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(code.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.recovery;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileConflictException;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileVersion;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.google.inject.assistedinject.Assisted;
+import org.forgerock.openam.auth.node.api.*;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.utils.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.security.auth.callback.NameCallback;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Checks a recovery code against the user's OATH device profile and removes it once used.
+ * <p>
+ * Both hashed codes (see {@link HashedRecoveryCodes}) and plain text codes of older registrations are accepted. The
+ * used code is removed with the same version check as OTP logins, which covers the recovery codes, so two requests
+ * racing with the same code cannot both succeed, and two using different codes cannot bring back each other's code.
+ */
+@Node.Metadata(outcomeProvider = AbstractDecisionNode.OutcomeProvider.class,
+        configClass = OathRecoveryCodeNode.Config.class)
+public class OathRecoveryCodeNode extends AbstractDecisionNode {
+    private static final int MAX_SAVE_ATTEMPTS = 3;
+
+    private final Logger logger = LoggerFactory.getLogger(OathRecoveryCodeNode.class);
+    private final OathHelper helper;
+
+    /**
+     * Configuration for the node.
+     */
+    public interface Config {
+    }
+
+    @Inject
+    public OathRecoveryCodeNode(@Assisted Config config, OathHelper helper) {
+        this.helper = helper;
+    }
+
+    @Override
+    public Action process(TreeContext context) throws NodeProcessException {
+        Optional<NameCallback> nameCallback = context.getCallback(NameCallback.class);
+        if (!nameCallback.isPresent() || StringUtils.isEmpty(nameCallback.get().getName())) {
+            return Action.send(new NameCallback("Enter recovery code")).build();
+        }
+
+        try {
+            return goTo(useRecoveryCode(context, nameCallback.get().getName().trim())).build();
+        } catch (DevicePersistenceException e) {
+            logger.debug(e.getMessage(), e);
+            return goTo(false).build();
+        }
+    }
+
+    private boolean useRecoveryCode(TreeContext context, String code) throws DevicePersistenceException {
+        for (OathDeviceSettings settings : helper.getOathDevices(context, 0)) {
+            if (HashedRecoveryCodes.of(settings.getRecoveryCodes()).find(code) != null) {
+                return useRecoveryCode(context, settings, code);
+            }
+        }
+        return false;
+    }
+
+    private boolean useRecoveryCode(TreeContext context, OathDeviceSettings settings, String code)
+            throws DevicePersistenceException {
+        for (int attempt = 1; settings != null; attempt++) {
+            DeviceProfileVersion version = DeviceProfileVersion.of(settings);
+            String used = HashedRecoveryCodes.of(settings.getRecoveryCodes()).find(code);
+            if (used == null) {
+                return false;
+            }
+
+            List<String> remaining = new ArrayList<>(settings.getRecoveryCodes());
+            remaining.remove(used);
+            settings.setRecoveryCodes(remaining);
+            try {
+                helper.saveOathDeviceSettings(context, version, settings, false);
+                return true;
+            } catch (DeviceProfileConflictException e) {
+                if (attempt >= MAX_SAVE_ATTEMPTS) {
+                    logger.debug("Giving up on recovery code after concurrent updates: {}", e.getMessage());
+                    return false;
+                }
+                // check again, the concurrent update may have used the same code
+                settings = e.getCurrent();
+            }
+        }
+        return false;
+    }
+}
@@ -20,8 +20,14 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.registration;
 
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathEvent;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathFlightRecorder;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathMetrics;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathPhase;
+import com.forgerock.backstage.ssoextensions.auth.oath.recovery.HashedRecoveryCodes;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.assistedinject.Assisted;
 import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
@@ -43,9 +49,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
-import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_DEVICE_PROFILE_KEY;
-import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_DEVICE_NAME;
-import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_REGISTRATION_KEY;
 
 @Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
         configClass = OathRegistrationNode.Config.class)
@@ -54,8 +58,10 @@ public class OathRegistrationNode extends SingleOutcomeNode {
     private final Config config;
     private final OathHelper helper;
     private final RecoveryCodeGenerator recoveryCodeGenerator;
+    private final OathMetrics metrics;
+    private final RegistrationMaterialPool materialPool;
 
-    private static final int NUM_CODES = 10;
+    static final int NUM_CODES = 10;
     private static final String BUTTON_LABEL = "Next";
     private static final String CALLBACK_ELEMENT_ID = "callback_0";
 
@@ -69,10 +75,14 @@ public class OathRegistrationNode extends SingleOutcomeNode {
     @Inject
     public OathRegistrationNode(@Assisted Config config,
                                 OathHelper helper,
-                                RecoveryCodeGenerator recoveryCodeGenerator) {
+                                RecoveryCodeGenerator recoveryCodeGenerator,
+                                OathMetrics metrics,
+                                RegistrationMaterialPool materialPool) {
         this.config = config;
         this.helper = helper;
         this.recoveryCodeGenerator = recoveryCodeGenerator;
+        this.metrics = metrics;
+        this.materialPool = materialPool;
     }
 
     @Override
@@ -89,17 +99,19 @@ public class OathRegistrationNode extends SingleOutcomeNode {
         OathDeviceSettings settings = createDeviceSettings(recoveryCodes);
 
         JsonValue sharedState;
+        OathEvent event = OathFlightRecorder.begin(OathPhase.REGISTRATION_ENCRYPT.name())
+                .algorithm(String.valueOf(config.algorithm()));
+        String outcome = OathEvent.ERROR;
+        long start = metrics.start();
         try {
-            sharedState = context.sharedState.copy().put(OATH_DEVICE_PROFILE_KEY, helper.encryptOathDeviceSettings(settings));
-
+            sharedState = context.sharedState.copy()
+                    .put(OATH_REGISTRATION_KEY, helper.encryptRegistration(settings, recoveryCodes));
+            outcome = OathEvent.SUCCESS;
         } catch (IOException e) {
             throw new NodeProcessException(e);
-        }
-
-        if (config.generateRecoveryCodes()) {
-            sharedState
-                    .put(RECOVERY_CODE_KEY, helper.encryptList(recoveryCodes))
-                    .put(RECOVERY_CODE_DEVICE_NAME, settings.getDeviceName());
+        } finally {
+            metrics.stop(OathPhase.REGISTRATION_ENCRYPT, start);
+            event.end(outcome);
         }
 
         String script = GenerationUtils.getQRCodeGenerationJavascriptForAuthenticatorAppRegistration(
@@ -119,6 +131,9 @@ public class OathRegistrationNode extends SingleOutcomeNode {
 
     private List<String> generateRecoveryCodes() throws NodeProcessException {
         try {
+            if (config.pregenerate()) {
+                return materialPool.takeRecoveryCodes();
+            }
             return recoveryCodeGenerator.generateCodes(NUM_CODES, Alphabet.ALPHANUMERIC, false);
         } catch (CodeException e) {
             throw new NodeProcessException(e);
@@ -126,9 +141,11 @@ public class OathRegistrationNode extends SingleOutcomeNode {
     }
 
     private OathDeviceSettings createDeviceSettings(List<String> recoveryCodes) {
-        OathDeviceSettings settings = helper.createDeviceProfile(config.minSharedSecretLength());
+        OathDeviceSettings settings = config.pregenerate()
+                ? materialPool.takeDeviceProfile(config.minSharedSecretLength())
+                : helper.createDeviceProfile(config.minSharedSecretLength());
         settings.setChecksumDigit(config.checksum());
-        settings.setRecoveryCodes(recoveryCodes);
+        settings.setRecoveryCodes(config.hashRecoveryCodes() ? HashedRecoveryCodes.hash(recoveryCodes) : recoveryCodes);
         return settings;
     }
 
@@ -148,14 +165,20 @@ public class OathRegistrationNode extends SingleOutcomeNode {
         OathAlgorithm algorithm = this.config.algorithm();
 
         try {
+            String uri;
             if (OathAlgorithm.HOTP.equals(algorithm)) {
                 int counter = settings.getCounter();
-                return builder.getAuthenticatorAppRegistrationUriForHOTP(counter);
+                uri = builder.getAuthenticatorAppRegistrationUriForHOTP(counter);
             } else if (OathAlgorithm.TOTP.equals(algorithm)) {
-                return builder.getAuthenticatorAppRegistrationUriForTOTP(config.totpTimeStepInterval());
+                uri = builder.getAuthenticatorAppRegistrationUriForTOTP(config.totpTimeStepInterval());
             } else {
                 throw new NodeProcessException("No OTP algorithm selected");
             }
+            // apps assume SHA1 when the URI has no algorithm parameter, which AM's builder never adds
+            if (config.hashAlgorithm() != HmacAlgorithm.SHA1) {
+                uri += "&algorithm=" + config.hashAlgorithm().name();
+            }
+            return uri;
         } catch (DecoderException e) {
             throw new NodeProcessException("Could not decode secret key from hex to plain text", e);
         }
@@ -19,6 +19,7 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.registration;
 
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathAlgorithmAttribute;
 import org.forgerock.openam.annotations.sm.Attribute;
@@ -59,4 +60,20 @@ public interface OathRegistrationNodeConfig {
     default boolean generateRecoveryCodes() {
         return false;
     }
+
+    @Attribute(order = 800)
+    default boolean hashRecoveryCodes() {
+        return false;
+    }
+
+    @Attribute(order = 900)
+    default boolean pregenerate() {
+        return false;
+    }
+
+    @Attribute(order = 1000)
+    @OathAlgorithmAttribute
+    default HmacAlgorithm hashAlgorithm() {
+        return HmacAlgorithm.SHA1;
+    }
 }
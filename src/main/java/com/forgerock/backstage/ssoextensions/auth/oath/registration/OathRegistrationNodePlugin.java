@@ -21,6 +21,7 @@ package com.forgerock.backstage.ssoextensions.auth.oath.registration;
 
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.plugins.PluginException;
 
 import java.util.Collections;
 import java.util.Map;
@@ -28,12 +29,20 @@ import java.util.Map;
 
 public class OathRegistrationNodePlugin extends AbstractNodeAmPlugin {
 
-	static private String currentVersion = "1.0.0";
+	static private String currentVersion = "1.1.0";
 	
 	@Override
 	protected Map<String, Iterable<? extends Class<? extends Node>>> getNodesByVersion() {
-		return Collections.singletonMap(OathRegistrationNodePlugin.currentVersion,
-				Collections.singletonList(OathRegistrationNode.class));
+		return Collections.singletonMap("1.0.0", Collections.singletonList(OathRegistrationNode.class));
+	}
+
+	/**
+	 * Updates the registration node's schema, which gained attributes after 1.0.0.
+	 */
+	@Override
+	public void upgradePlugin(String fromVersion) throws PluginException {
+		pluginTools.upgradeAuthNode(OathRegistrationNode.class);
+		super.upgradePlugin(fromVersion);
 	}
 
 	@Override
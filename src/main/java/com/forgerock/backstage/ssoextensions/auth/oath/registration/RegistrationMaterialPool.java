@@ -0,0 +1,232 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.registration;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathMetrics;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.forgerock.openam.utils.Alphabet;
+import org.forgerock.openam.utils.CodeException;
+import org.forgerock.openam.utils.RecoveryCodeGenerator;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.thread.listener.ShutdownManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pools of device profiles (with their shared secrets) and recovery code sets, generated ahead of time on a
+ * background thread so that registrations do not draw on {@code SecureRandom} on the request thread.
+ * <p>
+ * The material is generated by AM's own {@link UserOathDeviceProfileManager} and {@link RecoveryCodeGenerator}, so it
+ * is exactly what inline generation would produce. A pool is filled up to {@link #CAPACITY} when it is first used and
+ * topped up whenever it falls below {@link #REFILL_THRESHOLD}. Taking from an empty pool never blocks: the caller
+ * generates inline, which is counted as a miss. Each item is handed out once. The pools are emptied when AM shuts
+ * down.
+ * <p>
+ * Pooled shared secrets are held as strings until they are handed out, so, like any secret AM keeps in a string, they
+ * cannot be wiped from memory; emptying the pools only releases them to the garbage collector.
+ */
+@Singleton
+public class RegistrationMaterialPool implements RegistrationMaterialPoolMXBean {
+    public static final String OBJECT_NAME = "com.forgerock.backstage.ssoextensions.auth.oath:type=RegistrationPool";
+    static final int CAPACITY = 1000;
+    static final int REFILL_THRESHOLD = CAPACITY / 4;
+
+    private final Logger logger = LoggerFactory.getLogger(RegistrationMaterialPool.class);
+    private final UserOathDeviceProfileManager userOathDeviceProfileManager;
+    private final RecoveryCodeGenerator recoveryCodeGenerator;
+    private final Executor refiller;
+    private final int capacity;
+    private final int refillThreshold;
+    private final ConcurrentMap<Integer, BlockingQueue<OathDeviceSettings>> deviceProfiles = new ConcurrentHashMap<>();
+    private final BlockingQueue<List<String>> recoveryCodeSets;
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refills = new LongAdder();
+    private volatile boolean recoveryCodesRequested;
+    private volatile boolean shutdown;
+
+    @Inject
+    public RegistrationMaterialPool(UserOathDeviceProfileManager userOathDeviceProfileManager,
+                                    RecoveryCodeGenerator recoveryCodeGenerator,
+                                    ShutdownManager shutdownManager,
+                                    OathMetrics metrics) {
+        this(userOathDeviceProfileManager, recoveryCodeGenerator, shutdownManager, newRefiller(), CAPACITY);
+        metrics.publish(OBJECT_NAME, this);
+    }
+
+    @VisibleForTesting
+    RegistrationMaterialPool(UserOathDeviceProfileManager userOathDeviceProfileManager,
+                             RecoveryCodeGenerator recoveryCodeGenerator,
+                             ShutdownManager shutdownManager,
+                             Executor refiller,
+                             int capacity) {
+        this.userOathDeviceProfileManager = userOathDeviceProfileManager;
+        this.recoveryCodeGenerator = recoveryCodeGenerator;
+        this.refiller = refiller;
+        this.capacity = capacity;
+        this.refillThreshold = Math.max(1, capacity * REFILL_THRESHOLD / CAPACITY);
+        this.recoveryCodeSets = new ArrayBlockingQueue<>(capacity);
+        shutdownManager.addShutdownListener(this::shutdown);
+    }
+
+    /**
+     * Takes a new device profile from the pool, or creates one inline if the pool is empty.
+     *
+     * @param minSharedSecretLength the minimum length of the shared secret
+     * @return a device profile that has not been handed out before
+     */
+    public OathDeviceSettings takeDeviceProfile(int minSharedSecretLength) {
+        BlockingQueue<OathDeviceSettings> pool = deviceProfiles.computeIfAbsent(minSharedSecretLength,
+                length -> new ArrayBlockingQueue<>(capacity));
+        OathDeviceSettings settings = pool.poll();
+        refillIfLow(pool);
+        if (settings != null) {
+            hits.increment();
+            return settings;
+        }
+        misses.increment();
+        return userOathDeviceProfileManager.createDeviceProfile(minSharedSecretLength);
+    }
+
+    /**
+     * Takes a set of recovery codes from the pool, or generates one inline if the pool is empty.
+     *
+     * @return recovery codes that have not been handed out before
+     * @throws CodeException if the codes cannot be generated inline
+     */
+    public List<String> takeRecoveryCodes() throws CodeException {
+        recoveryCodesRequested = true;
+        List<String> codes = recoveryCodeSets.poll();
+        refillIfLow(recoveryCodeSets);
+        if (codes != null) {
+            hits.increment();
+            return codes;
+        }
+        misses.increment();
+        return generateRecoveryCodes();
+    }
+
+    @Override
+    public int getAvailableDeviceProfiles() {
+        int available = 0;
+        for (BlockingQueue<OathDeviceSettings> pool : deviceProfiles.values()) {
+            available += pool.size();
+        }
+        return available;
+    }
+
+    @Override
+    public int getAvailableRecoveryCodeSets() {
+        return recoveryCodeSets.size();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getRefills() {
+        return refills.sum();
+    }
+
+    private void refillIfLow(BlockingQueue<?> pool) {
+        if (shutdown || pool.size() >= refillThreshold || !refillScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refiller.execute(this::refill);
+        } catch (RejectedExecutionException e) {
+            refillScheduled.set(false);
+        }
+    }
+
+    @VisibleForTesting
+    void refill() {
+        try {
+            refills.increment();
+            for (Map.Entry<Integer, BlockingQueue<OathDeviceSettings>> pool : deviceProfiles.entrySet()) {
+                while (!shutdown && pool.getValue().remainingCapacity() > 0) {
+                    pool.getValue().offer(userOathDeviceProfileManager.createDeviceProfile(pool.getKey()));
+                }
+            }
+            while (recoveryCodesRequested && !shutdown && recoveryCodeSets.remainingCapacity() > 0) {
+                recoveryCodeSets.offer(generateRecoveryCodes());
+            }
+        } catch (CodeException | RuntimeException e) {
+            logger.warn("Cannot refill the registration pool", e);
+        } finally {
+            refillScheduled.set(false);
+        }
+        if (shutdown) {
+            clear();
+        }
+    }
+
+    private List<String> generateRecoveryCodes() throws CodeException {
+        return recoveryCodeGenerator.generateCodes(OathRegistrationNode.NUM_CODES, Alphabet.ALPHANUMERIC, false);
+    }
+
+    private void shutdown() {
+        shutdown = true;
+        if (refiller instanceof ExecutorService) {
+            ((ExecutorService) refiller).shutdownNow();
+        }
+        clear();
+    }
+
+    private void clear() {
+        for (BlockingQueue<OathDeviceSettings> pool : deviceProfiles.values()) {
+            pool.clear();
+        }
+        recoveryCodeSets.clear();
+    }
+
+    private static ExecutorService newRefiller() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "oath-registration-pool");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+}
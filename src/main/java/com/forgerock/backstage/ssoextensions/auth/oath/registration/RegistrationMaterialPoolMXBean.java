@@ -0,0 +1,51 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.registration;
+
+/**
+ * JMX view of the {@link RegistrationMaterialPool}, published as {@value RegistrationMaterialPool#OBJECT_NAME}.
+ */
+public interface RegistrationMaterialPoolMXBean {
+
+    /**
+     * @return the number of pre-generated device profiles ready to use, over all secret lengths
+     */
+    int getAvailableDeviceProfiles();
+
+    /**
+     * @return the number of pre-generated recovery code sets ready to use
+     */
+    int getAvailableRecoveryCodeSets();
+
+    /**
+     * @return the number of registrations served from the pool
+     */
+    long getHits();
+
+    /**
+     * @return the number of registrations that found the pool empty and generated inline
+     */
+    long getMisses();
+
+    /**
+     * @return the number of background refills run
+     */
+    long getRefills();
+}
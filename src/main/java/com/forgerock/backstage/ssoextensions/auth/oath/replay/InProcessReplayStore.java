@@ -0,0 +1,55 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free {@link SlotReplayStore} in the memory of this AM server. It rejects replays across the requests served
+ * by this server only.
+ */
+public class InProcessReplayStore extends SlotReplayStore {
+    /** Room for a million records, in 8 MiB. */
+    public static final int DEFAULT_SLOTS = 1 << 20;
+
+    private final AtomicLongArray slots;
+
+    public InProcessReplayStore() {
+        this(DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param slots the number of slots, a power of two
+     */
+    public InProcessReplayStore(int slots) {
+        super(slots);
+        this.slots = new AtomicLongArray(slots);
+    }
+
+    @Override
+    long get(int slot) {
+        return slots.get(slot);
+    }
+
+    @Override
+    boolean compareAndSet(int slot, long expect, long update) {
+        return slots.compareAndSet(slot, expect, update);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import com.google.common.util.concurrent.Striped;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A {@link SlotReplayStore} in a memory-mapped file, shared by all AM servers on the same host that open the same
+ * file.
+ * <p>
+ * The slots follow a {@link #HEADER_BYTES} header holding a magic number, the file format version and the number of
+ * slots. Recording or releasing an OTP locks its bucket, both within this JVM and with a file lock for other
+ * processes, so the slots are read and written with plain memory access. A bucket that cannot be locked leaves the OTP
+ * unrecorded.
+ */
+public class MappedFileReplayStore extends SlotReplayStore implements Closeable {
+    static final long MAGIC = 0x4F41544852504C59L; // "OATHRPLY"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    private static final int BUCKET_BYTES = BUCKET_SLOTS * Long.BYTES;
+    // File locks are held per JVM, so threads and stores in this JVM locking the same bucket have to queue up first.
+    private static final Striped<Lock> BUCKET_LOCKS = Striped.lock(256);
+
+    private final Logger logger = LoggerFactory.getLogger(MappedFileReplayStore.class);
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer slots;
+
+    private MappedFileReplayStore(Path file, FileChannel channel, MappedByteBuffer slots, int size) {
+        super(size);
+        this.file = file;
+        this.channel = channel;
+        this.slots = slots;
+    }
+
+    /**
+     * Opens a store file, creating it if it does not exist. Where the file system supports POSIX permissions, a new
+     * file can only be read and written by its owner.
+     *
+     * @param file  the file
+     * @param slots the number of slots of a new file, a power of two; an existing file keeps its size
+     * @return the store
+     * @throws IOException if the file cannot be opened, or is not a store file
+     */
+    public static MappedFileReplayStore open(Path file, int slots) throws IOException {
+        FileChannel channel = FileChannel.open(file, EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE), ownerOnly(file));
+        try {
+            int size = readOrWriteHeader(channel, slots);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES,
+                    (long) size * Long.BYTES);
+            return new MappedFileReplayStore(file, channel, buffer, size);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static FileAttribute<?>[] ownerOnly(Path file) {
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[0];
+        }
+        return new FileAttribute<?>[]{
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+    }
+
+    private static int readOrWriteHeader(FileChannel channel, int slots) throws IOException {
+        try (FileLock ignored = channel.lock(0, HEADER_BYTES, false)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            if (channel.size() < HEADER_BYTES) {
+                header.putLong(MAGIC).putInt(VERSION).putInt(slots);
+                // Buffer rather than the covariant JDK 9 override, so the class still links on Java 8.
+                ((Buffer) header).flip();
+                channel.write(header, 0);
+                // Zero filled, which marks every slot empty.
+                channel.write(ByteBuffer.allocate(1), HEADER_BYTES + (long) slots * Long.BYTES - 1);
+                return slots;
+            }
+            channel.read(header, 0);
+            ((Buffer) header).flip();
+            if (header.getLong() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a replay store file");
+            }
+            int size = header.getInt();
+            if (channel.size() < HEADER_BYTES + (long) size * Long.BYTES) {
+                throw new IOException("Truncated replay store file");
+            }
+            return size;
+        }
+    }
+
+    @Override
+    boolean markUsed(int first, long entry, long now) {
+        Lock lock = BUCKET_LOCKS.get(first);
+        lock.lock();
+        try (FileLock ignored = channel.lock(HEADER_BYTES + (long) first * Long.BYTES, BUCKET_BYTES, false)) {
+            return super.markUsed(first, entry, now);
+        } catch (IOException e) {
+            logger.warn("Could not lock the replay store {}", file, e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void release(int first, long fingerprint) {
+        Lock lock = BUCKET_LOCKS.get(first);
+        lock.lock();
+        try (FileLock ignored = channel.lock(HEADER_BYTES + (long) first * Long.BYTES, BUCKET_BYTES, false)) {
+            super.release(first, fingerprint);
+        } catch (IOException e) {
+            logger.warn("Could not lock the replay store {}", file, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    long get(int slot) {
+        return slots.getLong(slot * Long.BYTES);
+    }
+
+    @Override
+    boolean compareAndSet(int slot, long expect, long update) {
+        if (get(slot) != expect) {
+            return false;
+        }
+        slots.putLong(slot * Long.BYTES, update);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+/**
+ * Records which OTPs have been used, so that a replayed OTP can be rejected before the device profile is saved.
+ * <p>
+ * An OTP is identified by the user, the device and the TOTP time step or HOTP counter it was generated for. A record
+ * is only needed for as long as the OTP could still be accepted, and implementations may drop it once it expires.
+ * Implementations must be thread safe, and a store shared by several AM servers rejects replays across all of them.
+ * Besides the implementations selected by {@link ReplayStoreType}, one can be plugged in through
+ * {@link java.util.ServiceLoader}.
+ */
+public interface ReplayStore {
+
+    /**
+     * Records an OTP as used, unless it already is.
+     *
+     * @param realm     the user's realm
+     * @param username  the username
+     * @param deviceId  the UUID of the device
+     * @param step      the TOTP time step or HOTP counter of the OTP
+     * @param expiresAt the time, in milliseconds since the epoch, after which the OTP can no longer be accepted
+     * @return true if the OTP was not used before, false if it is a replay
+     */
+    boolean markUsed(String realm, String username, String deviceId, long step, long expiresAt);
+
+    /**
+     * Forgets an OTP recorded by {@link #markUsed}, as the login it was recorded for could not be completed, e.g.
+     * because the device profile could not be saved. The default does nothing, which leaves the OTP rejected until it
+     * expires.
+     *
+     * @param realm    the user's realm
+     * @param username the username
+     * @param deviceId the UUID of the device
+     * @param step     the TOTP time step or HOTP counter of the OTP
+     */
+    default void release(String realm, String username, String deviceId, long step) {
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+/**
+ * The {@link ReplayStore} a verifier node uses.
+ */
+public enum ReplayStoreType {
+    /** No replay store, only the counter or last login saved in the device profile prevents replays. */
+    NONE,
+    /** A store in the memory of this AM server, see {@link InProcessReplayStore}. */
+    IN_PROCESS,
+    /** A memory-mapped file shared by the AM servers on this host, see {@link MappedFileReplayStore}. */
+    SHARED_FILE,
+    /** The first {@link ReplayStore} found by {@link java.util.ServiceLoader}. */
+    SERVICE_LOADER
+}
@@ -0,0 +1,112 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import org.forgerock.util.thread.listener.ShutdownManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The replay stores of this AM server, created on first use and shared by all nodes that select the same store.
+ */
+@Singleton
+public class ReplayStores {
+    private final Logger logger = LoggerFactory.getLogger(ReplayStores.class);
+    private final Supplier<ReplayStore> inProcess = Suppliers.memoize(InProcessReplayStore::new);
+    private final Supplier<ReplayStore> serviceLoader = Suppliers.memoize(ReplayStores::loadService);
+    private final ConcurrentMap<Path, MappedFileReplayStore> files = new ConcurrentHashMap<>();
+
+    @Inject
+    public ReplayStores(ShutdownManager shutdownManager) {
+        shutdownManager.addShutdownListener(this::shutdown);
+    }
+
+    /**
+     * Gets a replay store.
+     *
+     * @param type the type of store
+     * @param file the file of a {@link ReplayStoreType#SHARED_FILE} store, which must be set for that type
+     * @return the store, or null for {@link ReplayStoreType#NONE}
+     * @throws UncheckedIOException if the store file cannot be opened
+     * @throws IllegalStateException if the file of a shared file store is not set, or no store can be loaded with
+     * {@link ServiceLoader}
+     */
+    public ReplayStore get(ReplayStoreType type, String file) {
+        switch (type) {
+        case IN_PROCESS:
+            return inProcess.get();
+        case SHARED_FILE:
+            return files.computeIfAbsent(path(file), ReplayStores::open);
+        case SERVICE_LOADER:
+            return serviceLoader.get();
+        default:
+            return null;
+        }
+    }
+
+    private static Path path(String file) {
+        // no default, a well-known file in a shared directory could be created by anyone
+        if (Strings.isNullOrEmpty(file)) {
+            throw new IllegalStateException("Replay Store File must be set for a shared file replay store");
+        }
+        return Paths.get(file).toAbsolutePath();
+    }
+
+    private static MappedFileReplayStore open(Path file) {
+        try {
+            return MappedFileReplayStore.open(file, InProcessReplayStore.DEFAULT_SLOTS);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the replay store " + file, e);
+        }
+    }
+
+    private static ReplayStore loadService() {
+        Iterator<ReplayStore> stores = ServiceLoader.load(ReplayStore.class).iterator();
+        if (!stores.hasNext()) {
+            throw new IllegalStateException("No " + ReplayStore.class.getName() + " service found");
+        }
+        return stores.next();
+    }
+
+    private void shutdown() {
+        for (MappedFileReplayStore store : files.values()) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.warn("Could not close a replay store", e);
+            }
+        }
+        files.clear();
+    }
+}
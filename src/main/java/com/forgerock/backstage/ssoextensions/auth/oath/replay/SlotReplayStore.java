@@ -0,0 +1,178 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+
+/**
+ * A {@link ReplayStore} kept in a fixed size table of 64-bit slots.
+ * <p>
+ * Each slot holds a 38-bit fingerprint of the user, device and step, and the minute the record expires, counted from
+ * {@link #EPOCH_MILLIS}. A zero slot is empty. An OTP hashes to a bucket of {@link #BUCKET_SLOTS} slots, and is
+ * recorded in the first slot of its bucket that is empty or has expired. Afterwards the rest of the bucket is checked
+ * for a live record of the same OTP, so of two requests recording the same OTP at the same time at most one succeeds.
+ * A bucket without a free slot does not record the OTP, leaving the device profile as the only check; see
+ * {@link #getOverflowCount()}.
+ * <p>
+ * Records are kept up to a minute beyond their expiry. Two different OTPs share a fingerprint with a chance of about
+ * one in 2<sup>38</sup> for each live record in their bucket, which wrongly rejects the second as a replay.
+ */
+public abstract class SlotReplayStore implements ReplayStore {
+    static final int BUCKET_SLOTS = 16;
+    static final long EPOCH_MILLIS = 1577836800000L; // 2020-01-01T00:00:00Z
+    private static final int EXPIRY_BITS = 26;
+    private static final long EXPIRY_MASK = (1L << EXPIRY_BITS) - 1;
+
+    private final Logger logger = LoggerFactory.getLogger(SlotReplayStore.class);
+    private final int buckets;
+    private final LongAdder overflows = new LongAdder();
+
+    /**
+     * @param slots the number of slots, a power of two and a multiple of {@link #BUCKET_SLOTS}
+     */
+    SlotReplayStore(int slots) {
+        if (Integer.bitCount(slots) != 1 || slots < BUCKET_SLOTS) {
+            throw new IllegalArgumentException("Slots must be a power of two of at least " + BUCKET_SLOTS);
+        }
+        this.buckets = slots / BUCKET_SLOTS;
+    }
+
+    @Override
+    public boolean markUsed(String realm, String username, String deviceId, long step, long expiresAt) {
+        long hash = hash(realm, username, deviceId, step);
+        long now = minutes(currentTimeMillis());
+        long expiry = Math.min(EXPIRY_MASK, Math.max(now + 1, minutes(expiresAt) + 1));
+        if (markUsed(firstSlot(hash), entry(fingerprint(hash), expiry), now)) {
+            return true;
+        }
+        logger.debug("OTP of step {} of device {} has already been used", step, deviceId);
+        return false;
+    }
+
+    @Override
+    public void release(String realm, String username, String deviceId, long step) {
+        long hash = hash(realm, username, deviceId, step);
+        release(firstSlot(hash), fingerprint(hash));
+    }
+
+    /**
+     * Records an entry in a bucket. Subclasses that cannot compare and set slots atomically have to serialise the
+     * calls for the same bucket around this method.
+     *
+     * @param first the first slot of the bucket
+     * @param entry the fingerprint and expiry to record
+     * @param now   the current minute
+     * @return false if a live entry with the same fingerprint exists
+     */
+    boolean markUsed(int first, long entry, long now) {
+        long fingerprint = entry >>> EXPIRY_BITS;
+        for (int slot = first; slot < first + BUCKET_SLOTS; slot++) {
+            for (long current = get(slot); ; current = get(slot)) {
+                if (isLive(current, now)) {
+                    if (current >>> EXPIRY_BITS == fingerprint) {
+                        return false;
+                    }
+                    break;
+                }
+                if (compareAndSet(slot, current, entry)) {
+                    return !isLiveElsewhere(first, slot, fingerprint, now);
+                }
+            }
+        }
+        overflows.increment();
+        return true;
+    }
+
+    /**
+     * Clears every entry of a fingerprint in a bucket, including any left by a request that lost the race to record
+     * the same OTP. Subclasses serialise the calls as for {@link #markUsed(int, long, long)}.
+     *
+     * @param first       the first slot of the bucket
+     * @param fingerprint the fingerprint to clear
+     */
+    void release(int first, long fingerprint) {
+        for (int slot = first; slot < first + BUCKET_SLOTS; slot++) {
+            for (long current = get(slot); current >>> EXPIRY_BITS == fingerprint; current = get(slot)) {
+                if (compareAndSet(slot, current, 0)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean isLiveElsewhere(int first, int recorded, long fingerprint, long now) {
+        for (int slot = first; slot < first + BUCKET_SLOTS; slot++) {
+            long current = get(slot);
+            if (slot != recorded && isLive(current, now) && current >>> EXPIRY_BITS == fingerprint) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of OTPs that could not be recorded because their bucket was full
+     */
+    public long getOverflowCount() {
+        return overflows.sum();
+    }
+
+    private static long hash(String realm, String username, String deviceId, long step) {
+        return Hashing.murmur3_128().newHasher()
+                .putString(String.valueOf(realm), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(username), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(deviceId), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putLong(step)
+                .hash().asLong();
+    }
+
+    private static long fingerprint(long hash) {
+        long fingerprint = hash >>> EXPIRY_BITS;
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private int firstSlot(long hash) {
+        return (int) (hash & (buckets - 1)) * BUCKET_SLOTS;
+    }
+
+    static long entry(long fingerprint, long expiry) {
+        return fingerprint << EXPIRY_BITS | expiry;
+    }
+
+    abstract long get(int slot);
+
+    abstract boolean compareAndSet(int slot, long expect, long update);
+
+    private static boolean isLive(long entry, long now) {
+        return entry != 0 && (entry & EXPIRY_MASK) > now;
+    }
+
+    private static long minutes(long millis) {
+        return Math.max(0, TimeUnit.MILLISECONDS.toMinutes(millis - EPOCH_MILLIS));
+    }
+}
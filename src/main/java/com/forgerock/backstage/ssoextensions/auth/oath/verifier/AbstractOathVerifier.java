@@ -21,32 +21,118 @@ package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
 import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
 
-import java.security.MessageDigest;
+import javax.crypto.Mac;
+import javax.xml.bind.DatatypeConverter;
 
 abstract class AbstractOathVerifier {
     final OathVerifierNode.Config config;
     final OathDeviceSettings settings;
+    private final HmacKeyCache keyCache;
+    int matchedOffset;
+    long matchedStep;
+    int checkedSteps;
 
-    AbstractOathVerifier(OathVerifierNode.Config config, OathDeviceSettings settings) {
+    /**
+     * @param keyCache the cache of keyed MACs, or null to key a new MAC for every engine
+     */
+    AbstractOathVerifier(OathVerifierNode.Config config, OathDeviceSettings settings, HmacKeyCache keyCache) {
         this.config = config;
         this.settings = settings;
+        this.keyCache = keyCache;
     }
 
-    abstract void verify(String otp) throws OathVerificationException;
+    /**
+     * Verifies the OTP and, on success, updates the device settings.
+     *
+     * @param otp the OTP as entered by the user
+     * @throws OathVerificationException if the OTP does not match or cannot be accepted
+     */
+    void verify(String otp) throws OathVerificationException {
+        int code = prepare(otp);
+        for (int rank = 0; rank < candidates(); rank++) {
+            if (matches(rank, code)) {
+                checkedSteps = rank + 1;
+                accept(rank);
+                return;
+            }
+        }
+        checkedSteps = candidates();
+        throw new OathVerificationException();
+    }
+
+    /**
+     * Validates the settings, decodes the secret and parses the OTP, ahead of any {@link #matches(int, int)}.
+     *
+     * @param otp the OTP as entered by the user
+     * @return the parsed OTP
+     * @throws OathVerificationException if no OTP can be accepted from this device
+     */
+    abstract int prepare(String otp) throws OathVerificationException;
+
+    /**
+     * @return the number of steps or counters to check, after {@link #prepare(String)}
+     */
+    abstract int candidates();
+
+    /**
+     * Checks a step or counter, the most likely one being rank 0.
+     *
+     * @param rank the rank of the step or counter, less than {@link #candidates()}
+     * @param code the OTP as returned by {@link #prepare(String)}
+     * @return whether the OTP matches
+     */
+    abstract boolean matches(int rank, int code);
+
+    /**
+     * Accepts a matching step or counter and updates the device settings.
+     *
+     * @param rank the rank that {@link #matches(int, int)}
+     * @throws OathVerificationException if the matching OTP must not be accepted, e.g. as it is a replay
+     */
+    abstract void accept(int rank) throws OathVerificationException;
+
+    /**
+     * @return the offset of the matching step (TOTP) or counter (HOTP) from the expected one, after a successful
+     * {@link #verify(String)}
+     */
+    int getMatchedOffset() {
+        return matchedOffset;
+    }
+
+    /**
+     * @return the number of steps or counters the OTP was checked against by {@link #verify(String)}
+     */
+    int getCheckedSteps() {
+        return checkedSteps;
+    }
+
+    /**
+     * @return the matching step (TOTP) or counter (HOTP), after a successful {@link #verify(String)}
+     */
+    long getMatchedStep() {
+        return matchedStep;
+    }
+
+    /**
+     * @return the time, in milliseconds since the epoch, until which the OTP accepted by {@link #verify(String)} could
+     * be accepted again if it was not recorded as used
+     */
+    abstract long acceptableUntil();
 
     String getSharedSecret() throws OathVerificationException {
         String sharedSecret = settings.getSharedSecret();
         if (config.minSharedSecretLength() <= 0) {
-            throw new OathVerificationException("Min Secret Key Length is not a valid value");
+            throw new OathVerificationException(FailureReason.INVALID_CONFIGURATION,
+                    "Min Secret Key Length is not a valid value");
         }
 
         if (sharedSecret == null || sharedSecret.isEmpty()) {
-            throw new OathVerificationException("Secret key is not a valid value");
+            throw new OathVerificationException(FailureReason.INVALID_DEVICE, "Secret key is not a valid value");
         }
 
         if (sharedSecret.length() < config.minSharedSecretLength()) {
-            throw new OathVerificationException("Secret key of length " + sharedSecret.length()
-                    + " is less than the minimum secret key length");
+            throw new OathVerificationException(FailureReason.INVALID_DEVICE, "Secret key of length "
+                    + sharedSecret.length() + " is less than the minimum secret key length");
         }
 
         // get rid of white space in string (messes with the data converter)
@@ -62,7 +148,21 @@ abstract class AbstractOathVerifier {
         return sharedSecret;
     }
 
-    boolean isEqual(String str1, String str2) {
-        return MessageDigest.isEqual(str1.getBytes(), str2.getBytes());
+    /**
+     * @return an engine for the configured hash function, keyed with the given secret
+     */
+    HmacOtpEngine newEngine(byte[] key, boolean addChecksum, int truncationOffset) throws OathVerificationException {
+        Mac mac = keyCache == null
+                ? HmacKeyCache.newMac(config.hashAlgorithm(), key)
+                : keyCache.newMac(settings.getUUID(), config.hashAlgorithm(), key);
+        return new HmacOtpEngine(mac, config.passwordLength(), addChecksum, truncationOffset);
+    }
+
+    byte[] getSharedSecretBytes() throws OathVerificationException {
+        try {
+            return DatatypeConverter.parseHexBinary(getSharedSecret());
+        } catch (IllegalArgumentException e) {
+            throw new OathVerificationException(FailureReason.INVALID_DEVICE, "Secret key is not a valid hex value", e);
+        }
     }
 }
@@ -0,0 +1,188 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.utils.Time;
+
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts failed OTP attempts per user and per realm over a sliding window, so that the verifier can turn away a
+ * burst of wrong codes before loading the device profile or computing any HMAC.
+ * <p>
+ * Each counter keeps the failures of the current and the previous fixed window in a single atomic long, and the
+ * sliding count is estimated by weighting the previous window by how much of it still overlaps. Counters are updated
+ * with compare-and-set and held in size bounded caches that drop them once idle for two windows.
+ */
+@Singleton
+public class AttemptLimiter {
+    static final int MAX_USERS = 100000;
+    static final int MAX_REALMS = 1000;
+    private static final int MAX_COUNT = 0xffff;
+
+    private final ConcurrentMap<Long, Counters> countersByWindow = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+
+    public AttemptLimiter() {
+        this(Time::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    AttemptLimiter(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @param realm          the realm
+     * @param username       the username, may be null
+     * @param windowSeconds  the length of the sliding window
+     * @param maxPerUser     the failures allowed per user in the window, 0 for no limit
+     * @param maxPerRealm    the failures allowed per realm in the window, 0 for no limit
+     * @return whether either limit has been reached
+     */
+    boolean isLimited(String realm, String username, int windowSeconds, int maxPerUser, int maxPerRealm) {
+        Counters counters = countersByWindow.get(TimeUnit.SECONDS.toMillis(windowSeconds));
+        if (counters == null) {
+            return false;
+        }
+        long now = clock.getAsLong();
+        if (maxPerRealm > 0 && realm != null && reached(counters.realms.getIfPresent(realm), now, maxPerRealm)) {
+            return true;
+        }
+        return maxPerUser > 0 && username != null
+                && reached(counters.users.getIfPresent(ImmutableList.of(realm, username)), now, maxPerUser);
+    }
+
+    /**
+     * Counts a failed attempt against the user and the realm.
+     */
+    void failed(String realm, String username, int windowSeconds) {
+        Counters counters = counters(windowSeconds);
+        long now = clock.getAsLong();
+        if (realm != null) {
+            get(counters.realms, realm, counters.windowMillis).increment(now);
+        }
+        if (username != null) {
+            get(counters.users, ImmutableList.of(realm, username), counters.windowMillis).increment(now);
+        }
+    }
+
+    /**
+     * Clears the user's failures after a successful attempt. The realm's failures are kept.
+     */
+    void succeeded(String realm, String username, int windowSeconds) {
+        Counters counters = countersByWindow.get(TimeUnit.SECONDS.toMillis(windowSeconds));
+        if (counters != null && username != null) {
+            counters.users.invalidate(ImmutableList.of(realm, username));
+        }
+    }
+
+    private Counters counters(int windowSeconds) {
+        return countersByWindow.computeIfAbsent(TimeUnit.SECONDS.toMillis(Math.max(1, windowSeconds)), Counters::new);
+    }
+
+    private static boolean reached(SlidingWindowCounter counter, long now, int max) {
+        return counter != null && counter.estimate(now) >= max;
+    }
+
+    private static <K> SlidingWindowCounter get(Cache<K, SlidingWindowCounter> cache, K key, long windowMillis) {
+        try {
+            return cache.get(key, () -> new SlidingWindowCounter(windowMillis));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The user and realm counters of one window length.
+     */
+    private static final class Counters {
+        private final long windowMillis;
+        private final Cache<List<String>, SlidingWindowCounter> users;
+        private final Cache<String, SlidingWindowCounter> realms;
+
+        Counters(long windowMillis) {
+            this.windowMillis = windowMillis;
+            this.users = CacheBuilder.newBuilder()
+                    .maximumSize(MAX_USERS)
+                    .expireAfterAccess(2 * windowMillis, TimeUnit.MILLISECONDS)
+                    .build();
+            this.realms = CacheBuilder.newBuilder()
+                    .maximumSize(MAX_REALMS)
+                    .expireAfterAccess(2 * windowMillis, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+    }
+
+    /**
+     * A sliding window counter packed in one long: the low 32 bits of the window number, the previous window's count
+     * and the current window's count, 16 bits each.
+     */
+    static final class SlidingWindowCounter {
+        private final long windowMillis;
+        private final AtomicLong state = new AtomicLong();
+
+        SlidingWindowCounter(long windowMillis) {
+            this.windowMillis = windowMillis;
+        }
+
+        void increment(long now) {
+            long window = now / windowMillis;
+            long current;
+            long updated;
+            do {
+                current = state.get();
+                long rolled = roll(current, window);
+                updated = (rolled & ~MAX_COUNT) | Math.min(MAX_COUNT, (rolled & MAX_COUNT) + 1);
+            } while (!state.compareAndSet(current, updated));
+        }
+
+        double estimate(long now) {
+            long window = now / windowMillis;
+            long rolled = roll(state.get(), window);
+            double overlap = 1 - (double) (now % windowMillis) / windowMillis;
+            return ((rolled >>> 16) & MAX_COUNT) * overlap + (rolled & MAX_COUNT);
+        }
+
+        /**
+         * @return the state moved on to the given window
+         */
+        private static long roll(long state, long window) {
+            long stored = state >>> 32;
+            long number = window & 0xffffffffL;
+            if (stored == number) {
+                return state;
+            }
+            long previous = stored == ((window - 1) & 0xffffffffL) ? state & MAX_COUNT : 0;
+            return number << 32 | previous << 16;
+        }
+    }
+}
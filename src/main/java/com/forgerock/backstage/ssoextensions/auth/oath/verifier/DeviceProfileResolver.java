@@ -0,0 +1,182 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.RegistrationEnvelope;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathEvent;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathMetrics;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathPhase;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_DEVICE_PROFILE_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_LOADED_DEVICE_PROFILE_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_REGISTRATION_KEY;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+
+/**
+ * Resolves the device profiles for a single {@link OathVerifierNode#process(TreeContext)} call, lazily and at most
+ * once.
+ * <p>
+ * A profile in the shared state wins: first one put there by the registration node, then the ones carried over from the
+ * prompt round. Only when neither is present are all of the user's profiles read from the identity store. A
+ * registration is decrypted once and kept, so its recovery codes can be read without decrypting it again.
+ */
+final class DeviceProfileResolver {
+    private final Logger logger = LoggerFactory.getLogger(DeviceProfileResolver.class);
+    private final TreeContext context;
+    private final OathHelper helper;
+    private final OathMetrics metrics;
+    private final VerifierEvents events;
+    private final int cacheTtlSeconds;
+
+    private boolean resolved;
+    private boolean loadedFromStore;
+    private List<OathDeviceSettings> devices;
+    private boolean registrationResolved;
+    private RegistrationEnvelope registration;
+
+    DeviceProfileResolver(TreeContext context, OathHelper helper, OathMetrics metrics, VerifierEvents events,
+                          int cacheTtlSeconds) {
+        this.context = context;
+        this.helper = helper;
+        this.metrics = metrics;
+        this.events = events;
+        this.cacheTtlSeconds = cacheTtlSeconds;
+    }
+
+    /**
+     * Whether a device profile is available in the shared state, without decrypting it.
+     */
+    boolean isInSharedState() {
+        return isDefined(OATH_REGISTRATION_KEY) || isDefined(OATH_DEVICE_PROFILE_KEY)
+                || isDefined(OATH_LOADED_DEVICE_PROFILE_KEY);
+    }
+
+    /**
+     * Whether the resolved profiles had to be read from the identity store during this request.
+     */
+    boolean isLoadedFromStore() {
+        return loadedFromStore;
+    }
+
+    /**
+     * Returns the device profiles, resolving them on the first call.
+     *
+     * @return the device profiles, empty if the user has no device
+     * @throws DevicePersistenceException if the identity store could not be read
+     */
+    List<OathDeviceSettings> get() throws DevicePersistenceException {
+        if (!resolved) {
+            devices = fromRegistration();
+            if (devices.isEmpty()) {
+                devices = fromSharedState(OATH_DEVICE_PROFILE_KEY);
+            }
+            if (devices.isEmpty()) {
+                devices = fromSharedState(OATH_LOADED_DEVICE_PROFILE_KEY);
+            }
+            if (devices.isEmpty()) {
+                logger.debug("No device profile found in shared state");
+                OathEvent event = events.begin(OathPhase.PROFILE_LOAD);
+                String outcome = OathEvent.ERROR;
+                long start = metrics.start();
+                try {
+                    devices = helper.getOathDevices(context, cacheTtlSeconds);
+                    outcome = OathEvent.SUCCESS;
+                } finally {
+                    metrics.stop(OathPhase.PROFILE_LOAD, start);
+                    event.end(outcome);
+                }
+                loadedFromStore = true;
+            }
+            resolved = true;
+        }
+        return devices;
+    }
+
+    /**
+     * Returns the registration put into the shared state by the registration node, decrypting it on the first call.
+     *
+     * @return the registration, or null if there is none or it cannot be read
+     */
+    RegistrationEnvelope getRegistration() {
+        if (!registrationResolved) {
+            registrationResolved = true;
+            JsonValue encrypted = context.sharedState.get(OATH_REGISTRATION_KEY);
+            if (encrypted.isNull()) {
+                return null;
+            }
+            long start = metrics.start();
+            try {
+                registration = helper.decryptRegistration(encrypted.asString());
+            } catch (IOException e) {
+                logger.error("Cannot read registration from shared state", e);
+            } finally {
+                metrics.stop(OathPhase.SHARED_STATE_DECRYPT, start);
+            }
+        }
+        return registration;
+    }
+
+    private List<OathDeviceSettings> fromRegistration() {
+        RegistrationEnvelope envelope = getRegistration();
+        if (envelope == null) {
+            return emptyList();
+        }
+        logger.debug("Using device profile found in shared state under {}", OATH_REGISTRATION_KEY);
+        try {
+            return singletonList(envelope.getDeviceSettings());
+        } catch (IOException e) {
+            logger.error("Cannot deserialize device profile from registration", e);
+            return emptyList();
+        }
+    }
+
+    private boolean isDefined(String key) {
+        return !context.sharedState.get(key).isNull();
+    }
+
+    private List<OathDeviceSettings> fromSharedState(String key) {
+        JsonValue oathDeviceProfileJsonNode = context.sharedState.get(key);
+        if (oathDeviceProfileJsonNode.isNull()) {
+            return emptyList();
+        }
+
+        logger.debug("Using device profile found in shared state under {}", key);
+        long start = metrics.start();
+        try {
+            return helper.decryptOathDevices(oathDeviceProfileJsonNode.asString());
+        } catch (IOException e) {
+            logger.error("Cannot deserialize device profile from shared state", e);
+            return emptyList();
+        } finally {
+            metrics.stop(OathPhase.SHARED_STATE_DECRYPT, start);
+        }
+    }
+}
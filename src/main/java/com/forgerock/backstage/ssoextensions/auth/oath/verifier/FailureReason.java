@@ -0,0 +1,43 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+/**
+ * Why a verification failed, with a bounded set of values that is safe to use as a metric or audit dimension.
+ */
+public enum FailureReason {
+    /** The submitted code matched no step or counter in the window. */
+    NO_MATCH,
+    /** The submitted code is not a number of the configured length. */
+    INVALID_OTP,
+    /** The code was already used, or is older than the last one used. */
+    REPLAY,
+    /** The code matched, but outside the allowed clock drift. */
+    OUT_OF_SYNC,
+    /** The stored device profile is unusable, e.g. a missing or malformed secret. */
+    INVALID_DEVICE,
+    /** The node configuration is invalid. */
+    INVALID_CONFIGURATION,
+    /** The device profile kept changing concurrently while it was being saved. */
+    CONCURRENT_UPDATE,
+    /** The device profile could not be read or written. */
+    PERSISTENCE,
+    UNKNOWN
+}
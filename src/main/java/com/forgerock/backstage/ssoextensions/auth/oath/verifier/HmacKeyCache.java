@@ -0,0 +1,114 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Singleton;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a keyed {@link Mac} per recently used device and hands out clones of it, so that a verification skips the
+ * provider lookup, the key setup and the hashing of the inner pad.
+ * <p>
+ * The cached MAC is primed with an empty update, which makes the provider absorb the inner pad, and is never used
+ * itself: it is only cloned, which reads but does not change its state. An entry is only used if its key equals the
+ * device's current secret. Providers whose MACs cannot be cloned get a newly keyed MAC every time.
+ */
+@Singleton
+public class HmacKeyCache {
+    static final int MAX_DEVICES = 10000;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Cache<List<String>, Entry> macs = CacheBuilder.newBuilder()
+            .maximumSize(MAX_DEVICES)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    /**
+     * @param deviceId  the UUID of the device, may be null to not cache
+     * @param algorithm the hash function
+     * @param key       the device's secret
+     * @return a MAC keyed with the secret, for the caller's use only
+     * @throws OathVerificationException if the MAC cannot be keyed with the secret
+     */
+    Mac newMac(String deviceId, HmacAlgorithm algorithm, byte[] key) throws OathVerificationException {
+        if (deviceId == null) {
+            return newMac(algorithm, key);
+        }
+        List<String> cacheKey = ImmutableList.of(deviceId, algorithm.name());
+        Entry entry = macs.getIfPresent(cacheKey);
+        if (entry != null && MessageDigest.isEqual(entry.key, key)) {
+            Mac mac = copy(entry.prototype);
+            if (mac != null) {
+                return mac;
+            }
+        }
+
+        Mac prototype = newMac(algorithm, key);
+        prototype.update(EMPTY, 0, 0);
+        Mac mac = copy(prototype);
+        if (mac == null) {
+            return prototype;
+        }
+        macs.put(cacheKey, new Entry(key.clone(), prototype));
+        return mac;
+    }
+
+    /**
+     * @return a MAC newly keyed with the secret
+     */
+    static Mac newMac(HmacAlgorithm algorithm, byte[] key) throws OathVerificationException {
+        try {
+            Mac mac = Mac.getInstance(algorithm.getMacName());
+            mac.init(new SecretKeySpec(key, "RAW"));
+            return mac;
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new OathVerificationException(FailureReason.INVALID_DEVICE,
+                    "Unable to initialise HMAC with the shared secret", e);
+        }
+    }
+
+    private static Mac copy(Mac prototype) {
+        try {
+            return (Mac) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] key;
+        private final Mac prototype;
+
+        Entry(byte[] key, Mac prototype) {
+            this.key = key;
+            this.prototype = prototype;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Computes RFC 4226 / RFC 6238 one-time passwords as plain ints, with HMAC-SHA1, HMAC-SHA256 or HMAC-SHA512.
+ * <p>
+ * The shared secret is keyed into a single {@link Mac} up front, the moving factor is written into a reused 8 byte
+ * buffer and the HMAC is finished into a reused output buffer, so checking a step allocates nothing. Instances are
+ * not thread safe and are meant to live for the duration of a single verification.
+ */
+final class HmacOtpEngine {
+    private static final int[] DIGITS_POWER = {
+            1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000
+    };
+    private static final int[] DOUBLE_DIGITS = {0, 2, 4, 6, 8, 1, 3, 5, 7, 9};
+    private static final int INVALID_OTP = -1;
+    static final int NO_MATCH = -1;
+
+    private final Mac mac;
+    private final byte[] movingFactor = new byte[8];
+    private final byte[] hash;
+    private final int codeDigits;
+    private final boolean addChecksum;
+    private final int truncationOffset;
+
+    HmacOtpEngine(byte[] key, int codeDigits) throws OathVerificationException {
+        this(key, codeDigits, false, -1);
+    }
+
+    HmacOtpEngine(byte[] key, int codeDigits, boolean addChecksum, int truncationOffset)
+            throws OathVerificationException {
+        this(HmacKeyCache.newMac(HmacAlgorithm.SHA1, key), codeDigits, addChecksum, truncationOffset);
+    }
+
+    /**
+     * @param mac the MAC keyed with the shared secret, owned by this engine from now on
+     */
+    HmacOtpEngine(Mac mac, int codeDigits, boolean addChecksum, int truncationOffset)
+            throws OathVerificationException {
+        int digits = addChecksum ? codeDigits + 1 : codeDigits;
+        if (codeDigits <= 0 || digits >= DIGITS_POWER.length) {
+            throw new OathVerificationException(FailureReason.INVALID_CONFIGURATION,
+                    "Password length of " + codeDigits + " is not supported");
+        }
+        this.mac = mac;
+        this.hash = new byte[mac.getMacLength()];
+        this.codeDigits = codeDigits;
+        this.addChecksum = addChecksum;
+        this.truncationOffset = truncationOffset;
+    }
+
+    /**
+     * Generates the OTP for the given moving factor (HOTP counter or TOTP time step).
+     *
+     * @param counter the moving factor
+     * @return the OTP as an int, without leading zeros
+     */
+    int generate(long counter) {
+        for (int i = movingFactor.length - 1; i >= 0; i--) {
+            movingFactor[i] = (byte) counter;
+            counter >>>= 8;
+        }
+        mac.update(movingFactor, 0, movingFactor.length);
+        try {
+            mac.doFinal(hash, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+
+        int offset = hash[hash.length - 1] & 0xf;
+        if (0 <= truncationOffset && truncationOffset < hash.length - 4) {
+            offset = truncationOffset;
+        }
+        int binary = ((hash[offset] & 0x7f) << 24)
+                | ((hash[offset + 1] & 0xff) << 16)
+                | ((hash[offset + 2] & 0xff) << 8)
+                | (hash[offset + 3] & 0xff);
+        int otp = binary % DIGITS_POWER[codeDigits];
+        if (addChecksum) {
+            otp = otp * 10 + checksum(otp, codeDigits);
+        }
+        return otp;
+    }
+
+    /**
+     * Checks whether the OTP for the given moving factor equals the parsed user input.
+     *
+     * @param counter the moving factor
+     * @param otp     the user input as returned by {@link #parse(String)}
+     * @return true if the OTPs match
+     */
+    boolean matches(long counter, int otp) {
+        return isEqual(generate(counter), otp);
+    }
+
+    /**
+     * Scans the moving factors {@code from} to {@code from + window} (inclusive) for the parsed user input, reusing the
+     * keyed MAC and the counter buffer for every step.
+     *
+     * @param from   the first moving factor to check
+     * @param window the number of moving factors to look ahead
+     * @param otp    the user input as returned by {@link #parse(String)}
+     * @return the offset from {@code from} of the first matching moving factor, or {@link #NO_MATCH}
+     */
+    int scan(long from, int window, int otp) {
+        for (int i = 0; i <= window; i++) {
+            if (matches(from + i, otp)) {
+                return i;
+            }
+        }
+        return NO_MATCH;
+    }
+
+    /**
+     * Parses the user input into an int that can be compared against {@link #generate(long)}.
+     *
+     * @param otp the OTP as entered by the user
+     * @return the numeric value of the OTP, or a negative value if it can never match
+     */
+    int parse(String otp) {
+        if (otp == null || otp.length() != (addChecksum ? codeDigits + 1 : codeDigits)) {
+            return INVALID_OTP;
+        }
+        int value = 0;
+        for (int i = 0; i < otp.length(); i++) {
+            char c = otp.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID_OTP;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Calculates the RFC 4226 checksum digit (Luhn) over the given number of digits.
+     */
+    private static int checksum(int num, int digits) {
+        boolean doubleDigit = true;
+        int total = 0;
+        while (0 < digits--) {
+            int digit = num % 10;
+            num /= 10;
+            if (doubleDigit) {
+                digit = DOUBLE_DIGITS[digit];
+            }
+            total += digit;
+            doubleDigit = !doubleDigit;
+        }
+        int result = total % 10;
+        return result > 0 ? 10 - result : result;
+    }
+
+    /**
+     * Compares two OTPs without branching on their contents.
+     */
+    static boolean isEqual(int a, int b) {
+        return (a ^ b) == 0;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.inject.Singleton;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory index of the next HOTP values of each device, so verifying an OTP is a table lookup rather than a scan of
+ * the whole look-ahead window.
+ * <p>
+ * A device's index covers the counters {@code base} to {@code base + window} and is built after its first successful
+ * login. When the stored counter moves forward within the window, only the newly exposed counters are computed; any
+ * other change (a counter outside the window, a new secret or different node settings) drops the index and the
+ * verifier falls back to scanning. The values are never persisted.
+ */
+@Singleton
+public class HotpLookaheadIndex {
+    /** Returned by {@link #find} when the device has no usable index and the caller has to scan. */
+    static final int NOT_INDEXED = -2;
+    private static final int MAX_DEVICES = 10000;
+    private static final int EMPTY = -1;
+
+    private final Cache<String, Entry> entries = CacheBuilder.newBuilder()
+            .maximumSize(MAX_DEVICES)
+            .expireAfterAccess(1, TimeUnit.DAYS)
+            .build();
+
+    /**
+     * Identifies the secret and the settings the OTPs were generated with, without keeping the secret itself.
+     *
+     * @param algorithm        the hash function
+     * @param key              the shared secret
+     * @param codeDigits       the OTP length
+     * @param addChecksum      whether a checksum digit is added
+     * @param truncationOffset the truncation offset
+     * @return the fingerprint
+     */
+    static byte[] fingerprint(HmacAlgorithm algorithm, byte[] key, int codeDigits, boolean addChecksum,
+                              int truncationOffset) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) algorithm.ordinal());
+            digest.update(key);
+            digest.update(ByteBuffer.allocate(9)
+                    .putInt(codeDigits)
+                    .put((byte) (addChecksum ? 1 : 0))
+                    .putInt(truncationOffset)
+                    .array());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Looks the OTP up in the device's index, first moving the index forward to the stored counter.
+     *
+     * @param deviceId    the UUID of the device, may be null
+     * @param fingerprint as returned by {@link #fingerprint}
+     * @param engine      the engine keyed with the device's secret, used for counters not yet indexed
+     * @param counter     the stored counter
+     * @param window      the look-ahead window
+     * @param otp         the parsed user input
+     * @return the offset from {@code counter} of the matching OTP, {@link HmacOtpEngine#NO_MATCH} or
+     * {@link #NOT_INDEXED}
+     */
+    int find(String deviceId, byte[] fingerprint, HmacOtpEngine engine, long counter, int window, int otp) {
+        Entry entry = deviceId == null ? null : entries.getIfPresent(deviceId);
+        if (entry == null) {
+            return NOT_INDEXED;
+        }
+        synchronized (entry) {
+            if (!entry.isFor(fingerprint, window) || !entry.moveTo(engine, counter)) {
+                return NOT_INDEXED;
+            }
+            return entry.find(otp);
+        }
+    }
+
+    /**
+     * Makes the device's index start at the new counter, building it if there is none.
+     *
+     * @param deviceId    the UUID of the device, may be null
+     * @param fingerprint as returned by {@link #fingerprint}
+     * @param engine      the engine keyed with the device's secret
+     * @param counter     the next counter expected from the device
+     * @param window      the look-ahead window
+     */
+    void advance(String deviceId, byte[] fingerprint, HmacOtpEngine engine, long counter, int window) {
+        if (deviceId == null || window < 0) {
+            return;
+        }
+        Entry entry = entries.getIfPresent(deviceId);
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.isFor(fingerprint, window) && entry.moveTo(engine, counter)) {
+                    return;
+                }
+            }
+        }
+        entry = new Entry(fingerprint, window);
+        entry.build(engine, counter);
+        entries.put(deviceId, entry);
+    }
+
+    void invalidate(String deviceId) {
+        if (deviceId != null) {
+            entries.invalidate(deviceId);
+        }
+    }
+
+    /**
+     * The OTPs of one device in counter order, plus an open addressing table from OTP to its first offset.
+     */
+    private static final class Entry {
+        private final byte[] fingerprint;
+        private final int[] codes;
+        private final int[] keys;
+        private final int[] offsets;
+        private final int mask;
+        private long base;
+
+        Entry(byte[] fingerprint, int window) {
+            this.fingerprint = fingerprint;
+            this.codes = new int[window + 1];
+            int capacity = Integer.highestOneBit(codes.length * 2) * 2;
+            this.keys = new int[capacity];
+            this.offsets = new int[capacity];
+            this.mask = capacity - 1;
+        }
+
+        boolean isFor(byte[] fingerprint, int window) {
+            return codes.length == window + 1 && MessageDigest.isEqual(this.fingerprint, fingerprint);
+        }
+
+        void build(HmacOtpEngine engine, long counter) {
+            base = counter;
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = engine.generate(counter + i);
+            }
+            reindex();
+        }
+
+        /**
+         * Moves the index forward, computing only the counters that come into the window.
+         *
+         * @return false if the counter is not covered by the index
+         */
+        boolean moveTo(HmacOtpEngine engine, long counter) {
+            long distance = counter - base;
+            if (distance == 0) {
+                return true;
+            }
+            if (distance < 0 || distance >= codes.length) {
+                return false;
+            }
+            int kept = codes.length - (int) distance;
+            System.arraycopy(codes, (int) distance, codes, 0, kept);
+            for (int i = kept; i < codes.length; i++) {
+                codes[i] = engine.generate(counter + i);
+            }
+            base = counter;
+            reindex();
+            return true;
+        }
+
+        int find(int otp) {
+            for (int slot = slot(otp); ; slot = (slot + 1) & mask) {
+                if (keys[slot] == EMPTY) {
+                    return HmacOtpEngine.NO_MATCH;
+                }
+                if (keys[slot] == otp) {
+                    return offsets[slot];
+                }
+            }
+        }
+
+        private void reindex() {
+            Arrays.fill(keys, EMPTY);
+            for (int i = 0; i < codes.length; i++) {
+                int slot = slot(codes[i]);
+                while (keys[slot] != EMPTY && keys[slot] != codes[i]) {
+                    slot = (slot + 1) & mask;
+                }
+                // the first counter wins, as it would in a scan
+                if (keys[slot] == EMPTY) {
+                    keys[slot] = codes[i];
+                    offsets[slot] = i;
+                }
+            }
+        }
+
+        private int slot(int otp) {
+            return (otp * 0x9E3779B9) >>> 16 & mask;
+        }
+    }
+}
@@ -19,38 +19,136 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
-import com.sun.identity.authentication.modules.hotp.HOTPAlgorithm;
-import com.sun.identity.authentication.modules.hotp.OTPGenerator;
 import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
 
-import javax.xml.bind.DatatypeConverter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
 
 public final class HotpVerifier extends AbstractOathVerifier {
-    private final OTPGenerator hotpGenerator = new HOTPAlgorithm();
+    /** How long a used counter is recorded, long enough for any stale copy of the device profile to be replaced. */
+    static final long REPLAY_RECORD_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final HotpLookaheadIndex lookaheadIndex;
+    private int counter;
+    private byte[] key;
+    private HmacOtpEngine engine;
+    private byte[] fingerprint;
+    private int indexedOffset;
 
     HotpVerifier(OathVerifierNode.Config config, OathDeviceSettings settings) {
-        super(config, settings);
+        this(config, settings, null);
+    }
+
+    HotpVerifier(OathVerifierNode.Config config, OathDeviceSettings settings, HotpLookaheadIndex lookaheadIndex) {
+        this(config, settings, lookaheadIndex, null);
+    }
+
+    /**
+     * @param lookaheadIndex the index to look the OTP up in before scanning, or null to always scan
+     * @param keyCache       the cache of keyed MACs, or null to key a new MAC for every engine
+     */
+    HotpVerifier(OathVerifierNode.Config config, OathDeviceSettings settings, HotpLookaheadIndex lookaheadIndex,
+                 HmacKeyCache keyCache) {
+        super(config, settings, keyCache);
+        this.lookaheadIndex = lookaheadIndex;
     }
 
     @Override
     void verify(String otp) throws OathVerificationException {
-        int counter = settings.getCounter();
-        byte[] sharedSecretBytes = DatatypeConverter.parseHexBinary(getSharedSecret());
-
+        int code = prepare(otp);
+        int offset = indexedOffset;
         //test the counter in the lookahead window
-        for (int i = 0; i <= config.hotpWindowSize(); i++) {
-            String otpGen;
-            try {
-                otpGen = hotpGenerator.generateOTP(sharedSecretBytes, counter + i, config.passwordLength(), config.checksum(),
-                        config.truncationOffset());
-            } catch (Exception e) {
-                throw new OathVerificationException(e.getMessage(), e);
-            }
-            if (isEqual(otpGen, otp)) {
-                settings.setCounter(counter + i);
-                return;
+        if (offset == HotpLookaheadIndex.NOT_INDEXED) {
+            offset = scan(key, engine, counter, code);
+            checkedSteps = offset == HmacOtpEngine.NO_MATCH ? config.hotpWindowSize() + 1 : offset + 1;
+        } else {
+            checkedSteps = candidates();
+        }
+        if (offset == HmacOtpEngine.NO_MATCH) {
+            throw new OathVerificationException();
+        }
+        accept(offset);
+    }
+
+    /**
+     * Also looks the OTP up in the look-ahead index, which leaves a single counter to check if the index has it and
+     * none if the index rules it out.
+     */
+    @Override
+    int prepare(String otp) throws OathVerificationException {
+        counter = settings.getCounter();
+        key = getSharedSecretBytes();
+        engine = newEngine(key, config.checksum(), config.truncationOffset());
+        int code = engine.parse(otp);
+        if (code < 0) {
+            throw new OathVerificationException(FailureReason.INVALID_OTP, "OTP is not a valid value");
+        }
+
+        indexedOffset = HotpLookaheadIndex.NOT_INDEXED;
+        if (lookaheadIndex != null) {
+            fingerprint = HotpLookaheadIndex.fingerprint(config.hashAlgorithm(), key, config.passwordLength(),
+                    config.checksum(), config.truncationOffset());
+            indexedOffset = lookaheadIndex.find(settings.getUUID(), fingerprint, engine, counter,
+                    config.hotpWindowSize(), code);
+            //an indexed match is confirmed against the secret itself
+            if (indexedOffset >= 0 && !engine.matches(counter + indexedOffset, code)) {
+                lookaheadIndex.invalidate(settings.getUUID());
+                indexedOffset = HotpLookaheadIndex.NOT_INDEXED;
             }
         }
-        throw new OathVerificationException();
+        return code;
+    }
+
+    @Override
+    int candidates() {
+        if (indexedOffset == HotpLookaheadIndex.NOT_INDEXED) {
+            return config.hotpWindowSize() + 1;
+        }
+        return indexedOffset >= 0 ? 1 : 0;
+    }
+
+    @Override
+    boolean matches(int rank, int code) {
+        return engine.matches(counter + offset(rank), code);
+    }
+
+    @Override
+    void accept(int rank) {
+        int offset = offset(rank);
+        //the stored counter is the next one expected, so the matched OTP cannot be replayed
+        settings.setCounter(counter + offset + 1);
+        matchedOffset = offset;
+        matchedStep = counter + offset;
+
+        if (lookaheadIndex != null) {
+            lookaheadIndex.advance(settings.getUUID(), fingerprint, engine, settings.getCounter(),
+                    config.hotpWindowSize());
+        }
+    }
+
+    @Override
+    long acceptableUntil() {
+        return currentTimeMillis() + REPLAY_RECORD_MILLIS;
+    }
+
+    private int offset(int rank) {
+        return indexedOffset >= 0 ? indexedOffset : rank;
+    }
+
+    private int scan(byte[] key, HmacOtpEngine engine, int counter, int code) throws OathVerificationException {
+        int parallelism = Math.min(config.hotpScanThreads(), config.hotpWindowSize() / ParallelHotpScan.BLOCK_SIZE);
+        if (parallelism <= 1 || config.hotpWindowSize() < ParallelHotpScan.MIN_WINDOW) {
+            return engine.scan(counter, config.hotpWindowSize(), code);
+        }
+        //every worker needs its own MAC
+        List<HmacOtpEngine> engines = new ArrayList<>(parallelism);
+        engines.add(engine);
+        while (engines.size() < parallelism) {
+            engines.add(newEngine(key, config.checksum(), config.truncationOffset()));
+        }
+        return ParallelHotpScan.scan(engines, counter, config.hotpWindowSize(), code);
     }
 }
@@ -0,0 +1,90 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Verifies an OTP against all of a user's devices in one pass.
+ * <p>
+ * Every device is prepared once, which validates its settings and decodes its secret. The steps or counters are then
+ * checked rank by rank across the devices, so the most likely candidate of every device is checked before the second
+ * most likely of any, and the search stops at the first match. Only the matching device is accepted and updated.
+ * Devices that cannot accept any OTP, e.g. because their secret is invalid or their current step was already used, are
+ * left out; if that leaves none, the first device's error is reported.
+ */
+final class MultiDeviceScan {
+
+    private MultiDeviceScan() {
+    }
+
+    /**
+     * @param verifiers one verifier per device
+     * @param otp       the OTP as entered by the user
+     * @return the verifier of the device that matched, whose settings have been updated
+     * @throws OathVerificationException if no device matches or the matching one does not accept the OTP
+     */
+    static AbstractOathVerifier verify(List<? extends AbstractOathVerifier> verifiers, String otp)
+            throws OathVerificationException {
+        List<AbstractOathVerifier> prepared = new ArrayList<>(verifiers.size());
+        int[] codes = new int[verifiers.size()];
+        int ranks = 0;
+        OathVerificationException firstError = null;
+        for (AbstractOathVerifier verifier : verifiers) {
+            try {
+                codes[prepared.size()] = verifier.prepare(otp);
+            } catch (OathVerificationException e) {
+                if (firstError == null) {
+                    firstError = e;
+                }
+                continue;
+            }
+            prepared.add(verifier);
+            ranks = Math.max(ranks, verifier.candidates());
+        }
+        if (prepared.isEmpty() && firstError != null) {
+            throw firstError;
+        }
+
+        for (int rank = 0; rank < ranks; rank++) {
+            for (int i = 0; i < prepared.size(); i++) {
+                AbstractOathVerifier verifier = prepared.get(i);
+                if (rank < verifier.candidates() && verifier.matches(rank, codes[i])) {
+                    countCheckedSteps(prepared, rank, i);
+                    verifier.accept(rank);
+                    return verifier;
+                }
+            }
+        }
+        countCheckedSteps(prepared, ranks, prepared.size());
+        throw new OathVerificationException();
+    }
+
+    /**
+     * Sets how many steps or counters of each device were checked when the scan stopped at a rank and device.
+     */
+    private static void countCheckedSteps(List<AbstractOathVerifier> prepared, int rank, int device) {
+        for (int i = 0; i < prepared.size(); i++) {
+            AbstractOathVerifier verifier = prepared.get(i);
+            verifier.checkedSteps = Math.min(verifier.candidates(), i <= device ? rank + 1 : rank);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfilePrefetcher;
+import com.google.inject.assistedinject.Assisted;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+import javax.inject.Inject;
+
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+
+/**
+ * Starts reading the user's OATH device profiles in the background and moves on straight away, so that a later
+ * {@link OathVerifierNode} finds them already read instead of reading them itself.
+ * <p>
+ * Place it as soon as the username is known and ahead of a node that waits for the user, e.g. a password prompt. The
+ * profiles are kept for a minute at most, see {@link DeviceProfilePrefetcher}.
+ */
+@Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
+        configClass = OathProfilePrefetchNode.Config.class)
+public class OathProfilePrefetchNode extends SingleOutcomeNode {
+    private final DeviceProfilePrefetcher prefetcher;
+
+    /**
+     * Configuration for the node.
+     */
+    public interface Config {
+    }
+
+    @Inject
+    public OathProfilePrefetchNode(@Assisted Config config, DeviceProfilePrefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    @Override
+    public Action process(TreeContext context) {
+        String username = context.sharedState.get(USERNAME).asString();
+        String realm = context.sharedState.get(REALM).asString();
+        if (username != null && realm != null) {
+            prefetcher.prefetch(realm, username);
+        }
+        return goToNext().build();
+    }
+}
@@ -20,13 +20,31 @@
 package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
 public class OathVerificationException extends Exception {
+    private final FailureReason reason;
+
     public OathVerificationException() {
-        super();
+        this(FailureReason.NO_MATCH);
     }
     public OathVerificationException(String message) {
-        super(message);
+        this(FailureReason.UNKNOWN, message);
     }
     public OathVerificationException(String message, Throwable cause) {
+        this(FailureReason.UNKNOWN, message, cause);
+    }
+    public OathVerificationException(FailureReason reason) {
+        super();
+        this.reason = reason;
+    }
+    public OathVerificationException(FailureReason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+    public OathVerificationException(FailureReason reason, String message, Throwable cause) {
         super(message, cause);
+        this.reason = reason;
+    }
+
+    public FailureReason getReason() {
+        return reason;
     }
 }
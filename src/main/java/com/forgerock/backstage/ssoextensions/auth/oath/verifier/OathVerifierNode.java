@@ -19,8 +19,18 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileConflictException;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileVersion;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.RegistrationEnvelope;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.AuditLog;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.AuditLogs;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathEvent;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathMetrics;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathPhase;
+import com.forgerock.backstage.ssoextensions.auth.oath.replay.ReplayStore;
+import com.forgerock.backstage.ssoextensions.auth.oath.replay.ReplayStores;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.assistedinject.Assisted;
 import org.forgerock.json.JsonValue;
@@ -36,11 +46,21 @@ import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.ConfirmationCallback;
 import javax.security.auth.callback.NameCallback;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
-import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_DEVICE_PROFILE_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_LOADED_DEVICE_PROFILE_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_REGISTRATION_KEY;
 import static com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNodeOutcomeProvider.OATHOutcome.*;
+import static java.util.Collections.singletonList;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_DEVICE_NAME;
 import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_KEY;
 
@@ -52,9 +72,18 @@ public class OathVerifierNode extends AbstractDecisionNode {
     private final Logger logger = LoggerFactory.getLogger(OathVerifierNode.class);
     private final Config config;
     private final OathHelper helper;
+    private final OathMetrics metrics;
+    private final VerifierEvents events;
+    private final TotpDriftHistory driftHistory;
+    private final HotpLookaheadIndex lookaheadIndex;
+    private final AttemptLimiter attemptLimiter;
+    private final HmacKeyCache keyCache;
+    private final ReplayStores replayStores;
+    private final AuditLogs auditLogs;
 
     private static int SUBMIT = 0;
     static int RECOVERY_PRESSED = 1;
+    private static final int MAX_SAVE_ATTEMPTS = 3;
 
     /** Key to use in the session's AuthType.
      * Intentionally matches the type used for the official OATH Auth Module, to allow for device management from the Dashboard.
@@ -68,50 +97,175 @@ public class OathVerifierNode extends AbstractDecisionNode {
     }
 
     @Inject
-    public OathVerifierNode(@Assisted Config config, OathHelper helper) {
+    public OathVerifierNode(@Assisted Config config, OathHelper helper, OathMetrics metrics,
+                            TotpDriftHistory driftHistory, HotpLookaheadIndex lookaheadIndex,
+                            AttemptLimiter attemptLimiter, HmacKeyCache keyCache, ReplayStores replayStores,
+                            AuditLogs auditLogs) {
         this.config = config;
         this.helper = helper;
+        this.metrics = metrics;
+        this.events = new VerifierEvents(config);
+        this.driftHistory = driftHistory;
+        this.lookaheadIndex = lookaheadIndex;
+        this.attemptLimiter = attemptLimiter;
+        this.keyCache = keyCache;
+        this.replayStores = replayStores;
+        this.auditLogs = auditLogs;
     }
 
     @Override
     public Action process(TreeContext context) throws NodeProcessException {
-        OathDeviceSettings deviceSettings;
-
-        try {
-            deviceSettings = getDeviceProfileFromSharedState(context).orElse(this.helper.getOathDeviceSettings(context));
-        } catch (DevicePersistenceException e) {
-            throw new NodeProcessException(e);
+        long start = System.nanoTime();
+        if (isAttemptLimited(context)) {
+            audit(context, THROTTLED, null, 0, start);
+            return goTo(context, THROTTLED).build();
         }
 
-        if (null == deviceSettings) {
-            return Action.goTo(NOT_REGISTERED.name()).build();
-        }
+        DeviceProfileResolver deviceProfile = new DeviceProfileResolver(context, helper, metrics, events,
+                config.deviceProfileCacheTtl());
 
         Optional<ConfirmationCallback> confirmationCallback = context.getCallback(ConfirmationCallback.class);
         if (confirmationCallback.isPresent() && confirmationCallback.get().getSelectedIndex() == RECOVERY_PRESSED) {
-            return Action.goTo(RECOVERY_CODE.name()).build();
+            if (!deviceProfile.isInSharedState() && getDevices(deviceProfile).isEmpty()) {
+                audit(context, NOT_REGISTERED, null, 0, start);
+                return goTo(context, NOT_REGISTERED).build();
+            }
+            audit(context, RECOVERY_CODE, null, 0, start);
+            return goTo(context, RECOVERY_CODE).build();
+        }
+
+        List<OathDeviceSettings> devices = getDevices(deviceProfile);
+        if (devices.isEmpty()) {
+            audit(context, NOT_REGISTERED, null, 0, start);
+            return goTo(context, NOT_REGISTERED).build();
         }
 
         Optional<NameCallback> nameCallback = context.getCallback(NameCallback.class);
         if (!nameCallback.isPresent()) {
-            return Action.send(getCallbacks()).build();
+            return promptForCode(context, deviceProfile, devices);
         }
 
         try {
-            verifyCode(nameCallback.get().getName(), deviceSettings);
-            helper.saveOathDeviceSettings(context, deviceSettings);
+            AbstractOathVerifier verifier = verifyAndSave(context, nameCallback.get().getName(), devices);
+            if (isAttemptLimitEnabled()) {
+                attemptLimiter.succeeded(getRealm(context), getUsername(context), config.attemptLimitWindow());
+            }
 
-            Action.ActionBuilder actionBuilder = Action.goTo(SUCCESS.name()).addNodeType(context, OATH_AUTH_TYPE);
-            addRecoveryCodesToTransientState(context, actionBuilder);
+            Action.ActionBuilder actionBuilder = goTo(context, SUCCESS).addNodeType(context, OATH_AUTH_TYPE);
+            addRecoveryCodesToTransientState(context, deviceProfile, actionBuilder);
 
+            audit(context, SUCCESS, null, verifier.getMatchedOffset(), start);
             return actionBuilder.build();
-        } catch (OathVerificationException | DevicePersistenceException e) {
+        } catch (OathVerificationException e) {
             logger.debug(e.getMessage(), e);
-            return Action.goTo(FAILURE.name()).build();
+            metrics.failure(e.getReason().name());
+            if (isAttemptLimitEnabled()) {
+                attemptLimiter.failed(getRealm(context), getUsername(context), config.attemptLimitWindow());
+            }
+            audit(context, FAILURE, e.getReason(), 0, start);
+            return goTo(context, FAILURE).build();
+        } catch (DevicePersistenceException e) {
+            logger.debug(e.getMessage(), e);
+            metrics.failure(FailureReason.PERSISTENCE.name());
+            audit(context, FAILURE, FailureReason.PERSISTENCE, 0, start);
+            return goTo(context, FAILURE).build();
         }
     }
 
-    private void addRecoveryCodesToTransientState(TreeContext context, Action.ActionBuilder actionBuilder) {
+    /**
+     * Appends the decision to the audit log, if one is configured. A log that cannot be opened does not fail the
+     * login, and is only tried again, and warned about, once {@link AuditLogs} lets it.
+     */
+    private void audit(TreeContext context, OathVerifierNodeOutcomeProvider.OATHOutcome outcome, FailureReason reason,
+            int matchedOffset, long start) {
+        AuditLog auditLog;
+        try {
+            auditLog = auditLogs.get(config.auditLogDirectory(), config.auditLogRetainedSegments());
+        } catch (UncheckedIOException e) {
+            logger.warn(e.getMessage(), e);
+            return;
+        }
+        if (auditLog != null) {
+            auditLog.append(getRealm(context), getUsername(context), outcome, reason, matchedOffset,
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Checks the failed attempts of the user and the realm, before any profile is loaded or code computed.
+     */
+    private boolean isAttemptLimited(TreeContext context) {
+        if (!isAttemptLimitEnabled()) {
+            return false;
+        }
+        boolean limited = attemptLimiter.isLimited(getRealm(context), getUsername(context),
+                config.attemptLimitWindow(), config.maxFailedAttemptsPerUser(), config.maxFailedAttemptsPerRealm());
+        if (limited) {
+            logger.debug("Too many failed attempts for {} in realm {}", getUsername(context), getRealm(context));
+        }
+        return limited;
+    }
+
+    private boolean isAttemptLimitEnabled() {
+        return config.maxFailedAttemptsPerUser() > 0 || config.maxFailedAttemptsPerRealm() > 0;
+    }
+
+    private static String getUsername(TreeContext context) {
+        return context.sharedState.get(USERNAME).asString();
+    }
+
+    private static String getRealm(TreeContext context) {
+        return context.sharedState.get(REALM).asString();
+    }
+
+    private List<OathDeviceSettings> getDevices(DeviceProfileResolver deviceProfile) throws NodeProcessException {
+        try {
+            return deviceProfile.get();
+        } catch (DevicePersistenceException e) {
+            throw new NodeProcessException(e);
+        }
+    }
+
+    /**
+     * Sends the OTP callbacks. Profiles that had to be read from the identity store are carried, encrypted, into the
+     * submit round so that they do not have to be read again.
+     */
+    private Action promptForCode(TreeContext context, DeviceProfileResolver deviceProfile,
+            List<OathDeviceSettings> devices) throws NodeProcessException {
+        Action.ActionBuilder actionBuilder = Action.send(getCallbacks());
+        if (deviceProfile.isLoadedFromStore()) {
+            try {
+                actionBuilder.replaceSharedState(context.sharedState.copy()
+                        .put(OATH_LOADED_DEVICE_PROFILE_KEY, helper.encryptOathDevices(devices)));
+            } catch (IOException e) {
+                throw new NodeProcessException(e);
+            }
+        }
+        return actionBuilder.build();
+    }
+
+    /**
+     * Leaves the node, dropping the device profile carried between rounds from the shared state.
+     */
+    private Action.ActionBuilder goTo(TreeContext context, OathVerifierNodeOutcomeProvider.OATHOutcome outcome) {
+        metrics.outcome(outcome.name());
+        Action.ActionBuilder actionBuilder = Action.goTo(outcome.name());
+        if (!context.sharedState.get(OATH_LOADED_DEVICE_PROFILE_KEY).isNull()) {
+            JsonValue sharedState = context.sharedState.copy();
+            sharedState.remove(OATH_LOADED_DEVICE_PROFILE_KEY);
+            actionBuilder.replaceSharedState(sharedState);
+        }
+        return actionBuilder;
+    }
+
+    private void addRecoveryCodesToTransientState(TreeContext context, DeviceProfileResolver deviceProfile,
+            Action.ActionBuilder actionBuilder) throws NodeProcessException {
+        RegistrationEnvelope registration = deviceProfile.getRegistration();
+        if (registration != null) {
+            addRecoveryCodesToTransientState(context, registration, actionBuilder);
+            return;
+        }
+
         String encryptedRecoveryCodes = context.sharedState.get(RECOVERY_CODE_KEY).asString();
         if (StringUtils.isEmpty(encryptedRecoveryCodes)) {
             return;
@@ -126,42 +280,197 @@ public class OathVerifierNode extends AbstractDecisionNode {
 
         sharedState.remove(RECOVERY_CODE_KEY);
         sharedState.remove(RECOVERY_CODE_DEVICE_NAME);
+        sharedState.remove(OATH_LOADED_DEVICE_PROFILE_KEY);
 
         actionBuilder.replaceTransientState(transientState).replaceSharedState(sharedState);
     }
 
     /**
-     * Verifies the input OTP.
+     * Moves the recovery codes of a verified registration into the transient state, for display, and drops the
+     * registration from the shared state as the profile is now stored.
+     */
+    private void addRecoveryCodesToTransientState(TreeContext context, RegistrationEnvelope registration,
+            Action.ActionBuilder actionBuilder) throws NodeProcessException {
+        JsonValue sharedState = context.sharedState.copy();
+        sharedState.remove(OATH_REGISTRATION_KEY);
+        sharedState.remove(OATH_LOADED_DEVICE_PROFILE_KEY);
+        actionBuilder.replaceSharedState(sharedState);
+
+        try {
+            List<String> recoveryCodes = registration.getRecoveryCodes();
+            if (recoveryCodes.isEmpty()) {
+                return;
+            }
+            actionBuilder.replaceTransientState(context.transientState.copy()
+                    .put(RECOVERY_CODE_KEY, recoveryCodes)
+                    .put(RECOVERY_CODE_DEVICE_NAME, registration.getDeviceSettings().getDeviceName()));
+        } catch (IOException e) {
+            throw new NodeProcessException(e);
+        }
+    }
+
+    /**
+     * Verifies the input OTP against the user's devices and saves the updated counter or last login of the one that
+     * matched, provided nobody else updated its profile in the meantime. On a conflict the OTP is verified again against
+     * the fresh profile, which rejects it if the concurrent update consumed it. With a replay store the matching OTP is
+     * recorded as used before saving, which rejects a concurrent replay without waiting for the save. If the save fails
+     * or keeps conflicting, the record is released again so that the user can retry with the same OTP.
      *
-     * @param otp      The OTP to verify.
-     * @param settings With which the OTP was configured.
-     * @throws OathVerificationException on any error
+     * @return the verifier of the matching device
      */
-    private void verifyCode(String otp, OathDeviceSettings settings) throws OathVerificationException {
-        if (settings == null) {
-            throw new OathVerificationException("Invalid stored settings");
+    private AbstractOathVerifier verifyAndSave(TreeContext context, String otp, List<OathDeviceSettings> devices)
+            throws OathVerificationException, DevicePersistenceException {
+        ReplayStore replayStore = getReplayStore();
+        Map<String, AbstractOathVerifier> marked = new LinkedHashMap<>();
+        for (int attempt = 1; ; attempt++) {
+            Map<OathDeviceSettings, DeviceProfileVersion> versions = new IdentityHashMap<>();
+            for (OathDeviceSettings device : devices) {
+                versions.put(device, DeviceProfileVersion.of(device));
+            }
+            long start = metrics.start();
+            AbstractOathVerifier verifier;
+            try {
+                verifier = verifyCode(otp, devices);
+            } finally {
+                metrics.stop(OathPhase.OTP_COMPUTATION, start);
+            }
+            OathDeviceSettings settings = verifier.settings;
+            // after a conflict the same OTP may match again, it was recorded by this request
+            String otpKey = settings.getUUID() + ":" + verifier.getMatchedStep();
+            if (replayStore != null && !marked.containsKey(otpKey)) {
+                markUsed(context, replayStore, verifier);
+                marked.put(otpKey, verifier);
+            }
+            OathEvent event = events.begin(OathPhase.SAVE);
+            String outcome = OathEvent.ERROR;
+            start = metrics.start();
+            try {
+                helper.saveOathDeviceSettings(context, versions.get(settings), settings, config.writeBehind());
+                outcome = OathEvent.SUCCESS;
+                metrics.windowOffset(verifier.getMatchedOffset());
+                if (isAdaptiveTotp()) {
+                    driftHistory.record(settings.getUUID(), verifier.getMatchedOffset());
+                }
+                return verifier;
+            } catch (DeviceProfileConflictException e) {
+                outcome = FailureReason.CONCURRENT_UPDATE.name();
+                if (attempt >= MAX_SAVE_ATTEMPTS) {
+                    release(context, replayStore, marked.values());
+                    throw new OathVerificationException(FailureReason.CONCURRENT_UPDATE, e.getMessage(), e);
+                }
+                logger.debug("Verifying again after concurrent update: {}", e.getMessage());
+                devices = singletonList(e.getCurrent());
+            } catch (DevicePersistenceException | RuntimeException e) {
+                release(context, replayStore, marked.values());
+                throw e;
+            } finally {
+                metrics.stop(OathPhase.SAVE, start);
+                event.end(outcome);
+            }
         }
+    }
 
+    private ReplayStore getReplayStore() throws OathVerificationException {
+        try {
+            return replayStores.get(config.replayStore(), config.replayStoreFile());
+        } catch (UncheckedIOException | IllegalStateException e) {
+            throw new OathVerificationException(FailureReason.INVALID_CONFIGURATION, e.getMessage(), e);
+        }
+    }
+
+    private void release(TreeContext context, ReplayStore replayStore, Collection<AbstractOathVerifier> marked) {
+        for (AbstractOathVerifier verifier : marked) {
+            replayStore.release(getRealm(context), getUsername(context), verifier.settings.getUUID(),
+                    verifier.getMatchedStep());
+        }
+    }
+
+    private void markUsed(TreeContext context, ReplayStore replayStore, AbstractOathVerifier verifier)
+            throws OathVerificationException {
+        long start = metrics.start();
+        try {
+            if (!replayStore.markUsed(getRealm(context), getUsername(context), verifier.settings.getUUID(),
+                    verifier.getMatchedStep(), verifier.acceptableUntil())) {
+                throw new OathVerificationException(FailureReason.REPLAY, "OTP has already been used");
+            }
+        } finally {
+            metrics.stop(OathPhase.REPLAY_CHECK, start);
+        }
+    }
+
+    /**
+     * Verifies the input OTP, against all devices at once if there are several.
+     *
+     * @param otp     The OTP to verify.
+     * @param devices With which the OTP may have been configured.
+     * @return the verifier of the matching device
+     * @throws OathVerificationException on any error
+     */
+    private AbstractOathVerifier verifyCode(String otp, List<OathDeviceSettings> devices)
+            throws OathVerificationException {
         if (config.minSharedSecretLength() <= 0) {
-            throw new OathVerificationException("Min Secret Key Length is not a valid value");
+            throw new OathVerificationException(FailureReason.INVALID_CONFIGURATION,
+                    "Min Secret Key Length is not a valid value");
         }
 
         // check password length MUST be 6 or higher according to RFC
         if (config.passwordLength() < 6) {
-            throw new OathVerificationException("Password length is smaller than 6");
+            throw new OathVerificationException(FailureReason.INVALID_CONFIGURATION,
+                    "Password length is smaller than 6");
+        }
+
+        List<AbstractOathVerifier> verifiers = new ArrayList<>(devices.size());
+        for (OathDeviceSettings settings : devices) {
+            verifiers.add(newVerifier(settings));
+        }
+
+        OathEvent event = events.begin(OathPhase.OTP_COMPUTATION);
+        String outcome = OathEvent.ERROR;
+        try {
+            AbstractOathVerifier verifier;
+            if (verifiers.size() == 1) {
+                verifier = verifiers.get(0);
+                verifier.verify(otp);
+            } else {
+                verifier = MultiDeviceScan.verify(verifiers, otp);
+            }
+            outcome = OathEvent.SUCCESS;
+            return verifier;
+        } catch (OathVerificationException e) {
+            outcome = e.getReason().name();
+            throw e;
+        } finally {
+            event.steps(checkedSteps(verifiers)).end(outcome);
+        }
+    }
+
+    private static int checkedSteps(List<AbstractOathVerifier> verifiers) {
+        int steps = 0;
+        for (AbstractOathVerifier verifier : verifiers) {
+            steps += verifier.getCheckedSteps();
         }
+        return steps;
+    }
 
-        AbstractOathVerifier verifier;
+    private AbstractOathVerifier newVerifier(OathDeviceSettings settings) throws OathVerificationException {
+        if (settings == null) {
+            throw new OathVerificationException(FailureReason.INVALID_DEVICE, "Invalid stored settings");
+        }
 
         if (OathAlgorithm.HOTP.equals(config.algorithm())) {
-            verifier = new HotpVerifier(config, settings);
+            return new HotpVerifier(config, settings, config.hotpLookaheadIndex() ? lookaheadIndex : null, keyCache);
+        } else if (isAdaptiveTotp()) {
+            TotpSearchWindow window = driftHistory.estimate(settings.getUUID(), config.totpTimeStepInWindow());
+            return new TotpVerifier(config, settings, window, keyCache);
         } else if (OathAlgorithm.TOTP.equals(config.algorithm())) {
-            verifier = new TotpVerifier(config, settings);
-        } else {
-            throw new OathVerificationException("Invalid OTP algorithm");
+            return new TotpVerifier(config, settings, TotpSearchWindow.symmetric(config.totpTimeStepInWindow()),
+                    keyCache);
         }
+        throw new OathVerificationException(FailureReason.INVALID_CONFIGURATION, "Invalid OTP algorithm");
+    }
 
-        verifier.verify(otp);
+    private boolean isAdaptiveTotp() {
+        return OathAlgorithm.TOTP.equals(config.algorithm()) && config.adaptiveTotpWindow();
     }
 
     private List<Callback> getCallbacks() {
@@ -170,25 +479,4 @@ public class OathVerifierNode extends AbstractDecisionNode {
                 new ConfirmationCallback(ConfirmationCallback.INFORMATION, new String[]{"Submit", "Use recovery code"}, SUBMIT)
         );
     }
-
-    private Optional<OathDeviceSettings> getDeviceProfileFromSharedState(TreeContext context) {
-        JsonValue oathDeviceProfileJsonNode = context.sharedState.get(OATH_DEVICE_PROFILE_KEY);
-
-        if (oathDeviceProfileJsonNode.isNull()) {
-            logger.debug("No device profile found in shared state");
-            return Optional.empty();
-        }
-
-        logger.debug("Storing device profile found in shared state");
-
-        OathDeviceSettings oathDeviceProfile;
-        try {
-            oathDeviceProfile = helper.decryptOathDeviceSettings(oathDeviceProfileJsonNode.asString());
-        } catch (IOException e) {
-            logger.error("Cannot deserialize device profile from shared state", e);
-            return Optional.empty();
-        }
-
-        return Optional.of(oathDeviceProfile);
-    }
 }
@@ -19,7 +19,9 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.replay.ReplayStoreType;
 import org.forgerock.openam.annotations.sm.Attribute;
 
 public interface OathVerifierNodeConfig {
@@ -68,4 +70,71 @@ public interface OathVerifierNodeConfig {
     default int totpMaxClockDrift() {
         return 5;
     }
+
+    @Attribute(order = 1000)
+    default int deviceProfileCacheTtl() {
+        return 0;
+    }
+
+    @Attribute(order = 1100)
+    default boolean writeBehind() {
+        return false;
+    }
+
+    @Attribute(order = 1200)
+    default boolean adaptiveTotpWindow() {
+        return false;
+    }
+
+    @Attribute(order = 1300)
+    default boolean hotpLookaheadIndex() {
+        return false;
+    }
+
+    @Attribute(order = 1400)
+    default int hotpScanThreads() {
+        return 1;
+    }
+
+    @Attribute(order = 1500)
+    default int maxFailedAttemptsPerUser() {
+        return 0;
+    }
+
+    @Attribute(order = 1600)
+    default int maxFailedAttemptsPerRealm() {
+        return 0;
+    }
+
+    @Attribute(order = 1700)
+    default int attemptLimitWindow() {
+        return 300;
+    }
+
+    @Attribute(order = 1800)
+    @OathAlgorithmAttribute
+    default HmacAlgorithm hashAlgorithm() {
+        return HmacAlgorithm.SHA1;
+    }
+
+    @Attribute(order = 1900)
+    @OathAlgorithmAttribute
+    default ReplayStoreType replayStore() {
+        return ReplayStoreType.NONE;
+    }
+
+    @Attribute(order = 2000)
+    default String replayStoreFile() {
+        return "";
+    }
+
+    @Attribute(order = 2100)
+    default String auditLogDirectory() {
+        return "";
+    }
+
+    @Attribute(order = 2200)
+    default int auditLogRetainedSegments() {
+        return 24;
+    }
 }
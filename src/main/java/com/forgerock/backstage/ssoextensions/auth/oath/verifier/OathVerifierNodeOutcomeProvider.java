@@ -32,7 +32,8 @@ public class OathVerifierNodeOutcomeProvider implements OutcomeProvider {
         NOT_REGISTERED("Not Registered"),
         RECOVERY_CODE("Recovery Code"),
         SUCCESS("Success"),
-        FAILURE("Failure");
+        FAILURE("Failure"),
+        THROTTLED("Throttled");
 
         private final String displayValue;
 
@@ -52,7 +53,8 @@ public class OathVerifierNodeOutcomeProvider implements OutcomeProvider {
                 OATHOutcome.NOT_REGISTERED.getOutcome(),
                 OATHOutcome.RECOVERY_CODE.getOutcome(),
                 OATHOutcome.SUCCESS.getOutcome(),
-                OATHOutcome.FAILURE.getOutcome()
+                OATHOutcome.FAILURE.getOutcome(),
+                OATHOutcome.THROTTLED.getOutcome()
         );
     }
 }
\ No newline at end of file
@@ -19,8 +19,10 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
+import com.google.common.collect.ImmutableMap;
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.plugins.PluginException;
 
 import java.util.Collections;
 import java.util.Map;
@@ -28,12 +30,23 @@ import java.util.Map;
 
 public class OathVerifierNodePlugin extends AbstractNodeAmPlugin {
 
-	static private String currentVersion = "1.0.0";
+	static private String currentVersion = "1.2.0";
 	
 	@Override
 	protected Map<String, Iterable<? extends Class<? extends Node>>> getNodesByVersion() {
-		return Collections.singletonMap(OathVerifierNodePlugin.currentVersion,
-				Collections.singletonList(OathVerifierNode.class));
+		return ImmutableMap.of(
+				"1.0.0", Collections.singletonList(OathVerifierNode.class),
+				"1.1.0", Collections.singletonList(OathProfilePrefetchNode.class));
+	}
+
+	/**
+	 * Updates the verifier node's schema, which gained attributes and the Throttled outcome after 1.0.0, and
+	 * installs the nodes added since {@code fromVersion}.
+	 */
+	@Override
+	public void upgradePlugin(String fromVersion) throws PluginException {
+		pluginTools.upgradeAuthNode(OathVerifierNode.class);
+		super.upgradePlugin(fromVersion);
 	}
 
 	@Override
@@ -0,0 +1,132 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans a large HOTP look-ahead window, e.g. to resynchronise a token, on several threads.
+ * <p>
+ * The window is cut into blocks which the workers claim in counter order, so the lowest counters are always checked
+ * first. As soon as a match is found no worker starts on a higher counter, and the lowest match wins, just as in a
+ * sequential scan. The calling thread is one of the workers and the others run in a shared pool of daemon threads, so
+ * a single request never uses more than {@code parallelism} cores. Pool workers that have not started by the time the
+ * calling thread runs out of blocks are skipped, so a request never waits for its turn in a busy pool.
+ */
+final class ParallelHotpScan {
+    /** Windows smaller than this are scanned sequentially, as splitting them costs more than it saves. */
+    static final int MIN_WINDOW = 1024;
+    static final int BLOCK_SIZE = 128;
+    static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("OATH-HOTP-Scan-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+
+    private ParallelHotpScan() {
+    }
+
+    /**
+     * Scans the counters {@code from} to {@code from + window} (inclusive) for the parsed user input.
+     *
+     * @param engines one engine keyed with the device's secret per worker, the number of engines is the parallelism
+     * @param from    the first counter to check
+     * @param window  the number of counters to look ahead
+     * @param otp     the user input as returned by {@link HmacOtpEngine#parse(String)}
+     * @return the offset from {@code from} of the first matching counter, or {@link HmacOtpEngine#NO_MATCH}
+     */
+    static int scan(List<HmacOtpEngine> engines, long from, int window, int otp) {
+        AtomicInteger nextBlock = new AtomicInteger();
+        AtomicInteger found = new AtomicInteger(Integer.MAX_VALUE);
+
+        List<Worker> forked = new ArrayList<>();
+        for (HmacOtpEngine engine : engines.subList(1, engines.size())) {
+            Worker worker = new Worker(engine, from, window, otp, nextBlock, found);
+            POOL.execute(worker);
+            forked.add(worker);
+        }
+        new Worker(engines.get(0), from, window, otp, nextBlock, found).compute();
+        for (Worker worker : forked) {
+            // Only wait for workers still holding a block, the others never touch their engine
+            if (!worker.claim()) {
+                worker.join();
+            }
+        }
+
+        int offset = found.get();
+        return offset == Integer.MAX_VALUE ? HmacOtpEngine.NO_MATCH : offset;
+    }
+
+    private static final class Worker extends RecursiveAction {
+        private final HmacOtpEngine engine;
+        private final long from;
+        private final int window;
+        private final int otp;
+        private final AtomicInteger nextBlock;
+        private final AtomicInteger found;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        Worker(HmacOtpEngine engine, long from, int window, int otp, AtomicInteger nextBlock, AtomicInteger found) {
+            this.engine = engine;
+            this.from = from;
+            this.window = window;
+            this.otp = otp;
+            this.nextBlock = nextBlock;
+            this.found = found;
+        }
+
+        /**
+         * Claims the worker for a single run, either by the pool thread starting it or by the caller skipping it.
+         *
+         * @return {@code true} if the worker had not been claimed yet
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        @Override
+        protected void compute() {
+            if (!claim()) {
+                return;
+            }
+            while (true) {
+                long start = (long) nextBlock.getAndIncrement() * BLOCK_SIZE;
+                if (start > window || start > found.get()) {
+                    return;
+                }
+                int end = (int) Math.min(window, start + BLOCK_SIZE - 1);
+                for (int i = (int) start; i <= end && i < found.get(); i++) {
+                    if (engine.matches(from + i, otp)) {
+                        found.accumulateAndGet(i, Math::min);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.inject.Singleton;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers, per TOTP device, the step offsets of recent successful logins relative to the stored clock drift.
+ * <p>
+ * Most devices drift steadily, so the next login is likely to match close to the average of the recent offsets. The
+ * history is used to check that step first and, for devices whose offsets hardly vary, to check only a few steps
+ * before the rest of the configured window. Devices without enough history are searched in the default order. The
+ * history is kept in memory only.
+ */
+@Singleton
+public class TotpDriftHistory {
+    static final int MAX_SAMPLES = 8;
+    static final int MIN_SAMPLES = 3;
+    private static final int MAX_DEVICES = 10000;
+
+    private final Cache<String, Samples> history = CacheBuilder.newBuilder()
+            .maximumSize(MAX_DEVICES)
+            .expireAfterAccess(7, TimeUnit.DAYS)
+            .build();
+
+    /**
+     * @param deviceId  the UUID of the device, may be null
+     * @param maxWidth the configured number of steps on either side of the current step
+     * @return the window to search for the device's next OTP
+     */
+    TotpSearchWindow estimate(String deviceId, int maxWidth) {
+        Samples samples = deviceId == null ? null : history.getIfPresent(deviceId);
+        return samples == null ? TotpSearchWindow.symmetric(maxWidth) : samples.estimate(maxWidth);
+    }
+
+    /**
+     * Adds the offset of a successful login to the device's history.
+     *
+     * @param deviceId the UUID of the device, may be null
+     * @param offset   the offset of the matching step
+     */
+    void record(String deviceId, int offset) {
+        if (deviceId == null) {
+            return;
+        }
+        try {
+            history.get(deviceId, Samples::new).add(offset);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Samples {
+        private final int[] offsets = new int[MAX_SAMPLES];
+        private int count;
+        private int next;
+
+        synchronized void add(int offset) {
+            offsets[next] = offset;
+            next = (next + 1) % MAX_SAMPLES;
+            count = Math.min(count + 1, MAX_SAMPLES);
+        }
+
+        synchronized TotpSearchWindow estimate(int maxWidth) {
+            if (count < MIN_SAMPLES) {
+                return TotpSearchWindow.symmetric(maxWidth);
+            }
+            double mean = 0;
+            for (int i = 0; i < count; i++) {
+                mean += offsets[i];
+            }
+            mean /= count;
+            double variance = 0;
+            for (int i = 0; i < count; i++) {
+                variance += (offsets[i] - mean) * (offsets[i] - mean);
+            }
+            double deviation = Math.sqrt(variance / count);
+
+            int center = (int) Math.max(-maxWidth, Math.min(maxWidth, Math.round(mean)));
+            // always allow a step either side for logins that straddle a step boundary
+            int width = (int) Math.min(maxWidth, 1 + Math.ceil(Math.abs(mean - center) + 2 * deviation));
+            return new TotpSearchWindow(center, width, mean < center);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+/**
+ * The time steps a {@link TotpVerifier} checks, as offsets from the drift corrected current step, in the order they
+ * are checked.
+ */
+final class TotpSearchWindow {
+    private final int center;
+    private final int width;
+    private final boolean earlierFirst;
+
+    TotpSearchWindow(int center, int width, boolean earlierFirst) {
+        this.center = center;
+        this.width = width;
+        this.earlierFirst = earlierFirst;
+    }
+
+    /**
+     * The default window: the current step, then alternating later and earlier steps up to {@code width} away.
+     *
+     * @param width the number of steps on either side
+     * @return the window
+     */
+    static TotpSearchWindow symmetric(int width) {
+        return new TotpSearchWindow(0, width, false);
+    }
+
+    /**
+     * The steps within {@code width} of the center come first, most likely first. They are followed by the rest of
+     * the configured window in the default order, so that a device which no longer drifts as before still matches.
+     *
+     * @param maxWidth the configured number of steps on either side of the current step, which is never exceeded
+     * @return the offsets to check, most likely first
+     */
+    int[] offsets(int maxWidth) {
+        int[] offsets = new int[2 * maxWidth + 1];
+        int from = Math.max(-maxWidth, center - width);
+        int to = Math.min(maxWidth, center + width);
+        int likely = Math.max(0, to - from + 1);
+        int n = 0;
+        if (center >= from && center <= to) {
+            offsets[n++] = center;
+        }
+        for (int i = 1; n < likely; i++) {
+            int first = earlierFirst ? center - i : center + i;
+            int second = earlierFirst ? center + i : center - i;
+            if (first >= from && first <= to) {
+                offsets[n++] = first;
+            }
+            if (second >= from && second <= to) {
+                offsets[n++] = second;
+            }
+        }
+        for (int i = 0; n < offsets.length; i++) {
+            if (i < from || i > to) {
+                offsets[n++] = i;
+            }
+            if (i > 0 && (-i < from || -i > to)) {
+                offsets[n++] = -i;
+            }
+        }
+        return offsets;
+    }
+
+    @Override
+    public String toString() {
+        return "TotpSearchWindow{center=" + center + ", width=" + width + ", earlierFirst=" + earlierFirst + '}';
+    }
+}
@@ -19,7 +19,6 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
-import org.forgerock.openam.authentication.modules.fr.oath.TOTPAlgorithm;
 import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
 import org.forgerock.util.annotations.VisibleForTesting;
 import org.slf4j.Logger;
@@ -32,45 +31,72 @@ import static org.forgerock.openam.utils.Time.currentTimeMillis;
 public final class TotpVerifier extends AbstractOathVerifier {
     private final Logger logger = LoggerFactory.getLogger(TotpVerifier.class);
     private final long time;
+    private final TotpSearchWindow window;
+    private long lastLoginTimeStep;
+    private long localTime;
+    private boolean sameWindow;
+    private HmacOtpEngine engine;
+    private int[] offsets;
 
     public TotpVerifier(OathVerifierNode.Config config, OathDeviceSettings settings) {
-        this(config, settings, currentTimeMillis() / 1000L);
+        this(config, settings, TotpSearchWindow.symmetric(config.totpTimeStepInWindow()), null);
+    }
+
+    /**
+     * @param keyCache the cache of keyed MACs, or null to key a new MAC for every verification
+     */
+    TotpVerifier(OathVerifierNode.Config config, OathDeviceSettings settings, TotpSearchWindow window,
+                 HmacKeyCache keyCache) {
+        this(config, settings, currentTimeMillis() / 1000L, window, keyCache);
     }
 
     @VisibleForTesting
     TotpVerifier(OathVerifierNode.Config config, OathDeviceSettings settings, long time) {
-        super(config, settings);
+        this(config, settings, time, TotpSearchWindow.symmetric(config.totpTimeStepInWindow()));
+    }
+
+    @VisibleForTesting
+    TotpVerifier(OathVerifierNode.Config config, OathDeviceSettings settings, long time, TotpSearchWindow window) {
+        this(config, settings, time, window, null);
+    }
+
+    private TotpVerifier(OathVerifierNode.Config config, OathDeviceSettings settings, long time,
+                         TotpSearchWindow window, HmacKeyCache keyCache) {
+        super(config, settings, keyCache);
 
         this.time = time;
+        this.window = window;
     }
 
     @Override
-    public void verify(String otp) throws OathVerificationException {
+    int prepare(String otp) throws OathVerificationException {
         //get Last login time
-        long lastLoginTimeStep = settings.getLastLogin() / config.totpTimeStepInterval();
+        lastLoginTimeStep = settings.getLastLogin() / config.totpTimeStepInterval();
 
         //Check TOTP values for validity
         if (lastLoginTimeStep < 0) {
-            throw new OathVerificationException("invalid login time value");
+            throw new OathVerificationException(FailureReason.INVALID_DEVICE, "invalid login time value");
         }
 
         //must be greater than 0 or we get divide by 0, and cant be negative
         if (config.totpTimeStepInterval() <= 0) {
-            throw new OathVerificationException("invalid TOTP time step interval");
+            throw new OathVerificationException(FailureReason.INVALID_CONFIGURATION, "invalid TOTP time step interval");
         }
 
         if (config.totpTimeStepInWindow() < 0) {
-            throw new OathVerificationException("invalid TOTP steps in window value");
+            throw new OathVerificationException(FailureReason.INVALID_CONFIGURATION,
+                    "invalid TOTP steps in window value");
         }
 
         //get Time Step
-        long localTime = (time / config.totpTimeStepInterval()) + (settings.getClockDriftSeconds() / config.totpTimeStepInterval());
+        localTime = (time / config.totpTimeStepInterval()) + (settings.getClockDriftSeconds() / config.totpTimeStepInterval());
 
         if (lastLoginTimeStep == localTime) {
-            throw new OathVerificationException("Login failed attempting to use the same OTP in same Time Step: " + localTime);
+            throw new OathVerificationException(FailureReason.REPLAY,
+                    "Login failed attempting to use the same OTP in same Time Step: " + localTime);
         }
 
-        boolean sameWindow = false;
+        sameWindow = false;
 
         //check if we are in the time window to prevent 2 logins within the window using the same OTP
 
@@ -80,43 +106,59 @@ public final class TotpVerifier extends AbstractOathVerifier {
             sameWindow = true;
         }
 
-        String passLenStr = Integer.toString(config.passwordLength());
-        String otpGen = TOTPAlgorithm.generateTOTP(getSharedSecret(), Long.toHexString(localTime), passLenStr);
+        engine = newEngine(getSharedSecretBytes(), false, -1);
+        int code = engine.parse(otp);
+        if (code < 0) {
+            throw new OathVerificationException(FailureReason.INVALID_OTP, "OTP is not a valid value");
+        }
+
+        //check the most likely time steps first
+        offsets = window.offsets(config.totpTimeStepInWindow());
+        return code;
+    }
+
+    @Override
+    int candidates() {
+        return offsets.length;
+    }
+
+    @Override
+    boolean matches(int rank, int code) {
+        return engine.matches(localTime + offsets[rank], code);
+    }
 
-        if (isEqual(otpGen, otp)) {
-            checkDrift(localTime);
-            updateDeviceSettings(localTime, settings);
-            return;
+    @Override
+    void accept(int rank) throws OathVerificationException {
+        int offset = offsets[rank];
+        //check time step before current time
+        if (offset < 0 && sameWindow) {
+            logger.error("Logging in in the same window with a OTP that is "
+                    + "older than the current times OTP");
+            throw new OathVerificationException(FailureReason.REPLAY);
         }
+        accept(localTime + offset, localTime, lastLoginTimeStep);
+    }
 
-        for (int i = 1; i <= config.totpTimeStepInWindow(); i++) {
-            long time1 = localTime + i;
-            long time2 = localTime - i;
-
-            //check time step after current time
-            otpGen = TOTPAlgorithm.generateTOTP(getSharedSecret(), Long.toHexString(time1), passLenStr);
-
-            if (isEqual(otpGen, otp)) {
-                checkDrift(time1);
-                updateDeviceSettings(time1, settings);
-                return;
-            }
-
-            //check time step before current time
-            otpGen = TOTPAlgorithm.generateTOTP(getSharedSecret(), Long.toHexString(time2), passLenStr);
-
-            if (isEqual(otpGen, otp) && sameWindow) {
-                logger.error("Logging in in the same window with a OTP that is "
-                        + "older than the current times OTP");
-                throw new OathVerificationException();
-            } else if (isEqual(otpGen, otp) && !sameWindow) {
-                checkDrift(time2);
-                updateDeviceSettings(time2, settings);
-                return;
-            }
+    private void accept(long step, long localTime, long lastLoginTimeStep) throws OathVerificationException {
+        //an OTP from a step at or before the last successful login has already been used (or superseded)
+        if (step <= lastLoginTimeStep) {
+            throw new OathVerificationException(FailureReason.REPLAY,
+                    "Login failed attempting to reuse the OTP of Time Step: " + step);
         }
+        checkDrift(step);
+        updateDeviceSettings(step, settings);
+        matchedOffset = (int) (step - localTime);
+        matchedStep = step;
+    }
 
-        throw new OathVerificationException();
+    /**
+     * The step is in the window for as long as the device clock, corrected by at most the maximum drift, is no further
+     * than the window behind it.
+     */
+    @Override
+    long acceptableUntil() {
+        long lastStep = matchedStep + config.totpTimeStepInWindow() + config.totpMaxClockDrift();
+        return TimeUnit.SECONDS.toMillis((lastStep + 1) * config.totpTimeStepInterval());
     }
 
     private long getDrift(long localTime) {
@@ -125,7 +167,7 @@ public final class TotpVerifier extends AbstractOathVerifier {
 
     private void checkDrift(long localTime)  throws OathVerificationException  {
         if (Math.abs(getDrift(localTime)) > config.totpMaxClockDrift()) {
-            throw new OathVerificationException("OTP is out of sync");
+            throw new OathVerificationException(FailureReason.OUT_OF_SYNC, "OTP is out of sync");
         }
     }
 
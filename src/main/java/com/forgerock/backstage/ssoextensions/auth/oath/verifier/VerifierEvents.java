@@ -0,0 +1,52 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathEvent;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathFlightRecorder;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathPhase;
+
+/**
+ * Starts the flight recorder events of a verifier node, carrying the algorithm and window size of its configuration.
+ */
+final class VerifierEvents {
+    private final OathVerifierNodeConfig config;
+
+    VerifierEvents(OathVerifierNodeConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Starts the event of a phase.
+     *
+     * @param phase the phase
+     * @return the started event, or {@link OathEvent#NONE} if it is not recorded
+     */
+    OathEvent begin(OathPhase phase) {
+        OathEvent event = OathFlightRecorder.begin(phase.name());
+        if (event == OathEvent.NONE) {
+            return event;
+        }
+        OathAlgorithm algorithm = config.algorithm();
+        return event.algorithm(String.valueOf(algorithm))
+                .windowSize(algorithm == OathAlgorithm.HOTP ? config.hotpWindowSize() : config.totpTimeStepInWindow());
+    }
+}
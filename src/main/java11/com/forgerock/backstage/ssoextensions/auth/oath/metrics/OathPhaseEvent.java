@@ -0,0 +1,89 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The flight recorder event of a phase of the OATH nodes.
+ * <p>
+ * By default it is recorded without a stack trace for phases over 1 ms, which a recording can change through the
+ * {@code threshold} and {@code stackTrace} settings of {@code com.forgerock.oath.Phase}.
+ */
+@Name("com.forgerock.oath.Phase")
+@Label("OATH Phase")
+@Category({"ForgeRock", "OATH"})
+@Description("A phase of the OATH registration or verifier node")
+@Threshold("1 ms")
+@StackTrace(false)
+final class OathPhaseEvent extends Event implements OathEvent {
+    static final EventType TYPE = EventType.getEventType(OathPhaseEvent.class);
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Window Size")
+    int windowSize;
+
+    @Label("Steps")
+    @Description("The number of steps or counters the OTP was checked against")
+    int steps;
+
+    @Label("Outcome")
+    String outcome;
+
+    OathPhaseEvent(String phase) {
+        this.phase = phase;
+    }
+
+    @Override
+    public OathEvent algorithm(String algorithm) {
+        this.algorithm = algorithm;
+        return this;
+    }
+
+    @Override
+    public OathEvent windowSize(int windowSize) {
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    @Override
+    public OathEvent steps(int steps) {
+        this.steps = steps;
+        return this;
+    }
+
+    @Override
+    public void end(String outcome) {
+        this.outcome = outcome;
+        commit();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.json.JsonValue;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+public class DeviceProfileCacheTest {
+
+    private final DeviceProfileCache cache = new DeviceProfileCache();
+    private final JsonValue profile = json(object(field("sharedSecret", "abcd")));
+
+    @Test
+    public void get_whenCached_thenHit() {
+        cache.put("/", "demo", profile);
+
+        DeviceProfileCache.Entry entry = cache.get("/", "demo", 10);
+
+        assertThat(entry.isRegistered()).isTrue();
+        assertThat(entry.getProfile()).isSameAs(profile);
+        assertThat(cache.getStatistics().getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void get_whenNotCached_thenMiss() {
+        cache.put("/", "demo", profile);
+
+        assertThat(cache.get("/other", "demo", 10)).isNull();
+        assertThat(cache.get("/", "demo", 0)).isNull();
+        assertThat(cache.getStatistics().getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void get_whenNoDevice_thenNegativeHit() {
+        cache.put("/", "demo", null);
+
+        assertThat(cache.get("/", "demo", 10).isRegistered()).isFalse();
+        assertThat(cache.getStatistics().getNegativeHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void update_whenCached_thenWriteThrough() {
+        JsonValue saved = json(object(field("sharedSecret", "abcd"), field("counter", 1)));
+        cache.put("/", "demo", null);
+
+        cache.update("/", "demo", profiles -> saved);
+        cache.update("/", "other", profiles -> saved);
+
+        assertThat(cache.get("/", "demo", 10).getProfile()).isSameAs(saved);
+        assertThat(cache.get("/", "other", 10)).isNull();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.forgerock.util.thread.listener.ShutdownManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DeviceProfilePrefetcherTest {
+
+    private final UserOathDeviceProfileManager profileManager = mock(UserOathDeviceProfileManager.class);
+    private final Queue<Runnable> queued = new ArrayDeque<>();
+    private final DeviceProfilePrefetcher prefetcher = new DeviceProfilePrefetcher(profileManager,
+            mock(ShutdownManager.class), queued::add);
+    private final List<OathDeviceSettings> profiles = ImmutableList.of(new OathDeviceSettings());
+
+    @Before
+    public void init() throws Exception {
+        when(profileManager.getDeviceProfiles("demo", "/")).thenReturn(profiles);
+    }
+
+    @Test
+    public void take_whenLoaded_thenReturnProfilesOnce() throws Exception {
+        prefetcher.prefetch("/", "demo");
+        runQueued();
+
+        assertThat(prefetcher.take("/", "demo")).isSameAs(profiles);
+        assertThat(prefetcher.take("/", "demo")).isNull();
+        assertThat(prefetcher.getHits()).isEqualTo(1);
+        verify(profileManager, times(1)).getDeviceProfiles("demo", "/");
+    }
+
+    @Test
+    public void take_whenNotStarted_thenLeaveReadToCaller() throws Exception {
+        prefetcher.prefetch("/", "demo");
+
+        assertThat(prefetcher.take("/", "demo")).isNull();
+        runQueued();
+
+        assertThat(prefetcher.getMisses()).isEqualTo(1);
+        verify(profileManager, never()).getDeviceProfiles(any(), any());
+    }
+
+    @Test
+    public void prefetch_whenAlreadyPending_thenReadOnce() {
+        prefetcher.prefetch("/", "demo");
+        prefetcher.prefetch("/", "demo");
+
+        assertThat(queued).hasSize(1);
+    }
+
+    @Test
+    public void prefetch_whenQueueFull_thenSkip() {
+        DeviceProfilePrefetcher full = new DeviceProfilePrefetcher(profileManager, mock(ShutdownManager.class),
+                runnable -> {
+                    throw new RejectedExecutionException();
+                });
+
+        full.prefetch("/", "demo");
+
+        assertThat(full.take("/", "demo")).isNull();
+        assertThat(full.getMisses()).isZero();
+    }
+
+    @Test
+    public void take_whenReadFailed_thenLeaveReadToCaller() throws Exception {
+        when(profileManager.getDeviceProfiles("demo", "/")).thenThrow(new DevicePersistenceException("down"));
+        prefetcher.prefetch("/", "demo");
+        runQueued();
+
+        assertThat(prefetcher.take("/", "demo")).isNull();
+        assertThat(prefetcher.getMisses()).isEqualTo(1);
+    }
+
+    @Test(timeout = 1000)
+    public void take_whenReadStuck_thenLeaveReadToCaller() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(profileManager.getDeviceProfiles("demo", "/")).thenAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            return profiles;
+        });
+        DeviceProfilePrefetcher threaded = new DeviceProfilePrefetcher(profileManager, mock(ShutdownManager.class),
+                runnable -> new Thread(runnable).start());
+        try {
+            threaded.prefetch("/", "demo");
+            started.await();
+
+            assertThat(threaded.take("/", "demo")).isNull();
+            assertThat(threaded.getMisses()).isEqualTo(1);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private void runQueued() {
+        for (Runnable runnable = queued.poll(); runnable != null; runnable = queued.poll()) {
+            runnable.run();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.forgerock.util.thread.listener.ShutdownListener;
+import org.forgerock.util.thread.listener.ShutdownManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DeviceProfileWriteBehindTest {
+
+    private final UserOathDeviceProfileManager profileManager = mock(UserOathDeviceProfileManager.class);
+    private final ShutdownManager shutdownManager = mock(ShutdownManager.class);
+    private final DeviceProfileWriter writer = mock(DeviceProfileWriter.class);
+    private final DeviceProfileWriteBehind writeBehind = new DeviceProfileWriteBehind(profileManager, writer,
+            new DeviceJsonUtils<>(OathDeviceSettings.class), shutdownManager, TimeUnit.HOURS.toMillis(1));
+    private final OathDeviceSettings stored = new OathDeviceSettings();
+
+    @Before
+    public void init() {
+        stored.setUUID("device");
+        stored.setSharedSecret("abcd");
+        stored.setCounter(1);
+    }
+
+    @Test
+    public void overlay_whenUpdatePending_thenReturnPendingProfile() {
+        writeBehind.enqueue("/", "demo", withCounter(5));
+
+        List<OathDeviceSettings> profiles = writeBehind.overlay("/", "demo", ImmutableList.of(stored));
+
+        assertThat(profiles).hasSize(1);
+        assertThat(profiles.get(0).getCounter()).isEqualTo(5);
+        assertThat(writeBehind.overlay("/", "other", ImmutableList.of(stored))).containsExactly(stored);
+    }
+
+    @Test
+    public void flush_whenUpdatesCoalesced_thenWriteLatestOnce() throws Exception {
+        writeBehind.enqueue("/", "demo", withCounter(5));
+        writeBehind.enqueue("/", "demo", withCounter(6));
+
+        writeBehind.flush(true);
+
+        ArgumentCaptor<List<OathDeviceSettings>> saved = devicesCaptor();
+        verify(writer, times(1)).save(eq("demo"), eq("/"), saved.capture());
+        assertThat(saved.getValue()).hasSize(1);
+        assertThat(saved.getValue().get(0).getCounter()).isEqualTo(6);
+        assertThat(writeBehind.getPendingCount()).isZero();
+    }
+
+    @Test
+    public void shutdown_thenDrainAndRefuseUpdates() throws Exception {
+        ArgumentCaptor<ShutdownListener> listener = ArgumentCaptor.forClass(ShutdownListener.class);
+        verify(shutdownManager).addShutdownListener(listener.capture());
+        writeBehind.enqueue("/", "demo", withCounter(5));
+
+        listener.getValue().shutdown();
+
+        verify(writer).save(eq("demo"), eq("/"), any());
+        assertThat(writeBehind.enqueue("/", "demo", withCounter(6))).isFalse();
+    }
+
+    @Test
+    public void flush_whenDiscardedBySynchronousSave_thenNoWrite() throws Exception {
+        writeBehind.enqueue("/", "demo", withCounter(5));
+
+        writeBehind.discard("/", "demo");
+        writeBehind.flush(true);
+
+        verify(writer, never()).save(any(), any(), any());
+        assertThat(writeBehind.overlay("/", "demo", ImmutableList.of(stored))).containsExactly(stored);
+    }
+
+    @Test
+    public void flush_whenWritesKeepFailing_thenKeepPendingAndSaveSynchronously() throws Exception {
+        doThrow(new DevicePersistenceException("down")).when(writer).save(any(), any(), any());
+        writeBehind.enqueue("/", "demo", withCounter(5));
+
+        for (int attempt = 0; attempt < DeviceProfileWriteBehind.MAX_WRITE_ATTEMPTS; attempt++) {
+            writeBehind.flush(true);
+        }
+
+        assertThat(writeBehind.getPendingCount()).isEqualTo(1);
+        assertThat(writeBehind.overlay("/", "demo", ImmutableList.of(stored)).get(0).getCounter()).isEqualTo(5);
+        assertThat(writeBehind.enqueue("/", "demo", withCounter(6))).isFalse();
+    }
+
+    @Test
+    public void flush_whenUserHasOtherDevices_thenWriteThemBack() throws Exception {
+        OathDeviceSettings other = new OathDeviceSettings();
+        other.setUUID("other");
+        other.setSharedSecret("1234");
+        when(profileManager.getDeviceProfiles("demo", "/")).thenReturn(ImmutableList.of(other, stored));
+        writeBehind.enqueue("/", "demo", withCounter(5));
+
+        writeBehind.flush(true);
+
+        ArgumentCaptor<List<OathDeviceSettings>> saved = devicesCaptor();
+        verify(writer).save(eq("demo"), eq("/"), saved.capture());
+        assertThat(saved.getValue()).extracting(OathDeviceSettings::getUUID).containsExactly("other", "device");
+        assertThat(saved.getValue().get(1).getCounter()).isEqualTo(5);
+    }
+
+    @Test
+    public void flush_whenNothingPending_thenNoWrites() throws Exception {
+        writeBehind.flush(true);
+
+        verify(writer, never()).save(any(), any(), any());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArgumentCaptor<List<OathDeviceSettings>> devicesCaptor() {
+        return ArgumentCaptor.forClass(List.class);
+    }
+
+    private OathDeviceSettings withCounter(int counter) {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setUUID("device");
+        settings.setSharedSecret("abcd");
+        settings.setCounter(counter);
+        return settings;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.secrets.Secrets;
+import org.forgerock.secrets.NoSuchSecretException;
+import org.forgerock.secrets.SecretsProvider;
+import org.forgerock.secrets.keys.DataEncryptionKey;
+import org.forgerock.secrets.keys.KeyFormatRaw;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Key;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EncryptionKeyCacheTest {
+
+    private final Secrets secrets = mock(Secrets.class);
+    private final SecretsProvider provider = mock(SecretsProvider.class);
+    private final Realm realm = mock(Realm.class);
+    private final Key activeKey = new SecretKeySpec(new byte[32], "AES");
+    private final Key previousKey = new SecretKeySpec(new byte[]{1, 2, 3, 4}, "AES");
+    private final EncryptionKeyCache cache = new EncryptionKeyCache(secrets);
+
+    @Before
+    public void init() throws NoSuchSecretException {
+        DataEncryptionKey active = mockKey("active", activeKey);
+        DataEncryptionKey previous = mockKey("previous", previousKey);
+        when(secrets.getRealmSecrets(realm)).thenReturn(provider);
+        doReturn(newResultPromise(active)).when(provider).getActiveSecret(any());
+        doReturn(newResultPromise(Stream.of(previous, active))).when(provider).getValidSecrets(any());
+    }
+
+    @Test
+    public void getActiveKey_whenCalledTwice_thenLoadOnce() throws NoSuchSecretException {
+        assertThat(cache.getActiveKey(realm)).isEqualTo(activeKey);
+        assertThat(cache.getActiveKey(realm)).isEqualTo(activeKey);
+        verify(secrets, times(1)).getRealmSecrets(realm);
+    }
+
+    @Test
+    public void getValidKeys_thenActiveKeyFirst() throws NoSuchSecretException {
+        assertThat(cache.getValidKeys(realm)).containsExactly(activeKey, previousKey);
+    }
+
+    @Test
+    public void refresh_thenReloadFromSecretStore() throws NoSuchSecretException {
+        EncryptionKeyCache cache = new EncryptionKeyCache(secrets, 0);
+        cache.getActiveKey(realm);
+        doReturn(newResultPromise(Stream.of(mockKey("active", activeKey)))).when(provider).getValidSecrets(any());
+
+        assertThat(cache.refresh(realm)).containsExactly(activeKey);
+        verify(secrets, times(2)).getRealmSecrets(realm);
+    }
+
+    @Test
+    public void refresh_whenJustLoaded_thenKeepCachedKeys() throws NoSuchSecretException {
+        cache.getActiveKey(realm);
+
+        assertThat(cache.refresh(realm)).containsExactly(activeKey, previousKey);
+        assertThat(cache.refresh(realm)).containsExactly(activeKey, previousKey);
+        verify(secrets, times(1)).getRealmSecrets(realm);
+    }
+
+    private DataEncryptionKey mockKey(String stableId, Key key) throws NoSuchSecretException {
+        DataEncryptionKey secret = mock(DataEncryptionKey.class);
+        when(secret.getStableId()).thenReturn(stableId);
+        when(secret.export(KeyFormatRaw.INSTANCE)).thenReturn(key);
+        return secret;
+    }
+}
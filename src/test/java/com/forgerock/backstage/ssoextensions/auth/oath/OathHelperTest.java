@@ -0,0 +1,222 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Key;
+import java.util.Arrays;
+
+import static java.util.Collections.emptyMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OathHelperTest {
+
+    @SuppressWarnings("unchecked")
+    private final DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils = mock(DeviceJsonUtils.class);
+    private final UserOathDeviceProfileManager profileManager = mock(UserOathDeviceProfileManager.class);
+    private final DeviceProfileWriteBehind writeBehind = mock(DeviceProfileWriteBehind.class);
+    private final DeviceProfilePrefetcher prefetcher = mock(DeviceProfilePrefetcher.class);
+    private final DeviceProfileWriter writer = mock(DeviceProfileWriter.class);
+    private final EncryptionKeyCache keyCache = mock(EncryptionKeyCache.class);
+    private final OathHelper helper = new OathHelper(mock(Realm.class), profileManager, mock(CoreWrapper.class),
+            new JwtBuilderFactory(), keyCache, deviceJsonUtils, new DeviceProfileCache(),
+            writeBehind, prefetcher, writer);
+    private final TreeContext context = new TreeContext(
+            new JsonValue(ImmutableMap.of(USERNAME, "demo", REALM, "/")),
+            new ExternalRequestContext.Builder().parameters(emptyMap()).build(), ImmutableList.of());
+    private final OathDeviceSettings stored = new OathDeviceSettings();
+    private final OathDeviceSettings updated = new OathDeviceSettings();
+
+    @Before
+    public void init() throws Exception {
+        stored.setUUID("device");
+        stored.setCounter(5);
+        updated.setUUID("device");
+        updated.setCounter(5);
+        when(profileManager.getDeviceProfiles("demo", "/")).thenReturn(ImmutableList.of(stored));
+        when(writeBehind.overlay(any(), any(), any())).thenAnswer(invocation -> invocation.getArgument(2));
+    }
+
+    @Test
+    public void getOathDevices_whenPrefetched_thenSkipStore() throws Exception {
+        OathDeviceSettings prefetched = new OathDeviceSettings();
+        when(prefetcher.take("/", "demo")).thenReturn(ImmutableList.of(prefetched));
+
+        assertThat(helper.getOathDevices(context, 0)).containsExactly(prefetched);
+        verify(profileManager, never()).getDeviceProfiles(any(), any());
+    }
+
+    @Test
+    public void getOathDevices_whenNotPrefetched_thenReadStore() throws Exception {
+        assertThat(helper.getOathDevices(context, 0)).containsExactly(stored);
+    }
+
+    @Test
+    public void decrypt_whenEncryptedWithPreviousKey_thenUseCachedKeys() throws Exception {
+        Key previousKey = key(1);
+        Key activeKey = key(2);
+        when(keyCache.getActiveKey(any())).thenReturn(previousKey);
+        String payload = helper.encrypt(json(object(field("name", "demo"))));
+        when(keyCache.getActiveKey(any())).thenReturn(activeKey);
+        when(keyCache.getValidKeys(any())).thenReturn(ImmutableList.of(activeKey, previousKey));
+
+        assertThat(helper.decrypt(payload).get("name").asString()).isEqualTo("demo");
+        verify(keyCache, never()).refresh(any());
+    }
+
+    @Test
+    public void decrypt_whenEncryptedWithKeyNotCachedYet_thenRefresh() throws Exception {
+        Key cachedKey = key(1);
+        Key rotatedKey = key(2);
+        when(keyCache.getActiveKey(any())).thenReturn(rotatedKey);
+        String payload = helper.encrypt(json(object(field("name", "demo"))));
+        when(keyCache.getActiveKey(any())).thenReturn(cachedKey);
+        when(keyCache.getValidKeys(any())).thenReturn(ImmutableList.of(cachedKey));
+        when(keyCache.refresh(any())).thenReturn(ImmutableList.of(rotatedKey, cachedKey));
+
+        assertThat(helper.decrypt(payload).get("name").asString()).isEqualTo("demo");
+    }
+
+    @Test
+    public void saveOathDeviceSettings_whenVersionMatches_thenSave() throws Exception {
+        DeviceProfileVersion version = DeviceProfileVersion.of(updated);
+        updated.setCounter(6);
+
+        helper.saveOathDeviceSettings(context, version, updated, false);
+
+        verify(writer).save("demo", "/", ImmutableList.of(stored));
+        verify(writeBehind).discard("/", "demo");
+        assertThat(stored.getCounter()).isEqualTo(6);
+    }
+
+    @Test
+    public void saveOathDeviceSettings_whenOnlyCounterChanged_thenKeepOtherStoredFields() throws Exception {
+        stored.setDeviceName("renamed");
+        DeviceProfileVersion version = DeviceProfileVersion.of(updated);
+        updated.setCounter(6);
+
+        helper.saveOathDeviceSettings(context, version, updated, false);
+
+        verify(writer).save("demo", "/", ImmutableList.of(stored));
+        assertThat(stored.getDeviceName()).isEqualTo("renamed");
+    }
+
+    @Test
+    public void saveOathDeviceSettings_whenNothingChanged_thenSkipSave() throws Exception {
+        DeviceProfileVersion version = DeviceProfileVersion.of(updated);
+
+        helper.saveOathDeviceSettings(context, version, updated, false);
+
+        verify(writer, never()).save(any(), any(), any());
+    }
+
+    @Test
+    public void saveOathDeviceSettings_whenStoredProfileChanged_thenConflict() throws Exception {
+        DeviceProfileVersion version = DeviceProfileVersion.of(updated);
+        updated.setCounter(6);
+        stored.setCounter(7);
+
+        assertThatThrownBy(() -> helper.saveOathDeviceSettings(context, version, updated, false))
+                .isInstanceOf(DeviceProfileConflictException.class);
+        verify(writer, never()).save(any(), any(), any());
+    }
+
+    @Test
+    public void saveOathDeviceSettings_whenWriteBehind_thenEnqueue() throws Exception {
+        DeviceProfileVersion version = DeviceProfileVersion.of(updated);
+        updated.setCounter(6);
+        when(writeBehind.enqueue("/", "demo", stored)).thenReturn(true);
+
+        helper.saveOathDeviceSettings(context, version, updated, true);
+
+        verify(writer, never()).save(any(), any(), any());
+    }
+
+    @Test
+    public void saveOathDeviceSettings_whenWriteBehindQueueFull_thenSaveSynchronously() throws Exception {
+        DeviceProfileVersion version = DeviceProfileVersion.of(updated);
+        updated.setCounter(6);
+        when(writeBehind.enqueue("/", "demo", stored)).thenReturn(false);
+
+        helper.saveOathDeviceSettings(context, version, updated, true);
+
+        verify(writer).save("demo", "/", ImmutableList.of(stored));
+    }
+
+    @Test
+    public void saveOathDeviceSettings_whenNotStoredYet_thenSave() throws Exception {
+        updated.setUUID("new_device");
+        DeviceProfileVersion version = DeviceProfileVersion.of(updated);
+
+        helper.saveOathDeviceSettings(context, version, updated, false);
+
+        verify(writer).save("demo", "/", ImmutableList.of(stored, updated));
+    }
+
+    @Test
+    public void saveOathDeviceSettings_whenSecondDeviceUsed_thenKeepFirstDevice() throws Exception {
+        OathDeviceSettings second = new OathDeviceSettings();
+        second.setUUID("second_device");
+        second.setCounter(1);
+        when(profileManager.getDeviceProfiles("demo", "/")).thenReturn(ImmutableList.of(stored, second));
+        OathDeviceSettings used = new OathDeviceSettings();
+        used.setUUID("second_device");
+        used.setCounter(1);
+        DeviceProfileVersion version = DeviceProfileVersion.of(used);
+        used.setCounter(2);
+
+        helper.saveOathDeviceSettings(context, version, used, false);
+
+        verify(writer).save("demo", "/", ImmutableList.of(stored, second));
+        assertThat(stored.getCounter()).isEqualTo(5);
+        assertThat(second.getCounter()).isEqualTo(2);
+    }
+
+    private static Key key(int fill) {
+        byte[] bytes = new byte[32];
+        Arrays.fill(bytes, (byte) fill);
+        return new SecretKeySpec(bytes, "AES");
+    }
+}
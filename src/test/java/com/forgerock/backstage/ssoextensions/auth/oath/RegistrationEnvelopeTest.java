@@ -0,0 +1,94 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RegistrationEnvelopeTest {
+
+    @Test
+    public void decode_returnsEncodedProfileAndRecoveryCodes() throws IOException {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setUUID("device");
+        settings.setDeviceName("OATH Device");
+        settings.setSharedSecret("abcd");
+        settings.setLastLogin(1554119970L, TimeUnit.SECONDS);
+        settings.setCounter(7);
+        settings.setChecksumDigit(true);
+        settings.setTruncationOffset(3);
+        settings.setClockDriftSeconds(-30);
+        settings.setRecoveryCodes(ImmutableList.of("{SSHA-256}salt$hash"));
+
+        RegistrationEnvelope envelope = RegistrationEnvelope.decode(
+                RegistrationEnvelope.encode(settings, ImmutableList.of("abcDEF1234", "ghiJKL5678")));
+
+        assertThat(envelope.getRecoveryCodes()).containsExactly("abcDEF1234", "ghiJKL5678");
+        OathDeviceSettings decoded = envelope.getDeviceSettings();
+        assertThat(decoded.getUUID()).isEqualTo("device");
+        assertThat(decoded.getDeviceName()).isEqualTo("OATH Device");
+        assertThat(decoded.getSharedSecret()).isEqualTo("abcd");
+        assertThat(decoded.getLastLogin()).isEqualTo(1554119970L);
+        assertThat(decoded.getCounter()).isEqualTo(7);
+        assertThat(decoded.getChecksumDigit()).isTrue();
+        assertThat(decoded.getTruncationOffset()).isEqualTo(3);
+        assertThat(decoded.getClockDriftSeconds()).isEqualTo(-30);
+        assertThat(decoded.getRecoveryCodes()).containsExactly("{SSHA-256}salt$hash");
+        assertThat(envelope.getDeviceSettings()).isSameAs(decoded);
+    }
+
+    @Test
+    public void decode_whenNoRecoveryCodes_thenEmpty() throws IOException {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret("abcd");
+
+        RegistrationEnvelope envelope = RegistrationEnvelope.decode(
+                RegistrationEnvelope.encode(settings, Collections.emptyList()));
+
+        assertThat(envelope.getRecoveryCodes()).isEmpty();
+        assertThat(envelope.getDeviceSettings().getUUID()).isNull();
+    }
+
+    @Test
+    public void decode_whenUnknownVersion_thenFail() {
+        String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(new byte[]{2, 0, 0, 0, 0});
+
+        assertThatThrownBy(() -> RegistrationEnvelope.decode(encoded))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("version");
+    }
+
+    @Test
+    public void decode_whenTruncated_thenFail() {
+        String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(new byte[]{1, 0, 0, 1, 0});
+
+        assertThatThrownBy(() -> RegistrationEnvelope.decode(encoded))
+                .isInstanceOf(IOException.class);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.FailureReason;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNodeOutcomeProvider.OATHOutcome.FAILURE;
+import static com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNodeOutcomeProvider.OATHOutcome.SUCCESS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AuditLogTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void append_whenClosed_thenRecordsReadBack() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        AuditLog log = new AuditLog(directory, 10);
+        log.append("/customers", "bob", SUCCESS, null, -1, TimeUnit.MICROSECONDS.toNanos(1500));
+        log.append("/customers", "alice", FAILURE, FailureReason.REPLAY, 0, TimeUnit.MICROSECONDS.toNanos(800));
+        log.close();
+
+        List<AuditRecord> records = AuditLogReader.read(directory);
+        assertThat(records).hasSize(2);
+        AuditRecord success = records.get(0);
+        assertThat(success.getTimestamp()).isPositive();
+        assertThat(success.getUserHash()).isEqualTo(AuditRecord.userHash("/customers", "bob"));
+        assertThat(success.getRealm()).isEqualTo("/customers");
+        assertThat(success.getOutcome()).isEqualTo(SUCCESS);
+        assertThat(success.getFailureReason()).isNull();
+        assertThat(success.getMatchedOffset()).isEqualTo(-1);
+        assertThat(success.getLatencyMicros()).isEqualTo(1500);
+        AuditRecord failure = records.get(1);
+        assertThat(failure.getUserHash()).isEqualTo(AuditRecord.userHash("/customers", "alice"));
+        assertThat(failure.getOutcome()).isEqualTo(FAILURE);
+        assertThat(failure.getFailureReason()).isEqualTo(FailureReason.REPLAY);
+        assertThat(log.getWrittenCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void append_whenRealmLong_thenCut() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        AuditLog log = new AuditLog(directory, 10);
+        log.append("/a-realm-with-a-name-longer-than-the-record-allows", "bob", SUCCESS, null, 0, 0);
+        log.close();
+
+        assertThat(AuditLogReader.read(directory).get(0).getRealm())
+                .isEqualTo("/a-realm-with-a-name-longer-than-the");
+    }
+
+    @Test
+    public void append_whenSegmentFull_thenRotatedAndOldestDeleted() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        AuditLog log = new AuditLog(directory, 2, 4, 16);
+        for (int i = 0; i < 10; i++) {
+            log.append("/", "bob", SUCCESS, null, i, 0);
+        }
+        log.close();
+
+        assertThat(AuditSegment.list(directory)).hasSize(2);
+        assertThat(AuditLogReader.read(directory)).extracting(AuditRecord::getMatchedOffset)
+                .containsExactly(4, 5, 6, 7, 8, 9);
+    }
+
+    @Test(timeout = 500)
+    public void append_whenWriterIdle_thenWokenUp() throws Exception {
+        AuditLog log = new AuditLog(folder.getRoot().toPath(), 10);
+        Thread.sleep(50);
+
+        log.append("/", "bob", SUCCESS, null, 0, 0);
+
+        while (log.getWrittenCount() == 0) {
+            Thread.sleep(1);
+        }
+        log.close();
+    }
+
+    @Test
+    public void append_whenClosed_thenDropped() throws IOException {
+        AuditLog log = new AuditLog(folder.getRoot().toPath(), 10);
+        log.close();
+
+        assertThat(log.append("/", "bob", SUCCESS, null, 0, 0)).isFalse();
+        assertThat(log.getDroppedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void read_whenNotASegment_thenFail() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, "not an audit log segment".getBytes());
+
+        assertThatThrownBy(() -> AuditLogReader.read(file)).isInstanceOf(IOException.class);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import org.forgerock.util.thread.listener.ShutdownManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+public class AuditLogsTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void get_whenOpenFailedRecently_thenNoLogWithoutRetry() throws IOException {
+        AuditLogs auditLogs = new AuditLogs(mock(ShutdownManager.class));
+        String notADirectory = folder.newFile().getPath();
+
+        assertThatThrownBy(() -> auditLogs.get(notADirectory, 1)).isInstanceOf(UncheckedIOException.class);
+        assertThat(auditLogs.get(notADirectory, 1)).isNull();
+    }
+
+    @Test
+    public void get_whenRetryIntervalPassed_thenRetry() throws IOException {
+        AuditLogs auditLogs = new AuditLogs(mock(ShutdownManager.class), 0);
+        String notADirectory = folder.newFile().getPath();
+
+        assertThatThrownBy(() -> auditLogs.get(notADirectory, 1)).isInstanceOf(UncheckedIOException.class);
+        assertThatThrownBy(() -> auditLogs.get(notADirectory, 1)).isInstanceOf(UncheckedIOException.class);
+    }
+}
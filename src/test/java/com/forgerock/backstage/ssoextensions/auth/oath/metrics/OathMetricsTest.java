@@ -0,0 +1,72 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class OathMetricsTest {
+
+    private final OathMetrics metrics = new OathMetrics();
+
+    @Test
+    public void stop_recordsPhaseInStatistics() {
+        OathStatistics statistics = metrics.getStatistics();
+
+        metrics.stop(OathPhase.SAVE, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(2));
+
+        assertThat(statistics.getPhaseCounts()).containsEntry("SAVE", 1L).containsEntry("PROFILE_LOAD", 0L);
+        assertThat(statistics.getPhaseTotalMicros().get("SAVE")).isGreaterThanOrEqualTo(2000L);
+        assertThat(statistics.getPhaseMaxMicros().get("SAVE")).isGreaterThanOrEqualTo(2000L);
+    }
+
+    @Test
+    public void outcomesAndFailures_areCountedByName() {
+        metrics.outcome("SUCCESS");
+        metrics.outcome("FAILURE");
+        metrics.outcome("FAILURE");
+        metrics.failure("REPLAY");
+        metrics.windowOffset(-1);
+
+        OathStatistics statistics = metrics.getStatistics();
+        assertThat(statistics.getOutcomes()).containsEntry("SUCCESS", 1L).containsEntry("FAILURE", 2L);
+        assertThat(statistics.getFailureReasons()).containsOnlyKeys("REPLAY");
+        assertThat(statistics.getWindowOffsets()).containsEntry("-1", 1L);
+    }
+
+    @Test
+    public void register_forwardsToSink() {
+        OathMetricsSink sink = mock(OathMetricsSink.class);
+        metrics.register(sink);
+
+        metrics.stop(OathPhase.OTP_COMPUTATION, metrics.start());
+        metrics.failure("NO_MATCH");
+
+        verify(sink).phase(eq(OathPhase.OTP_COMPUTATION), anyLong());
+        verify(sink).failure("NO_MATCH");
+    }
+}
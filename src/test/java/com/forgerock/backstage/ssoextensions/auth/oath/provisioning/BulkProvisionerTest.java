@@ -0,0 +1,178 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BulkProvisionerTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final InMemoryDeviceProfileStore store = new InMemoryDeviceProfileStore();
+    private final BulkProvisioner provisioner = new BulkProvisioner(store, new BulkProvisioner.Options() {
+        @Override
+        public int threads() {
+            return 3;
+        }
+
+        @Override
+        public int batchSize() {
+            return 7;
+        }
+    });
+
+    @Test
+    public void run_thenProvisionEveryUserAndReport() throws Exception {
+        StringWriter report = new StringWriter();
+
+        ProvisioningStatistics statistics = provisioner.run(input(100), report, null);
+
+        assertThat(statistics.getSucceeded()).isEqualTo(100);
+        assertThat(statistics.getFailed()).isZero();
+        assertThat(store.size()).isEqualTo(100);
+        String[] lines = report.toString().split("\n");
+        assertThat(lines).hasSize(101);
+        assertThat(lines[0]).isEqualTo("number,username,realm,uuid,status,detail");
+        assertThat(lines).filteredOn(line -> line.startsWith("42,user42,/,")).hasSize(1)
+                .allMatch(line -> line.contains(",SUCCESS,otpauth://totp/ForgeRock:user42?secret="));
+    }
+
+    @Test
+    public void run_whenSeedGiven_thenUseSeed() throws Exception {
+        String input = "username,realm,sharedSecret,deviceName,counter\n"
+                + "alice,/,0123456789abcdef0123456789abcdef,Key fob,9\n";
+
+        provisioner.run(ProvisioningReader.csv(new StringReader(input)), new StringWriter(), null);
+
+        OathDeviceSettings settings = store.getDeviceProfile("alice", "/");
+        assertThat(settings.getSharedSecret()).isEqualTo("0123456789abcdef0123456789abcdef");
+        assertThat(settings.getDeviceName()).isEqualTo("Key fob");
+        assertThat(settings.getCounter()).isEqualTo(9);
+        assertThat(settings.getUUID()).isNotNull();
+    }
+
+    @Test
+    public void run_whenUserHasDevice_thenAddNewDevice() throws Exception {
+        OathDeviceSettings app = store.createDeviceProfile(20);
+        store.saveDeviceProfile("alice", "/", app);
+        String input = "username,realm,deviceName\n"
+                + "alice,/,Key fob\n";
+
+        provisioner.run(ProvisioningReader.csv(new StringReader(input)), new StringWriter(), null);
+
+        assertThat(store.getDeviceProfiles("alice", "/")).hasSize(2).first().isSameAs(app);
+        assertThat(store.getDeviceProfile("alice", "/").getDeviceName()).isEqualTo("Key fob");
+    }
+
+    @Test
+    public void run_whenBadRecords_thenCountFailuresAndCarryOn() throws Exception {
+        String input = "username,realm,sharedSecret\n"
+                + "alice,/,not-hex\n"
+                + ",/,\n"
+                + "carol,/,\n";
+        StringWriter report = new StringWriter();
+
+        ProvisioningStatistics statistics = provisioner.run(ProvisioningReader.csv(new StringReader(input)), report,
+                null);
+
+        assertThat(statistics.getSucceeded()).isEqualTo(1);
+        assertThat(statistics.getFailed()).isEqualTo(2);
+        assertThat(statistics.getErrors()).containsEntry("IllegalArgumentException", 1L)
+                .containsEntry("MalformedRecordException", 1L);
+        assertThat(report.toString()).contains("1,alice,/,,FAILED,").contains("2,,,,FAILED,");
+        assertThat(store.getDeviceProfile("carol", "/")).isNotNull();
+    }
+
+    @Test
+    public void run_whenCheckpointExists_thenResumeAfterIt() throws Exception {
+        Path checkpoint = folder.getRoot().toPath().resolve("provisioning.checkpoint");
+
+        provisioner.run(input(30), new StringWriter(), checkpoint);
+        assertThat(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII)).isEqualTo("30");
+
+        Files.write(checkpoint, "21".getBytes(StandardCharsets.US_ASCII));
+        InMemoryDeviceProfileStore resumedStore = new InMemoryDeviceProfileStore();
+        StringWriter report = new StringWriter();
+        ProvisioningStatistics statistics = new BulkProvisioner(resumedStore, new BulkProvisioner.Options() { })
+                .run(input(30), report, checkpoint);
+
+        assertThat(statistics.getSkipped()).isEqualTo(21);
+        assertThat(statistics.getSucceeded()).isEqualTo(9);
+        assertThat(resumedStore.getDeviceProfile("user21", "/")).isNull();
+        assertThat(resumedStore.getDeviceProfile("user22", "/")).isNotNull();
+        assertThat(report.toString()).doesNotContain("number,username");
+    }
+
+    @Test
+    public void run_whenCheckpointHasLaterBatches_thenSkipThemToo() throws Exception {
+        Path checkpoint = folder.getRoot().toPath().resolve("provisioning.checkpoint");
+        Files.write(checkpoint, "7\n15-21\n".getBytes(StandardCharsets.US_ASCII));
+
+        ProvisioningStatistics statistics = provisioner.run(input(30), new StringWriter(), checkpoint);
+
+        assertThat(statistics.getSkipped()).isEqualTo(14);
+        assertThat(statistics.getSucceeded()).isEqualTo(16);
+        assertThat(store.getDeviceProfile("user8", "/")).isNotNull();
+        assertThat(store.getDeviceProfile("user15", "/")).isNull();
+        assertThat(store.getDeviceProfile("user21", "/")).isNull();
+        assertThat(store.getDeviceProfile("user22", "/")).isNotNull();
+        assertThat(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII)).isEqualTo("30");
+    }
+
+    @Test
+    public void run_whenReportCannotBeWritten_thenFail() {
+        Writer report = new StringWriter() {
+            @Override
+            public void write(String line) {
+                if (line.startsWith("20,")) {
+                    throw new UncheckedIOException(new IOException("disk full"));
+                }
+                super.write(line);
+            }
+        };
+
+        assertThatThrownBy(() -> provisioner.run(input(30), report, null))
+                .isInstanceOf(IOException.class).hasMessage("disk full");
+    }
+
+    private static ProvisioningReader input(int users) {
+        StringBuilder csv = new StringBuilder("username,realm\n");
+        for (int i = 1; i <= users; i++) {
+            csv.append("user").append(i).append(",/\n");
+        }
+        return ProvisioningReader.csv(new StringReader(csv.toString()));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileWriter;
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.junit.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IdentityStoreDeviceProfileStoreTest {
+
+    private final UserOathDeviceProfileManager profileManager = mock(UserOathDeviceProfileManager.class);
+    private final DeviceProfileWriter writer = mock(DeviceProfileWriter.class);
+    private final IdentityStoreDeviceProfileStore store = new IdentityStoreDeviceProfileStore(profileManager, writer,
+            new DeviceProfileCache());
+
+    @Test
+    public void saveDeviceProfile_whenUserHasDevice_thenKeepIt() throws Exception {
+        OathDeviceSettings app = profile("app");
+        when(profileManager.getDeviceProfiles("demo", "/")).thenReturn(ImmutableList.of(app));
+        OathDeviceSettings token = profile("token");
+
+        store.saveDeviceProfile("demo", "/", token);
+
+        verify(writer).save("demo", "/", ImmutableList.of(app, token));
+        verify(profileManager, never()).saveDeviceProfile(any(), any(), any());
+    }
+
+    @Test
+    public void saveDeviceProfile_whenSameDevice_thenReplaceIt() throws Exception {
+        OathDeviceSettings app = profile("app");
+        OathDeviceSettings token = profile("token");
+        when(profileManager.getDeviceProfiles("demo", "/")).thenReturn(ImmutableList.of(token, app));
+        OathDeviceSettings reprovisioned = profile("token");
+
+        store.saveDeviceProfile("demo", "/", reprovisioned);
+
+        verify(writer).save("demo", "/", ImmutableList.of(reprovisioned, app));
+    }
+
+    private static OathDeviceSettings profile(String uuid) {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setUUID(uuid);
+        return settings;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.provisioning;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class ProvisioningReaderTest {
+
+    @Test
+    public void csv_whenQuotedFields_thenParseByHeader() throws IOException {
+        ProvisioningReader reader = ProvisioningReader.csv(new StringReader(
+                "realm,username,deviceName,sharedSecret,counter\n"
+                        + "/,alice,\"Token, red\",0123456789abcdef0123,5\n"
+                        + "\n"
+                        + "/alpha,bob,,,\n"));
+
+        ProvisioningRecord alice = reader.next();
+        ProvisioningRecord bob = reader.next();
+
+        assertThat(alice.getNumber()).isEqualTo(1);
+        assertThat(alice.getUsername()).isEqualTo("alice");
+        assertThat(alice.getRealm()).isEqualTo("/");
+        assertThat(alice.getDeviceName()).isEqualTo("Token, red");
+        assertThat(alice.getSharedSecret()).isEqualTo("0123456789abcdef0123");
+        assertThat(alice.getCounter()).isEqualTo(5);
+        assertThat(bob.getNumber()).isEqualTo(2);
+        assertThat(bob.getRealm()).isEqualTo("/alpha");
+        assertThat(bob.getSharedSecret()).isNull();
+        assertThat(bob.getDeviceName()).isNull();
+        assertThat(bob.getCounter()).isNull();
+        assertThat(reader.next()).isNull();
+    }
+
+    @Test
+    public void jsonLines_thenParseEachLine() throws IOException {
+        ProvisioningReader reader = ProvisioningReader.jsonLines(new StringReader(
+                "{\"username\":\"alice\",\"realm\":\"/\",\"counter\":3}\n"
+                        + "{\"username\":\"bob\",\"realm\":\"/\",\"sharedSecret\":\"abcdef\"}\n"));
+
+        ProvisioningRecord alice = reader.next();
+        ProvisioningRecord bob = reader.next();
+
+        assertThat(alice.getCounter()).isEqualTo(3);
+        assertThat(bob.getNumber()).isEqualTo(2);
+        assertThat(bob.getSharedSecret()).isEqualTo("abcdef");
+        assertThat(reader.next()).isNull();
+    }
+
+    @Test
+    public void next_whenMalformedRecord_thenThrowAndContinue() throws IOException {
+        ProvisioningReader reader = ProvisioningReader.jsonLines(new StringReader(
+                "{\"username\":\"alice\"\n"
+                        + "{\"realm\":\"/\"}\n"
+                        + "{\"username\":\"carol\",\"realm\":\"/\"}\n"));
+
+        Throwable syntax = catchThrowable(reader::next);
+        Throwable missing = catchThrowable(reader::next);
+        ProvisioningRecord carol = reader.next();
+
+        assertThat(syntax).isInstanceOf(MalformedRecordException.class);
+        assertThat(((MalformedRecordException) syntax).getNumber()).isEqualTo(1);
+        assertThat(missing).isInstanceOf(MalformedRecordException.class).hasMessageContaining("username");
+        assertThat(carol.getNumber()).isEqualTo(3);
+    }
+}
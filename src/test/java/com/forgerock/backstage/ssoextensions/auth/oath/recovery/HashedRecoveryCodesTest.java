@@ -0,0 +1,60 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.recovery;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HashedRecoveryCodesTest {
+
+    private final List<String> codes = ImmutableList.of("abcDEF1234", "ghiJKL5678");
+
+    @Test
+    public void hash_doesNotStorePlainText() {
+        List<String> hashed = HashedRecoveryCodes.hash(codes);
+
+        assertThat(hashed).hasSize(2).allMatch(code -> code.startsWith(HashedRecoveryCodes.PREFIX));
+        assertThat(String.join(",", hashed)).doesNotContain("abcDEF1234").doesNotContain("ghiJKL5678");
+    }
+
+    @Test
+    public void find_whenHashedCodeMatches_thenStoredEntry() {
+        List<String> hashed = HashedRecoveryCodes.hash(codes);
+
+        assertThat(HashedRecoveryCodes.of(hashed).find("ghiJKL5678")).isEqualTo(hashed.get(1));
+        assertThat(HashedRecoveryCodes.of(hashed).find("ghijkl5678")).isNull();
+        assertThat(HashedRecoveryCodes.of(hashed).find(null)).isNull();
+    }
+
+    @Test
+    public void find_whenPlainTextCodeMatches_thenStoredEntry() {
+        assertThat(HashedRecoveryCodes.of(codes).find("abcDEF1234")).isEqualTo("abcDEF1234");
+        assertThat(HashedRecoveryCodes.of(codes).find("abcDEF")).isNull();
+    }
+
+    @Test
+    public void find_whenNoCodes_thenNull() {
+        assertThat(HashedRecoveryCodes.of(null).find("abcDEF1234")).isNull();
+    }
+}
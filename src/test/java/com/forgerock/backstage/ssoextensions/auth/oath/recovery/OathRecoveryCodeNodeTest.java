@@ -0,0 +1,213 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.recovery;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfilePrefetcher;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileVersion;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileWriteBehind;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileWriter;
+import com.forgerock.backstage.ssoextensions.auth.oath.EncryptionKeyCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.security.auth.callback.NameCallback;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static java.util.Collections.emptyMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OathRecoveryCodeNodeTest {
+
+    private final OathHelper helper = mock(OathHelper.class);
+    private final OathRecoveryCodeNode node = new OathRecoveryCodeNode(mock(OathRecoveryCodeNode.Config.class), helper);
+    private final NameCallback nameCallback = mock(NameCallback.class);
+    private final JsonValue emptySharedState = new JsonValue(new HashMap<>());
+    private final ExternalRequestContext request = new ExternalRequestContext.Builder().parameters(emptyMap()).build();
+    private final List<String> codes = HashedRecoveryCodes.hash(ImmutableList.of("abcDEF1234", "ghiJKL5678"));
+
+    @Test
+    public void process_whenNoCode_thenPrompt() throws NodeProcessException {
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of());
+
+        Action action = node.process(context);
+        assertThat(action.callbacks).hasSize(1);
+        assertThat(action.callbacks.get(0)).isInstanceOf(NameCallback.class);
+    }
+
+    @Test
+    public void process_whenCodeMatches_thenTrueAndCodeRemoved() throws Exception {
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(profile(codes)));
+        when(nameCallback.getName()).thenReturn("abcDEF1234 ");
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(nameCallback));
+
+        Action action = node.process(context);
+
+        assertThat(action.outcome).isEqualTo("true");
+        ArgumentCaptor<OathDeviceSettings> saved = ArgumentCaptor.forClass(OathDeviceSettings.class);
+        verify(helper).saveOathDeviceSettings(eq(context), any(DeviceProfileVersion.class), saved.capture(), eq(false));
+        assertThat(saved.getValue().getRecoveryCodes()).containsExactly(codes.get(1));
+    }
+
+    @Test
+    public void process_whenCodeOfSecondDevice_thenTrueAndCodeRemoved() throws Exception {
+        List<String> otherCodes = HashedRecoveryCodes.hash(ImmutableList.of("mnoPQR9012"));
+        OathDeviceSettings first = profile(otherCodes);
+        OathDeviceSettings second = profile(codes);
+        second.setUUID("second");
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(first, second));
+        when(nameCallback.getName()).thenReturn("ghiJKL5678");
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(nameCallback));
+
+        Action action = node.process(context);
+
+        assertThat(action.outcome).isEqualTo("true");
+        ArgumentCaptor<OathDeviceSettings> saved = ArgumentCaptor.forClass(OathDeviceSettings.class);
+        verify(helper).saveOathDeviceSettings(eq(context), any(DeviceProfileVersion.class), saved.capture(), eq(false));
+        assertThat(saved.getValue().getUUID()).isEqualTo("second");
+        assertThat(saved.getValue().getRecoveryCodes()).containsExactly(codes.get(0));
+    }
+
+    @Test
+    public void process_whenCodeDoesNotMatch_thenFalse() throws Exception {
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(profile(codes)));
+        when(nameCallback.getName()).thenReturn("xyz");
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(nameCallback));
+
+        assertThat(node.process(context).outcome).isEqualTo("false");
+        verify(helper, never()).saveOathDeviceSettings(any(), any(DeviceProfileVersion.class), any(), eq(false));
+    }
+
+    @Test
+    public void process_whenSameCodeUsedConcurrently_thenOnlyOneSucceeds() throws Exception {
+        StoredProfile store = new StoredProfile(codes);
+        OathRecoveryCodeNode first = new OathRecoveryCodeNode(mock(OathRecoveryCodeNode.Config.class), store.helper);
+        OathRecoveryCodeNode second = new OathRecoveryCodeNode(mock(OathRecoveryCodeNode.Config.class), store.helper);
+        store.beforeFirstRead(() -> second.process(store.context("abcDEF1234")));
+
+        assertThat(first.process(store.context("abcDEF1234")).outcome).isEqualTo("false");
+        assertThat(store.concurrentAction.outcome).isEqualTo("true");
+        assertThat(store.codes).containsExactly(codes.get(1));
+        verify(store.writer, times(1)).save(any(), any(), any());
+    }
+
+    @Test
+    public void process_whenOtherCodeUsedConcurrently_thenBothRemoved() throws Exception {
+        StoredProfile store = new StoredProfile(codes);
+        OathRecoveryCodeNode first = new OathRecoveryCodeNode(mock(OathRecoveryCodeNode.Config.class), store.helper);
+        OathRecoveryCodeNode second = new OathRecoveryCodeNode(mock(OathRecoveryCodeNode.Config.class), store.helper);
+        store.beforeFirstRead(() -> second.process(store.context("ghiJKL5678")));
+
+        assertThat(first.process(store.context("abcDEF1234")).outcome).isEqualTo("true");
+        assertThat(store.concurrentAction.outcome).isEqualTo("true");
+        assertThat(store.codes).isEmpty();
+    }
+
+    @Test
+    public void process_whenNoDevice_thenFalse() throws NodeProcessException, DevicePersistenceException {
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of());
+        when(nameCallback.getName()).thenReturn("abcDEF1234");
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(nameCallback));
+
+        assertThat(node.process(context).outcome).isEqualTo("false");
+    }
+
+    /**
+     * A device profile in an identity store, saved through a real {@link OathHelper}. The profile is read before a
+     * concurrent request is let in, so that request's save lands between the read and the save of the first one.
+     */
+    private static final class StoredProfile {
+        private final UserOathDeviceProfileManager profileManager = mock(UserOathDeviceProfileManager.class);
+        private final DeviceProfileWriteBehind writeBehind = mock(DeviceProfileWriteBehind.class);
+        private final DeviceProfileWriter writer = mock(DeviceProfileWriter.class);
+        private final OathHelper helper = new OathHelper(mock(Realm.class), profileManager, mock(CoreWrapper.class),
+                new JwtBuilderFactory(), mock(EncryptionKeyCache.class), mock(DeviceJsonUtils.class),
+                new DeviceProfileCache(), writeBehind, mock(DeviceProfilePrefetcher.class), writer);
+        private List<String> codes;
+        private Callable<Action> concurrentRequest;
+        private Action concurrentAction;
+
+        StoredProfile(List<String> codes) throws Exception {
+            this.codes = new ArrayList<>(codes);
+            when(profileManager.getDeviceProfiles("demo", "/")).thenAnswer(invocation -> {
+                List<OathDeviceSettings> read = ImmutableList.of(profile(new ArrayList<>(this.codes)));
+                Callable<Action> concurrent = concurrentRequest;
+                concurrentRequest = null;
+                if (concurrent != null) {
+                    concurrentAction = concurrent.call();
+                }
+                return read;
+            });
+            when(writeBehind.overlay(any(), any(), any())).thenAnswer(invocation -> invocation.getArgument(2));
+            doAnswer(invocation -> {
+                List<OathDeviceSettings> saved = invocation.getArgument(2);
+                this.codes = new ArrayList<>(saved.get(0).getRecoveryCodes());
+                return null;
+            }).when(writer).save(eq("demo"), eq("/"), any());
+        }
+
+        void beforeFirstRead(Callable<Action> request) {
+            concurrentRequest = request;
+        }
+
+        TreeContext context(String code) {
+            NameCallback callback = new NameCallback("Enter recovery code");
+            callback.setName(code);
+            return new TreeContext(new JsonValue(ImmutableMap.of(USERNAME, "demo", REALM, "/")),
+                    new ExternalRequestContext.Builder().parameters(emptyMap()).build(), ImmutableList.of(callback));
+        }
+    }
+
+    private static OathDeviceSettings profile(List<String> recoveryCodes) {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setUUID("device");
+        settings.setRecoveryCodes(recoveryCodes);
+        return settings;
+    }
+}
@@ -21,6 +21,8 @@ package com.forgerock.backstage.ssoextensions.auth.oath.registration;
 
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathMetrics;
+import com.forgerock.backstage.ssoextensions.auth.oath.recovery.HashedRecoveryCodes;
 import com.google.common.collect.ImmutableList;
 import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
 import com.sun.identity.idm.AMIdentity;
@@ -37,6 +39,7 @@ import org.junit.Test;
 
 import javax.security.auth.callback.ConfirmationCallback;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -44,6 +47,8 @@ import static java.util.Collections.emptyMap;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class OathRegistrationNodeTest {
@@ -52,7 +57,9 @@ public class OathRegistrationNodeTest {
 
     private final OathHelper helper = mock(OathHelper.class);
     private final RecoveryCodeGenerator recoveryCodeGenerator = mock(RecoveryCodeGenerator.class);
-    private final OathRegistrationNode oathRegistrationNode = new OathRegistrationNode(config, helper, recoveryCodeGenerator);
+    private final RegistrationMaterialPool materialPool = mock(RegistrationMaterialPool.class);
+    private final OathRegistrationNode oathRegistrationNode = new OathRegistrationNode(config, helper, recoveryCodeGenerator,
+            mock(OathMetrics.class), materialPool);
     private final JsonValue emptySharedState = new JsonValue(new HashMap<>());
     private final ConfirmationCallback confirmationCallback = mock(ConfirmationCallback.class);
     private final ExternalRequestContext request = new ExternalRequestContext.Builder().parameters(emptyMap()).build();
@@ -77,15 +84,13 @@ public class OathRegistrationNodeTest {
     public void process_whenInitialStage_thenGenerateDeviceProfileAndCallbacks() throws NodeProcessException, IOException {
 
         TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of());
-        List<String> recoveryCodes = ImmutableList.of("123456");
         OathDeviceSettings settings = new OathDeviceSettings();
         settings.setSharedSecret("abcd");
         settings.setDeviceName("device");
 
         when(config.generateRecoveryCodes()).thenReturn(false);
         when(helper.createDeviceProfile(anyInt())).thenReturn(settings);
-        when(helper.encryptOathDeviceSettings(any())).thenReturn("device_settings");
-        when(helper.encryptList(recoveryCodes)).thenReturn("encrypted_recovery_codes");
+        when(helper.encryptRegistration(any(), any())).thenReturn("encrypted_registration");
         when(helper.getIdentity(any())).thenReturn(mock(AMIdentity.class));
 
         Action action = oathRegistrationNode.process(context);
@@ -93,9 +98,10 @@ public class OathRegistrationNodeTest {
         assertThat(action.callbacks).hasSize(2);
         assertThat(action.callbacks.get(0)).isInstanceOf(ScriptTextOutputCallback.class);
         assertThat(action.callbacks.get(1)).isInstanceOf(ConfirmationCallback.class);
-        assertThat(action.sharedState.get("oathDeviceProfile").asString()).isEqualTo("device_settings");
+        assertThat(action.sharedState.get("oathRegistration").asString()).isEqualTo("encrypted_registration");
         assertThat(action.sharedState.isDefined("recoveryCodes")).isFalse();
         assertThat(action.sharedState.isDefined("deviceName")).isFalse();
+        verify(helper).encryptRegistration(settings, Collections.emptyList());
     }
 
     @Test
@@ -110,8 +116,7 @@ public class OathRegistrationNodeTest {
         when(config.generateRecoveryCodes()).thenReturn(true);
         when(recoveryCodeGenerator.generateCodes(anyInt(), any(), anyBoolean())).thenReturn(recoveryCodes);
         when(helper.createDeviceProfile(anyInt())).thenReturn(settings);
-        when(helper.encryptOathDeviceSettings(any())).thenReturn("device_settings");
-        when(helper.encryptList(recoveryCodes)).thenReturn("encrypted_recovery_codes");
+        when(helper.encryptRegistration(any(), any())).thenReturn("encrypted_registration");
         when(helper.getIdentity(any())).thenReturn(mock(AMIdentity.class));
 
         Action action = oathRegistrationNode.process(context);
@@ -119,9 +124,51 @@ public class OathRegistrationNodeTest {
         assertThat(action.callbacks).hasSize(2);
         assertThat(action.callbacks.get(0)).isInstanceOf(ScriptTextOutputCallback.class);
         assertThat(action.callbacks.get(1)).isInstanceOf(ConfirmationCallback.class);
-        assertThat(action.sharedState.get("oathDeviceProfile").asString()).isEqualTo("device_settings");
-        assertThat(action.sharedState.get("recoveryCodes").asString()).isEqualTo("encrypted_recovery_codes");
+        assertThat(action.sharedState.get("oathRegistration").asString()).isEqualTo("encrypted_registration");
+        verify(helper).encryptRegistration(settings, recoveryCodes);
 
     }
 
+    @Test
+    public void process_whenHashingRecoveryCodes_thenStoreHashesAndShowCodes() throws NodeProcessException, CodeException, IOException {
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of());
+        List<String> recoveryCodes = ImmutableList.of("123456");
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret("abcd");
+        settings.setDeviceName("device");
+
+        when(config.hashRecoveryCodes()).thenReturn(true);
+        when(recoveryCodeGenerator.generateCodes(anyInt(), any(), anyBoolean())).thenReturn(recoveryCodes);
+        when(helper.createDeviceProfile(anyInt())).thenReturn(settings);
+        when(helper.encryptRegistration(any(), any())).thenReturn("encrypted_registration");
+        when(helper.getIdentity(any())).thenReturn(mock(AMIdentity.class));
+
+        Action action = oathRegistrationNode.process(context);
+
+        assertThat(settings.getRecoveryCodes()).hasSize(1).doesNotContain("123456");
+        assertThat(HashedRecoveryCodes.of(settings.getRecoveryCodes()).find("123456")).isNotNull();
+        verify(helper).encryptRegistration(settings, recoveryCodes);
+    }
+
+    @Test
+    public void process_whenPregenerate_thenTakeFromPool() throws NodeProcessException, CodeException, IOException {
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of());
+        List<String> recoveryCodes = ImmutableList.of("123456");
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret("abcd");
+        settings.setDeviceName("device");
+
+        when(config.pregenerate()).thenReturn(true);
+        when(materialPool.takeDeviceProfile(anyInt())).thenReturn(settings);
+        when(materialPool.takeRecoveryCodes()).thenReturn(recoveryCodes);
+        when(helper.encryptRegistration(any(), any())).thenReturn("encrypted_registration");
+        when(helper.getIdentity(any())).thenReturn(mock(AMIdentity.class));
+
+        oathRegistrationNode.process(context);
+
+        verify(helper).encryptRegistration(settings, recoveryCodes);
+        verify(helper, never()).createDeviceProfile(anyInt());
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.registration;
+
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+import org.forgerock.openam.utils.CodeException;
+import org.forgerock.openam.utils.RecoveryCodeGenerator;
+import org.forgerock.util.thread.listener.ShutdownListener;
+import org.forgerock.util.thread.listener.ShutdownManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RegistrationMaterialPoolTest {
+
+    private static final int CAPACITY = 4;
+
+    private final UserOathDeviceProfileManager profileManager = mock(UserOathDeviceProfileManager.class);
+    private final RecoveryCodeGenerator recoveryCodeGenerator = mock(RecoveryCodeGenerator.class);
+    private final ShutdownManager shutdownManager = mock(ShutdownManager.class);
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final Executor executor = scheduled::add;
+    private final RegistrationMaterialPool pool = new RegistrationMaterialPool(profileManager, recoveryCodeGenerator,
+            shutdownManager, executor, CAPACITY);
+    private final List<OathDeviceSettings> created = new ArrayList<>();
+
+    @Before
+    public void init() throws CodeException {
+        when(profileManager.createDeviceProfile(anyInt())).thenAnswer(invocation -> {
+            OathDeviceSettings settings = new OathDeviceSettings();
+            settings.setSharedSecret("abcd" + created.size());
+            created.add(settings);
+            return settings;
+        });
+        when(recoveryCodeGenerator.generateCodes(anyInt(), any(), anyBoolean())).thenReturn(ImmutableList.of("code"));
+    }
+
+    @Test
+    public void takeDeviceProfile_whenEmpty_thenGenerateInlineAndScheduleRefill() {
+        OathDeviceSettings settings = pool.takeDeviceProfile(20);
+
+        assertThat(settings).isSameAs(created.get(0));
+        assertThat(pool.getMisses()).isEqualTo(1);
+        assertThat(scheduled).hasSize(1);
+    }
+
+    @Test
+    public void takeDeviceProfile_afterRefill_thenServeFromPoolOnce() {
+        pool.takeDeviceProfile(20);
+        scheduled.remove(0).run();
+        assertThat(pool.getAvailableDeviceProfiles()).isEqualTo(CAPACITY);
+
+        OathDeviceSettings first = pool.takeDeviceProfile(20);
+        OathDeviceSettings second = pool.takeDeviceProfile(20);
+
+        assertThat(first).isNotSameAs(second);
+        assertThat(pool.getHits()).isEqualTo(2);
+        assertThat(pool.getAvailableDeviceProfiles()).isEqualTo(CAPACITY - 2);
+        verify(profileManager, times(1 + CAPACITY)).createDeviceProfile(20);
+    }
+
+    @Test
+    public void takeRecoveryCodes_afterRefill_thenServeFromPool() throws CodeException {
+        pool.takeRecoveryCodes();
+        scheduled.remove(0).run();
+
+        assertThat(pool.getAvailableRecoveryCodeSets()).isEqualTo(CAPACITY);
+        assertThat(pool.takeRecoveryCodes()).containsExactly("code");
+        assertThat(pool.getHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void refill_onlyWhenBelowThreshold() {
+        pool.takeDeviceProfile(20);
+        scheduled.remove(0).run();
+
+        pool.takeDeviceProfile(20);
+        pool.takeDeviceProfile(20);
+
+        assertThat(scheduled).isEmpty();
+        assertThat(pool.getRefills()).isEqualTo(1);
+    }
+
+    @Test
+    public void shutdown_emptiesPools() throws Exception {
+        pool.takeDeviceProfile(20);
+        pool.takeRecoveryCodes();
+        scheduled.remove(0).run();
+
+        ArgumentCaptor<ShutdownListener> listener = ArgumentCaptor.forClass(ShutdownListener.class);
+        verify(shutdownManager).addShutdownListener(listener.capture());
+        listener.getValue().shutdown();
+
+        assertThat(pool.getAvailableDeviceProfiles()).isZero();
+        assertThat(pool.getAvailableRecoveryCodeSets()).isZero();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.forgerock.backstage.ssoextensions.auth.oath.replay.SlotReplayStore.BUCKET_SLOTS;
+import static com.forgerock.backstage.ssoextensions.auth.oath.replay.SlotReplayStore.entry;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InProcessReplayStoreTest {
+
+    private static final long FUTURE = Long.MAX_VALUE;
+
+    private final InProcessReplayStore store = new InProcessReplayStore(1024);
+
+    @Test
+    public void markUsed_whenReplayed_thenFalse() {
+        assertThat(store.markUsed("/", "bob", "device", 42, FUTURE)).isTrue();
+        assertThat(store.markUsed("/", "bob", "device", 42, FUTURE)).isFalse();
+    }
+
+    @Test
+    public void release_thenOtpCanBeUsedAgain() {
+        store.markUsed("/", "bob", "device", 42, FUTURE);
+        store.markUsed("/", "bob", "device", 43, FUTURE);
+
+        store.release("/", "bob", "device", 42);
+
+        assertThat(store.markUsed("/", "bob", "device", 42, FUTURE)).isTrue();
+        assertThat(store.markUsed("/", "bob", "device", 43, FUTURE)).isFalse();
+    }
+
+    @Test
+    public void markUsed_whenOtherStepDeviceUserOrRealm_thenTrue() {
+        store.markUsed("/", "bob", "device", 42, FUTURE);
+
+        assertThat(store.markUsed("/", "bob", "device", 43, FUTURE)).isTrue();
+        assertThat(store.markUsed("/", "bob", "other", 42, FUTURE)).isTrue();
+        assertThat(store.markUsed("/", "alice", "device", 42, FUTURE)).isTrue();
+        assertThat(store.markUsed("/sub", "bob", "device", 42, FUTURE)).isTrue();
+    }
+
+    @Test
+    public void markUsed_whenExpired_thenSlotReused() {
+        InProcessReplayStore bucket = new InProcessReplayStore(BUCKET_SLOTS);
+        for (int fingerprint = 1; fingerprint <= BUCKET_SLOTS; fingerprint++) {
+            assertThat(bucket.markUsed(0, entry(fingerprint, 10), 5)).isTrue();
+        }
+        assertThat(bucket.markUsed(0, entry(1, 20), 5)).isFalse();
+
+        assertThat(bucket.markUsed(0, entry(1, 20), 10)).isTrue();
+        assertThat(bucket.markUsed(0, entry(1, 20), 10)).isFalse();
+        assertThat(bucket.getOverflowCount()).isZero();
+    }
+
+    @Test
+    public void markUsed_whenBucketFull_thenNotRecorded() {
+        InProcessReplayStore bucket = new InProcessReplayStore(BUCKET_SLOTS);
+        for (int fingerprint = 1; fingerprint <= BUCKET_SLOTS; fingerprint++) {
+            bucket.markUsed(0, entry(fingerprint, 10), 5);
+        }
+
+        assertThat(bucket.markUsed(0, entry(BUCKET_SLOTS + 1, 10), 5)).isTrue();
+        assertThat(bucket.markUsed(0, entry(BUCKET_SLOTS + 1, 10), 5)).isTrue();
+        assertThat(bucket.getOverflowCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void markUsed_whenConcurrent_thenOnlyOneSucceeds() throws Exception {
+        InProcessReplayStore shared = new InProcessReplayStore(1 << 16);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int step = 0; step < 100; step++) {
+                long otp = step;
+                List<Callable<Boolean>> logins = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    logins.add(() -> shared.markUsed("/", "bob", "device", otp, FUTURE));
+                }
+                int succeeded = 0;
+                for (Future<Boolean> login : executor.invokeAll(logins)) {
+                    succeeded += login.get() ? 1 : 0;
+                }
+                assertThat(succeeded).isEqualTo(1);
+            }
+            assertThat(shared.getOverflowCount()).isZero();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.attribute.PosixFilePermission.OWNER_READ;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_WRITE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeTrue;
+
+public class MappedFileReplayStoreTest {
+
+    private static final long FUTURE = Long.MAX_VALUE;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void markUsed_whenReplayedThroughOtherStore_thenFalse() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("replay.dat");
+        try (MappedFileReplayStore first = MappedFileReplayStore.open(file, 1024);
+             MappedFileReplayStore second = MappedFileReplayStore.open(file, 1024)) {
+
+            assertThat(first.markUsed("/", "bob", "device", 42, FUTURE)).isTrue();
+            assertThat(second.markUsed("/", "bob", "device", 42, FUTURE)).isFalse();
+            assertThat(second.markUsed("/", "bob", "device", 43, FUTURE)).isTrue();
+            assertThat(first.markUsed("/", "bob", "device", 43, FUTURE)).isFalse();
+        }
+    }
+
+    @Test
+    public void release_whenReleasedThroughOtherStore_thenTrue() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("replay.dat");
+        try (MappedFileReplayStore first = MappedFileReplayStore.open(file, 1024);
+             MappedFileReplayStore second = MappedFileReplayStore.open(file, 1024)) {
+
+            first.markUsed("/", "bob", "device", 42, FUTURE);
+            second.release("/", "bob", "device", 42);
+
+            assertThat(first.markUsed("/", "bob", "device", 42, FUTURE)).isTrue();
+        }
+    }
+
+    @Test
+    public void open_whenFileExists_thenRecordsAndSizeKept() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("replay.dat");
+        try (MappedFileReplayStore store = MappedFileReplayStore.open(file, 1024)) {
+            store.markUsed("/", "bob", "device", 42, FUTURE);
+        }
+
+        try (MappedFileReplayStore store = MappedFileReplayStore.open(file, 4096)) {
+            assertThat(store.markUsed("/", "bob", "device", 42, FUTURE)).isFalse();
+        }
+        assertThat(Files.size(file)).isEqualTo(MappedFileReplayStore.HEADER_BYTES + 1024 * Long.BYTES);
+    }
+
+    @Test
+    public void open_whenNewFile_thenOwnerOnly() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("replay.dat");
+        assumeTrue(file.getFileSystem().supportedFileAttributeViews().contains("posix"));
+
+        MappedFileReplayStore.open(file, 1024).close();
+
+        assertThat(Files.getPosixFilePermissions(file)).containsOnly(OWNER_READ, OWNER_WRITE);
+    }
+
+    @Test
+    public void open_whenNotAStoreFile_thenFail() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, "not a replay store file".getBytes());
+
+        assertThatThrownBy(() -> MappedFileReplayStore.open(file, 1024)).isInstanceOf(IOException.class);
+    }
+}
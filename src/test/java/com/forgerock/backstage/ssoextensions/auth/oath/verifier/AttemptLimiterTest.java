@@ -0,0 +1,112 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class AttemptLimiterTest {
+
+    private static final int WINDOW_SECONDS = 60;
+
+    private final AtomicLong now = new AtomicLong(1_000 * 60_000L);
+    private final AttemptLimiter limiter = new AttemptLimiter(now::get);
+
+    @Test
+    public void isLimited_whenUserLimitReached_thenLimitOnlyThatUser() {
+        limiter.failed("/", "alice", WINDOW_SECONDS);
+        limiter.failed("/", "alice", WINDOW_SECONDS);
+
+        assertThat(limiter.isLimited("/", "alice", WINDOW_SECONDS, 3, 0)).isFalse();
+        limiter.failed("/", "alice", WINDOW_SECONDS);
+        assertThat(limiter.isLimited("/", "alice", WINDOW_SECONDS, 3, 0)).isTrue();
+        assertThat(limiter.isLimited("/", "bob", WINDOW_SECONDS, 3, 0)).isFalse();
+        assertThat(limiter.isLimited("/other", "alice", WINDOW_SECONDS, 3, 0)).isFalse();
+    }
+
+    @Test
+    public void isLimited_whenRealmLimitReached_thenLimitEveryUser() {
+        limiter.failed("/", "alice", WINDOW_SECONDS);
+        limiter.failed("/", "bob", WINDOW_SECONDS);
+
+        assertThat(limiter.isLimited("/", "carol", WINDOW_SECONDS, 0, 2)).isTrue();
+        assertThat(limiter.isLimited("/", "carol", WINDOW_SECONDS, 0, 3)).isFalse();
+    }
+
+    @Test
+    public void isLimited_whenFailuresSlideOutOfWindow_thenNotLimited() {
+        limiter.failed("/", "alice", WINDOW_SECONDS);
+        limiter.failed("/", "alice", WINDOW_SECONDS);
+
+        now.addAndGet(60_000L + 30_000L);
+        assertThat(limiter.isLimited("/", "alice", WINDOW_SECONDS, 2, 0)).isFalse();
+        assertThat(limiter.isLimited("/", "alice", WINDOW_SECONDS, 1, 0)).isTrue();
+
+        now.addAndGet(30_000L);
+        assertThat(limiter.isLimited("/", "alice", WINDOW_SECONDS, 1, 0)).isFalse();
+    }
+
+    @Test
+    public void succeeded_thenClearUserButNotRealm() {
+        limiter.failed("/", "alice", WINDOW_SECONDS);
+        limiter.failed("/", "alice", WINDOW_SECONDS);
+
+        limiter.succeeded("/", "alice", WINDOW_SECONDS);
+
+        assertThat(limiter.isLimited("/", "alice", WINDOW_SECONDS, 1, 0)).isFalse();
+        assertThat(limiter.isLimited("/", "alice", WINDOW_SECONDS, 0, 2)).isTrue();
+    }
+
+    @Test
+    public void estimate_thenWeightPreviousWindowByOverlap() {
+        AttemptLimiter.SlidingWindowCounter counter = new AttemptLimiter.SlidingWindowCounter(1000);
+        for (int i = 0; i < 4; i++) {
+            counter.increment(5_000);
+        }
+        counter.increment(6_250);
+
+        assertThat(counter.estimate(6_250)).isCloseTo(4 * 0.75 + 1, within(0.001));
+        assertThat(counter.estimate(7_000)).isCloseTo(1, within(0.001));
+        assertThat(counter.estimate(8_000)).isZero();
+    }
+
+    @Test
+    public void increment_whenConcurrent_thenCountEveryFailure() throws InterruptedException {
+        AttemptLimiter.SlidingWindowCounter counter = new AttemptLimiter.SlidingWindowCounter(60_000);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    counter.increment(0);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(counter.estimate(0)).isEqualTo(4000);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class HmacKeyCacheTest {
+
+    private static final byte[] KEY = "12345678901234567890".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OTHER_KEY = "09876543210987654321".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MESSAGE = {0, 0, 0, 0, 0, 0, 0, 1};
+
+    private final HmacKeyCache cache = new HmacKeyCache();
+
+    @Test
+    public void newMac_whenCached_thenSameResultAsFreshMac() throws OathVerificationException {
+        byte[] expected = HmacKeyCache.newMac(HmacAlgorithm.SHA256, KEY).doFinal(MESSAGE);
+
+        Mac first = cache.newMac("device", HmacAlgorithm.SHA256, KEY);
+        Mac second = cache.newMac("device", HmacAlgorithm.SHA256, KEY);
+
+        assertThat(second).isNotSameAs(first);
+        assertThat(first.doFinal(MESSAGE)).isEqualTo(expected);
+        assertThat(second.doFinal(MESSAGE)).isEqualTo(expected);
+        assertThat(second.doFinal(MESSAGE)).isEqualTo(expected);
+    }
+
+    @Test
+    public void newMac_whenKeyChanged_thenNotReused() throws OathVerificationException {
+        cache.newMac("device", HmacAlgorithm.SHA1, KEY);
+
+        Mac mac = cache.newMac("device", HmacAlgorithm.SHA1, OTHER_KEY);
+
+        assertThat(mac.doFinal(MESSAGE))
+                .isEqualTo(HmacKeyCache.newMac(HmacAlgorithm.SHA1, OTHER_KEY).doFinal(MESSAGE));
+    }
+
+    @Test
+    public void newMac_whenAlgorithmDiffers_thenSeparateEntries() throws OathVerificationException {
+        Mac sha1 = cache.newMac("device", HmacAlgorithm.SHA1, KEY);
+        Mac sha512 = cache.newMac("device", HmacAlgorithm.SHA512, KEY);
+
+        assertThat(sha1.getAlgorithm()).isEqualTo("HmacSHA1");
+        assertThat(sha512.getAlgorithm()).isEqualTo("HmacSHA512");
+    }
+
+    @Test
+    public void newMac_whenEmptyKey_thenFail() {
+        assertThatThrownBy(() -> cache.newMac("device", HmacAlgorithm.SHA1, new byte[0]))
+                .isInstanceOf(OathVerificationException.class);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class HmacOtpEngineTest {
+
+    // RFC 4226 Appendix D
+    private static final byte[] RFC_SECRET = "12345678901234567890".getBytes(StandardCharsets.US_ASCII);
+    private static final int[] RFC_VALUES = {
+            755224, 287082, 359152, 969429, 338314, 254676, 287922, 162583, 399871, 520489
+    };
+
+    @Test
+    public void generate_whenRfcTestVectors_thenMatch() throws OathVerificationException {
+        HmacOtpEngine engine = new HmacOtpEngine(RFC_SECRET, 6);
+        for (int i = 0; i < RFC_VALUES.length; i++) {
+            assertThat(engine.generate(i)).isEqualTo(RFC_VALUES[i]);
+        }
+    }
+
+    // RFC 6238 Appendix B, T = 59s
+    @Test
+    public void generate_whenRfc6238TestVectors_thenMatch() throws OathVerificationException {
+        assertThat(engine(HmacAlgorithm.SHA1, "12345678901234567890").generate(1)).isEqualTo(94287082);
+        assertThat(engine(HmacAlgorithm.SHA256, "12345678901234567890123456789012").generate(1))
+                .isEqualTo(46119246);
+        assertThat(engine(HmacAlgorithm.SHA512,
+                "1234567890123456789012345678901234567890123456789012345678901234").generate(1))
+                .isEqualTo(90693936);
+    }
+
+    @Test
+    public void matches_whenLeadingZeros_thenParsedValueMatches() throws OathVerificationException {
+        HmacOtpEngine engine = new HmacOtpEngine(RFC_SECRET, 8);
+        assertThat(engine.parse("00287082")).isEqualTo(287082);
+        assertThat(engine.matches(1, engine.parse("94287082"))).isTrue();
+    }
+
+    @Test
+    public void scan_whenInWindow_thenReturnOffset() throws OathVerificationException {
+        HmacOtpEngine engine = new HmacOtpEngine(RFC_SECRET, 6);
+        assertThat(engine.scan(2, 10, RFC_VALUES[7])).isEqualTo(5);
+        assertThat(engine.scan(2, 4, RFC_VALUES[7])).isEqualTo(HmacOtpEngine.NO_MATCH);
+        assertThat(engine.scan(8, 10, RFC_VALUES[7])).isEqualTo(HmacOtpEngine.NO_MATCH);
+    }
+
+    @Test
+    public void generate_whenChecksum_thenAppendLuhnDigit() throws OathVerificationException {
+        HmacOtpEngine engine = new HmacOtpEngine(RFC_SECRET, 6, true, -1);
+        assertThat(engine.generate(0)).isEqualTo(7552243);
+        assertThat(engine.parse("7552243")).isEqualTo(7552243);
+        assertThat(engine.parse("755224")).isNegative();
+    }
+
+    @Test
+    public void parse_whenInvalidInput_thenNegative() throws OathVerificationException {
+        HmacOtpEngine engine = new HmacOtpEngine(RFC_SECRET, 6);
+        assertThat(engine.parse(null)).isNegative();
+        assertThat(engine.parse("foo")).isNegative();
+        assertThat(engine.parse("12345")).isNegative();
+        assertThat(engine.parse("12345a")).isNegative();
+    }
+
+    @Test
+    public void init_whenEmptySecret_thenFail() {
+        assertThatThrownBy(() -> new HmacOtpEngine(new byte[0], 6))
+                .isInstanceOf(OathVerificationException.class);
+    }
+
+    private static HmacOtpEngine engine(HmacAlgorithm algorithm, String secret) throws OathVerificationException {
+        byte[] key = secret.getBytes(StandardCharsets.US_ASCII);
+        return new HmacOtpEngine(HmacKeyCache.newMac(algorithm, key), 8, false, -1);
+    }
+}
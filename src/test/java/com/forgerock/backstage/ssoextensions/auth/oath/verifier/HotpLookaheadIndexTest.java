@@ -0,0 +1,84 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.HmacAlgorithm;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HotpLookaheadIndexTest {
+
+    // RFC 4226 Appendix D
+    private static final byte[] KEY = "12345678901234567890".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FINGERPRINT = HotpLookaheadIndex.fingerprint(HmacAlgorithm.SHA1, KEY, 6, false, -1);
+
+    private final HotpLookaheadIndex index = new HotpLookaheadIndex();
+
+    @Test
+    public void find_whenNotBuilt_thenNotIndexed() throws OathVerificationException {
+        HmacOtpEngine engine = new HmacOtpEngine(KEY, 6);
+
+        assertThat(index.find("device", FINGERPRINT, engine, 0, 5, 755224)).isEqualTo(HotpLookaheadIndex.NOT_INDEXED);
+        assertThat(index.find(null, FINGERPRINT, engine, 0, 5, 755224)).isEqualTo(HotpLookaheadIndex.NOT_INDEXED);
+    }
+
+    @Test
+    public void find_whenBuilt_thenOffsetWithinWindow() throws OathVerificationException {
+        HmacOtpEngine engine = new HmacOtpEngine(KEY, 6);
+        index.advance("device", FINGERPRINT, engine, 0, 5);
+
+        assertThat(index.find("device", FINGERPRINT, engine, 0, 5, 969429)).isEqualTo(3);
+        assertThat(index.find("device", FINGERPRINT, engine, 0, 5, 254676)).isEqualTo(5);
+        assertThat(index.find("device", FINGERPRINT, engine, 0, 5, 162583)).isEqualTo(HmacOtpEngine.NO_MATCH);
+    }
+
+    @Test
+    public void find_whenCounterMovedWithinWindow_thenIndexSlides() throws OathVerificationException {
+        HmacOtpEngine engine = new HmacOtpEngine(KEY, 6);
+        index.advance("device", FINGERPRINT, engine, 0, 5);
+
+        assertThat(index.find("device", FINGERPRINT, engine, 4, 5, 520489)).isEqualTo(5);
+        assertThat(index.find("device", FINGERPRINT, engine, 4, 5, 969429)).isEqualTo(HmacOtpEngine.NO_MATCH);
+    }
+
+    @Test
+    public void find_whenCounterOutsideIndex_thenNotIndexed() throws OathVerificationException {
+        HmacOtpEngine engine = new HmacOtpEngine(KEY, 6);
+        index.advance("device", FINGERPRINT, engine, 3, 5);
+
+        assertThat(index.find("device", FINGERPRINT, engine, 2, 5, 359152)).isEqualTo(HotpLookaheadIndex.NOT_INDEXED);
+        assertThat(index.find("device", FINGERPRINT, engine, 9, 5, 520489)).isEqualTo(HotpLookaheadIndex.NOT_INDEXED);
+    }
+
+    @Test
+    public void find_whenSecretChanged_thenNotIndexed() throws OathVerificationException {
+        HmacOtpEngine engine = new HmacOtpEngine(KEY, 6);
+        index.advance("device", FINGERPRINT, engine, 0, 5);
+        byte[] otherFingerprint = HotpLookaheadIndex.fingerprint(HmacAlgorithm.SHA1, new byte[]{1, 2, 3}, 6,
+                false, -1);
+
+        assertThat(index.find("device", otherFingerprint, engine, 0, 5, 755224))
+                .isEqualTo(HotpLookaheadIndex.NOT_INDEXED);
+        assertThat(index.find("device", FINGERPRINT, engine, 0, 6, 755224)).isEqualTo(HotpLookaheadIndex.NOT_INDEXED);
+    }
+}
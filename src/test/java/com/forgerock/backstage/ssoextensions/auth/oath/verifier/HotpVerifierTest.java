@@ -62,6 +62,26 @@ public class HotpVerifierTest {
     public void verify_incrementCounter() throws OathVerificationException {
         int counter = settings.getCounter();
         hotpVerifier.verify("853971");
-        assertThat(settings.getCounter()).isEqualTo(counter + 1);
+        assertThat(settings.getCounter()).isEqualTo(counter + 2);
+    }
+
+    @Test
+    public void verify_whenReplayed_thenFail() throws OathVerificationException {
+        hotpVerifier.verify("853971");
+        assertThatThrownBy(() -> hotpVerifier.verify("853971"))
+                .isInstanceOf(OathVerificationException.class);
+    }
+
+    @Test
+    public void verify_whenIndexed_thenValidAndNotReplayable() throws OathVerificationException {
+        settings.setUUID("device");
+        HotpLookaheadIndex index = new HotpLookaheadIndex();
+        new HotpVerifier(config, settings, index).verify("564491");
+
+        HotpVerifier indexed = new HotpVerifier(config, settings, index);
+        indexed.verify("853971");
+        assertThat(settings.getCounter()).isEqualTo(2);
+        assertThatThrownBy(() -> indexed.verify("853971"))
+                .isInstanceOf(OathVerificationException.class);
     }
 }
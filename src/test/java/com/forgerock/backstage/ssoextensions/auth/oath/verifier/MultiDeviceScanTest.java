@@ -0,0 +1,121 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MultiDeviceScanTest {
+
+    private final OathVerifierNode.Config config = new OathVerifierNode.Config() {
+        @Override
+        public int minSharedSecretLength() {
+            return 1;
+        }
+    };
+
+    @Test
+    public void verify_whenSecondDeviceMatches_thenUpdateOnlyThatDevice() throws OathVerificationException {
+        OathDeviceSettings first = device("1234", 0);
+        OathDeviceSettings second = device("abcd", 0);
+
+        AbstractOathVerifier matched = MultiDeviceScan.verify(verifiers(first, second), "853971");
+
+        assertThat(matched.settings).isSameAs(second);
+        assertThat(matched.getMatchedOffset()).isEqualTo(1);
+        assertThat(second.getCounter()).isEqualTo(2);
+        assertThat(first.getCounter()).isEqualTo(0);
+    }
+
+    @Test
+    public void verify_whenSeveralDevicesMatch_thenMostLikelyCandidateWins() throws OathVerificationException {
+        OathDeviceSettings behind = device("abcd", 0);
+        OathDeviceSettings current = device("abcd", 1);
+
+        AbstractOathVerifier matched = MultiDeviceScan.verify(verifiers(behind, current), "853971");
+
+        assertThat(matched.settings).isSameAs(current);
+        assertThat(matched.getMatchedOffset()).isEqualTo(0);
+        assertThat(behind.getCounter()).isEqualTo(0);
+    }
+
+    @Test
+    public void verify_whenOneDeviceInvalid_thenCheckOthers() throws OathVerificationException {
+        OathDeviceSettings invalid = device("", 0);
+        OathDeviceSettings valid = device("abcd", 0);
+
+        AbstractOathVerifier matched = MultiDeviceScan.verify(verifiers(invalid, valid), "564491");
+
+        assertThat(matched.settings).isSameAs(valid);
+    }
+
+    @Test
+    public void verify_whenAllDevicesInvalid_thenReportFirstError() {
+        assertThatThrownBy(() -> MultiDeviceScan.verify(verifiers(device("", 0), device("abcd", 0)), "foo"))
+                .isInstanceOf(OathVerificationException.class)
+                .hasFieldOrPropertyWithValue("reason", FailureReason.INVALID_DEVICE);
+    }
+
+    @Test
+    public void verify_whenNoDeviceMatches_thenNoMatch() {
+        assertThatThrownBy(() -> MultiDeviceScan.verify(verifiers(device("1234", 0), device("abcd", 0)), "000000"))
+                .isInstanceOf(OathVerificationException.class)
+                .hasFieldOrPropertyWithValue("reason", FailureReason.NO_MATCH);
+    }
+
+    @Test
+    public void verify_whenSecondDeviceMatches_thenCountStepsCheckedOnEachDevice() throws OathVerificationException {
+        ImmutableList<HotpVerifier> verifiers = verifiers(device("1234", 0), device("abcd", 0));
+
+        MultiDeviceScan.verify(verifiers, "853971");
+
+        assertThat(verifiers.get(0).getCheckedSteps()).isEqualTo(2);
+        assertThat(verifiers.get(1).getCheckedSteps()).isEqualTo(2);
+    }
+
+    @Test
+    public void verify_whenNoDeviceMatches_thenCountWholeWindowOnEachDevice() {
+        ImmutableList<HotpVerifier> verifiers = verifiers(device("1234", 0), device("abcd", 0));
+
+        assertThatThrownBy(() -> MultiDeviceScan.verify(verifiers, "000000"))
+                .isInstanceOf(OathVerificationException.class);
+        assertThat(verifiers.get(0).getCheckedSteps()).isEqualTo(config.hotpWindowSize() + 1);
+        assertThat(verifiers.get(1).getCheckedSteps()).isEqualTo(config.hotpWindowSize() + 1);
+    }
+
+    private ImmutableList<HotpVerifier> verifiers(OathDeviceSettings... devices) {
+        ImmutableList.Builder<HotpVerifier> verifiers = ImmutableList.builder();
+        for (OathDeviceSettings device : devices) {
+            verifiers.add(new HotpVerifier(config, device));
+        }
+        return verifiers.build();
+    }
+
+    private static OathDeviceSettings device(String sharedSecret, int counter) {
+        OathDeviceSettings device = new OathDeviceSettings();
+        device.setSharedSecret(sharedSecret);
+        device.setCounter(counter);
+        return device;
+    }
+}
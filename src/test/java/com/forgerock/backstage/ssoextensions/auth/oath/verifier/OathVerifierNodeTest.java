@@ -19,8 +19,17 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileConflictException;
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileVersion;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.RegistrationEnvelope;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.AuditLogReader;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.AuditLogs;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.AuditRecord;
+import com.forgerock.backstage.ssoextensions.auth.oath.metrics.OathMetrics;
+import com.forgerock.backstage.ssoextensions.auth.oath.replay.ReplayStoreType;
+import com.forgerock.backstage.ssoextensions.auth.oath.replay.ReplayStores;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import org.forgerock.json.JsonValue;
@@ -30,25 +39,43 @@ import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
 import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.util.thread.listener.ShutdownManager;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import javax.security.auth.callback.ConfirmationCallback;
 import javax.security.auth.callback.NameCallback;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 
 import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_DEVICE_PROFILE_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_LOADED_DEVICE_PROFILE_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_REGISTRATION_KEY;
 import static com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNode.RECOVERY_PRESSED;
 import static java.util.Collections.emptyMap;
+import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_DEVICE_NAME;
+import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_KEY;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class OathVerifierNodeTest {
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     private final OathVerifierNode.Config config = new OathVerifierNode.Config() {
         @Override
         public OathAlgorithm algorithm() {
@@ -61,7 +88,10 @@ public class OathVerifierNodeTest {
         }
     };
     private final OathHelper helper = mock(OathHelper.class);
-    private final OathVerifierNode verifierNode = new OathVerifierNode(config, helper);
+    private final OathMetrics metrics = mock(OathMetrics.class);
+    private final OathVerifierNode verifierNode = new OathVerifierNode(config, helper, metrics,
+            new TotpDriftHistory(), new HotpLookaheadIndex(), new AttemptLimiter(), new HmacKeyCache(),
+            new ReplayStores(mock(ShutdownManager.class)), new AuditLogs(mock(ShutdownManager.class)));
     private final ConfirmationCallback confirmationCallback = mock(ConfirmationCallback.class);
     private final NameCallback nameCallback = mock(NameCallback.class);
     private final JsonValue emptySharedState = new JsonValue(new HashMap<>());
@@ -85,7 +115,7 @@ public class OathVerifierNodeTest {
     public void process_whenRecoveryPressed_thenRecoveryCode() throws NodeProcessException, DevicePersistenceException {
 
         when(confirmationCallback.getSelectedIndex()).thenReturn(RECOVERY_PRESSED);
-        when(helper.getOathDeviceSettings(any())).thenReturn(new OathDeviceSettings());
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(new OathDeviceSettings()));
 
         TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback));
 
@@ -97,7 +127,7 @@ public class OathVerifierNodeTest {
     public void process_whenInitialSetup_thenReturnCallbacks() throws DevicePersistenceException, NodeProcessException {
 
         when(confirmationCallback.getSelectedIndex()).thenReturn(0);
-        when(helper.getOathDeviceSettings(any())).thenReturn(new OathDeviceSettings());
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(new OathDeviceSettings()));
 
         TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback));
 
@@ -111,13 +141,15 @@ public class OathVerifierNodeTest {
     public void process_whenValidOtpProvidedFromContext_thenSuccess() throws DevicePersistenceException, NodeProcessException {
 
         when(confirmationCallback.getSelectedIndex()).thenReturn(0);
-        when(helper.getOathDeviceSettings(any())).thenReturn(deviceSettings);
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(deviceSettings));
         when(nameCallback.getName()).thenReturn("564491");
 
         TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
 
         Action action = verifierNode.process(context);
         assertThat(action.outcome).isEqualTo("SUCCESS");
+        verify(metrics).outcome("SUCCESS");
+        verify(metrics).windowOffset(0);
     }
 
     @Test
@@ -125,7 +157,7 @@ public class OathVerifierNodeTest {
 
         when(confirmationCallback.getSelectedIndex()).thenReturn(0);
         when(nameCallback.getName()).thenReturn("564491");
-        when(helper.decryptOathDeviceSettings(anyString())).thenReturn(deviceSettings);
+        when(helper.decryptOathDevices(anyString())).thenReturn(ImmutableList.of(deviceSettings));
         JsonValue sharedState = new JsonValue(ImmutableMap.of(OATH_DEVICE_PROFILE_KEY, ""));
         TreeContext context = new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
 
@@ -133,11 +165,220 @@ public class OathVerifierNodeTest {
         assertThat(action.outcome).isEqualTo("SUCCESS");
     }
 
+    @Test
+    public void process_whenRegistrationInSharedState_thenSuccessAndShowRecoveryCodes() throws Exception {
+
+        deviceSettings.setDeviceName("device");
+        RegistrationEnvelope registration = RegistrationEnvelope.decode(
+                RegistrationEnvelope.encode(deviceSettings, ImmutableList.of("abcDEF1234")));
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("564491");
+        when(helper.decryptRegistration("registration")).thenReturn(registration);
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of(OATH_REGISTRATION_KEY, "registration")));
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("SUCCESS");
+        assertThat(action.sharedState.isDefined(OATH_REGISTRATION_KEY)).isFalse();
+        assertThat(action.transientState.get(RECOVERY_CODE_KEY).asList()).containsExactly("abcDEF1234");
+        assertThat(action.transientState.get(RECOVERY_CODE_DEVICE_NAME).asString()).isEqualTo("device");
+        verify(helper, times(1)).decryptRegistration(anyString());
+        verify(helper, never()).getOathDevices(any(), anyInt());
+    }
+
+    @Test
+    public void process_whenPromptRoundLoadsFromStore_thenCarryEncryptedProfile() throws NodeProcessException, IOException {
+
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(deviceSettings));
+        when(helper.encryptOathDevices(ImmutableList.of(deviceSettings))).thenReturn("carried_profile");
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of());
+
+        Action action = verifierNode.process(context);
+        assertThat(action.callbacks).hasSize(2);
+        assertThat(action.sharedState.get(OATH_LOADED_DEVICE_PROFILE_KEY).asString()).isEqualTo("carried_profile");
+    }
+
+    @Test
+    public void process_whenProfileCarriedFromPromptRound_thenSkipStore() throws NodeProcessException, IOException {
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("564491");
+        when(helper.decryptOathDevices("carried_profile")).thenReturn(ImmutableList.of(deviceSettings));
+        JsonValue sharedState = new JsonValue(ImmutableMap.of(OATH_LOADED_DEVICE_PROFILE_KEY, "carried_profile"));
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("SUCCESS");
+        assertThat(action.sharedState.isDefined(OATH_LOADED_DEVICE_PROFILE_KEY)).isFalse();
+        verify(helper, times(1)).decryptOathDevices(anyString());
+        verify(helper, never()).getOathDevices(any(), anyInt());
+    }
+
+    @Test
+    public void process_whenSecondDeviceMatches_thenSaveOnlyThatDevice() throws Exception {
+
+        OathDeviceSettings otherDevice = new OathDeviceSettings();
+        otherDevice.setSharedSecret("1234");
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(otherDevice, deviceSettings));
+        when(nameCallback.getName()).thenReturn("564491");
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("SUCCESS");
+        assertThat(deviceSettings.getCounter()).isEqualTo(1);
+        assertThat(otherDevice.getCounter()).isEqualTo(0);
+        verify(helper).saveOathDeviceSettings(any(), any(DeviceProfileVersion.class), eq(deviceSettings), anyBoolean());
+        verify(helper, times(1)).saveOathDeviceSettings(any(), any(DeviceProfileVersion.class), any(), anyBoolean());
+    }
+
+    @Test
+    public void process_whenOtpConsumedConcurrently_thenFail() throws Exception {
+
+        OathDeviceSettings current = new OathDeviceSettings();
+        current.setSharedSecret("abcd");
+        current.setCounter(1);
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(deviceSettings));
+        when(nameCallback.getName()).thenReturn("564491");
+        doThrow(new DeviceProfileConflictException("conflict", current))
+                .when(helper).saveOathDeviceSettings(any(), any(DeviceProfileVersion.class), any(), anyBoolean());
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("FAILURE");
+        verify(metrics).failure("NO_MATCH");
+        verify(helper, times(1)).saveOathDeviceSettings(any(), any(DeviceProfileVersion.class), any(), anyBoolean());
+    }
+
+    @Test
+    public void process_whenOtpReplayedAgainstStaleProfile_thenRejectedByReplayStore() throws Exception {
+
+        OathVerifierNode.Config replayConfig = new OathVerifierNode.Config() {
+            @Override
+            public OathAlgorithm algorithm() {
+                return OathAlgorithm.HOTP;
+            }
+
+            @Override
+            public int minSharedSecretLength() {
+                return 1;
+            }
+
+            @Override
+            public ReplayStoreType replayStore() {
+                return ReplayStoreType.IN_PROCESS;
+            }
+        };
+        OathVerifierNode replayNode = new OathVerifierNode(replayConfig, helper, metrics, new TotpDriftHistory(),
+                new HotpLookaheadIndex(), new AttemptLimiter(), new HmacKeyCache(),
+                new ReplayStores(mock(ShutdownManager.class)), new AuditLogs(mock(ShutdownManager.class)));
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        // every login reads the profile as it was before the first one saved its counter
+        when(helper.getOathDevices(any(), anyInt())).thenAnswer(invocation -> ImmutableList.of(staleProfile()));
+        when(nameCallback.getName()).thenReturn("564491");
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of("username", "bob", "realm", "/")));
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        assertThat(replayNode.process(context).outcome).isEqualTo("SUCCESS");
+        assertThat(replayNode.process(context).outcome).isEqualTo("FAILURE");
+        verify(metrics).failure("REPLAY");
+        verify(helper, times(1)).saveOathDeviceSettings(any(), any(DeviceProfileVersion.class), any(), anyBoolean());
+    }
+
+    @Test
+    public void process_whenSaveFailed_thenOtpNotRecordedAsUsed() throws Exception {
+
+        OathVerifierNode.Config replayConfig = new OathVerifierNode.Config() {
+            @Override
+            public OathAlgorithm algorithm() {
+                return OathAlgorithm.HOTP;
+            }
+
+            @Override
+            public int minSharedSecretLength() {
+                return 1;
+            }
+
+            @Override
+            public ReplayStoreType replayStore() {
+                return ReplayStoreType.IN_PROCESS;
+            }
+        };
+        OathVerifierNode replayNode = new OathVerifierNode(replayConfig, helper, metrics, new TotpDriftHistory(),
+                new HotpLookaheadIndex(), new AttemptLimiter(), new HmacKeyCache(),
+                new ReplayStores(mock(ShutdownManager.class)), new AuditLogs(mock(ShutdownManager.class)));
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(helper.getOathDevices(any(), anyInt())).thenAnswer(invocation -> ImmutableList.of(staleProfile()));
+        when(nameCallback.getName()).thenReturn("564491");
+        doThrow(new DevicePersistenceException("unavailable")).doNothing()
+                .when(helper).saveOathDeviceSettings(any(), any(DeviceProfileVersion.class), any(), anyBoolean());
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of("username", "bob", "realm", "/")));
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        assertThat(replayNode.process(context).outcome).isEqualTo("FAILURE");
+        assertThat(replayNode.process(context).outcome).isEqualTo("SUCCESS");
+    }
+
+    private static OathDeviceSettings staleProfile() {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret("abcd");
+        settings.setUUID("device");
+        return settings;
+    }
+
+    @Test
+    public void process_whenAuditLogConfigured_thenDecisionsRecorded() throws Exception {
+
+        String auditLogDirectory = folder.getRoot().getPath();
+        AuditLogs auditLogs = new AuditLogs(mock(ShutdownManager.class));
+        OathVerifierNode auditedNode = auditedNode(auditLogs, auditLogDirectory);
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(deviceSettings));
+        when(nameCallback.getName()).thenReturn("564491");
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of("username", "bob", "realm", "/")));
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        auditedNode.process(context);
+        auditedNode.process(context);
+        auditLogs.get(auditLogDirectory, 1).close();
+
+        List<AuditRecord> records = AuditLogReader.read(folder.getRoot().toPath());
+        assertThat(records).extracting(AuditRecord::getOutcome)
+                .containsExactly(OathVerifierNodeOutcomeProvider.OATHOutcome.SUCCESS,
+                        OathVerifierNodeOutcomeProvider.OATHOutcome.FAILURE);
+        assertThat(records.get(1).getFailureReason()).isEqualTo(FailureReason.NO_MATCH);
+        assertThat(records).extracting(AuditRecord::getUserHash).containsOnly(AuditRecord.userHash("/", "bob"));
+    }
+
+    @Test
+    public void process_whenNotRegisteredOrRecovery_thenDecisionsRecorded() throws Exception {
+
+        String auditLogDirectory = folder.getRoot().getPath();
+        AuditLogs auditLogs = new AuditLogs(mock(ShutdownManager.class));
+        OathVerifierNode auditedNode = auditedNode(auditLogs, auditLogDirectory);
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of("username", "bob", "realm", "/")));
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of());
+
+        auditedNode.process(new TreeContext(sharedState, request, ImmutableList.of()));
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(deviceSettings));
+        when(confirmationCallback.getSelectedIndex()).thenReturn(RECOVERY_PRESSED);
+        auditedNode.process(new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback)));
+        auditLogs.get(auditLogDirectory, 1).close();
+
+        assertThat(AuditLogReader.read(folder.getRoot().toPath())).extracting(AuditRecord::getOutcome)
+                .containsExactly(OathVerifierNodeOutcomeProvider.OATHOutcome.NOT_REGISTERED,
+                        OathVerifierNodeOutcomeProvider.OATHOutcome.RECOVERY_CODE);
+    }
+
     @Test
     public void process_whenInvalidOtpProvided_thenFail() throws DevicePersistenceException, NodeProcessException {
 
         when(confirmationCallback.getSelectedIndex()).thenReturn(0);
-        when(helper.getOathDeviceSettings(any())).thenReturn(deviceSettings);
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(deviceSettings));
         when(nameCallback.getName()).thenReturn("invalid_otp");
 
         TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
@@ -146,5 +387,58 @@ public class OathVerifierNodeTest {
         assertThat(action.outcome).isEqualTo("FAILURE");
     }
 
+    @Test
+    public void process_whenUserAttemptLimitReached_thenThrottledBeforeLoadingProfile() throws Exception {
+
+        OathVerifierNode.Config limitedConfig = new OathVerifierNode.Config() {
+            @Override
+            public OathAlgorithm algorithm() {
+                return OathAlgorithm.HOTP;
+            }
+
+            @Override
+            public int minSharedSecretLength() {
+                return 1;
+            }
+
+            @Override
+            public int maxFailedAttemptsPerUser() {
+                return 2;
+            }
+        };
+        OathVerifierNode limitedNode = new OathVerifierNode(limitedConfig, helper, metrics, new TotpDriftHistory(),
+                new HotpLookaheadIndex(), new AttemptLimiter(), new HmacKeyCache(),
+                new ReplayStores(mock(ShutdownManager.class)), new AuditLogs(mock(ShutdownManager.class)));
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(helper.getOathDevices(any(), anyInt())).thenReturn(ImmutableList.of(deviceSettings));
+        when(nameCallback.getName()).thenReturn("000000");
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of("username", "bob", "realm", "/")));
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        assertThat(limitedNode.process(context).outcome).isEqualTo("FAILURE");
+        assertThat(limitedNode.process(context).outcome).isEqualTo("FAILURE");
+        assertThat(limitedNode.process(context).outcome).isEqualTo("THROTTLED");
+        verify(helper, times(2)).getOathDevices(any(), anyInt());
+    }
+
+    private OathVerifierNode auditedNode(AuditLogs auditLogs, String auditLogDirectory) {
+        OathVerifierNode.Config auditConfig = new OathVerifierNode.Config() {
+            @Override
+            public OathAlgorithm algorithm() {
+                return OathAlgorithm.HOTP;
+            }
+
+            @Override
+            public int minSharedSecretLength() {
+                return 1;
+            }
 
+            @Override
+            public String auditLogDirectory() {
+                return auditLogDirectory;
+            }
+        };
+        return new OathVerifierNode(auditConfig, helper, metrics, new TotpDriftHistory(), new HotpLookaheadIndex(),
+                new AttemptLimiter(), new HmacKeyCache(), new ReplayStores(mock(ShutdownManager.class)), auditLogs);
+    }
 }
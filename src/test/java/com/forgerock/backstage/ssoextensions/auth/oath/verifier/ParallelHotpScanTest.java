@@ -0,0 +1,89 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParallelHotpScanTest {
+
+    private static final byte[] KEY = "12345678901234567890".getBytes(StandardCharsets.US_ASCII);
+    private static final int WINDOW = 5000;
+
+    @Test
+    public void scan_findsSameOffsetAsSequentialScan() throws OathVerificationException {
+        HmacOtpEngine sequential = new HmacOtpEngine(KEY, 6);
+        for (int counter : new int[]{0, 127, 128, 3001, WINDOW}) {
+            int otp = sequential.generate(1000 + counter);
+
+            assertThat(ParallelHotpScan.scan(engines(4), 1000, WINDOW, otp))
+                    .isEqualTo(sequential.scan(1000, WINDOW, otp));
+        }
+    }
+
+    @Test
+    public void scan_whenNoMatch_thenNoMatch() throws OathVerificationException {
+        HmacOtpEngine sequential = new HmacOtpEngine(KEY, 6);
+        int otp = sequential.generate(WINDOW + 1);
+        // make sure the OTP does not also occur inside the window
+        if (sequential.scan(0, WINDOW, otp) == HmacOtpEngine.NO_MATCH) {
+            assertThat(ParallelHotpScan.scan(engines(4), 0, WINDOW, otp)).isEqualTo(HmacOtpEngine.NO_MATCH);
+        }
+    }
+
+    @Test
+    public void scan_whenSingleEngine_thenRunsOnCaller() throws OathVerificationException {
+        HmacOtpEngine sequential = new HmacOtpEngine(KEY, 6);
+
+        assertThat(ParallelHotpScan.scan(engines(1), 0, WINDOW, sequential.generate(2500))).isEqualTo(
+                sequential.scan(0, WINDOW, sequential.generate(2500)));
+    }
+
+    @Test(timeout = 10000)
+    public void scan_whenPoolBusy_thenDoNotWaitForQueuedWorkers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < ParallelHotpScan.POOL.getParallelism(); i++) {
+            ParallelHotpScan.POOL.execute(() -> awaitUninterruptibly(release));
+        }
+        try {
+            HmacOtpEngine sequential = new HmacOtpEngine(KEY, 6);
+            int otp = sequential.generate(3001);
+
+            assertThat(ParallelHotpScan.scan(engines(4), 0, WINDOW, otp)).isEqualTo(sequential.scan(0, WINDOW, otp));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static List<HmacOtpEngine> engines(int count) throws OathVerificationException {
+        List<HmacOtpEngine> engines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            engines.add(new HmacOtpEngine(KEY, 6));
+        }
+        return engines;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TotpDriftHistoryTest {
+
+    private final TotpDriftHistory history = new TotpDriftHistory();
+
+    @Test
+    public void estimate_whenNoHistory_thenConfiguredWindow() {
+        history.record("device", 0);
+
+        assertThat(history.estimate("device", 2).offsets(2)).containsExactly(0, 1, -1, 2, -2);
+        assertThat(history.estimate(null, 2).offsets(2)).containsExactly(0, 1, -1, 2, -2);
+    }
+
+    @Test
+    public void estimate_whenStableDevice_thenNarrowWindowFirst() {
+        for (int i = 0; i < TotpDriftHistory.MIN_SAMPLES; i++) {
+            history.record("device", 3);
+        }
+
+        assertThat(history.estimate("device", 5).offsets(5))
+                .containsExactly(3, 4, 2, 0, 1, -1, -2, -3, -4, 5, -5);
+    }
+
+    @Test
+    public void estimate_whenDeviceRunsAhead_thenLaterStepFirst() {
+        history.record("device", 1);
+        history.record("device", 1);
+        history.record("device", 1);
+        history.record("device", 0);
+
+        assertThat(history.estimate("device", 2).offsets(2)).containsExactly(1, 0, 2, -1, -2);
+    }
+
+    @Test
+    public void estimate_neverExceedsConfiguredWindow() {
+        for (int i = 0; i < TotpDriftHistory.MAX_SAMPLES; i++) {
+            history.record("device", i % 2 == 0 ? 3 : -3);
+        }
+
+        assertThat(history.estimate("device", 2).offsets(2)).containsExactlyInAnyOrder(0, 1, -1, 2, -2);
+    }
+}
@@ -78,6 +78,16 @@ public class TotpVerifierTest {
         assertThat(settings.getLastLogin()).isEqualTo(now.plusSeconds(5).toEpochSecond());
     }
 
+    @Test
+    public void verify_whenFutureStepReplayed_thenFail() {
+        // The last login already used the next time step
+        settings.setLastLogin(now.plusSeconds(5).toEpochSecond(), TimeUnit.SECONDS);
+
+        assertThatThrownBy(() -> verifier.verify("394482"))
+                .isInstanceOf(OathVerificationException.class)
+                .hasMessageStartingWith("Login failed attempting to reuse the OTP of Time Step: ");
+    }
+
     @Test
     public void verify_whenInvalidOtp_thenFail() {
         settings.setLastLogin(now.minusSeconds(31).toEpochSecond(), TimeUnit.SECONDS);
@@ -85,4 +95,24 @@ public class TotpVerifierTest {
                 .isInstanceOf(OathVerificationException.class);
 
     }
+
+    @Test
+    public void verify_whenAdaptiveWindowCentredOnDrift_thenSucceed() throws OathVerificationException {
+        settings.setLastLogin(now.minusSeconds(31).toEpochSecond(), TimeUnit.SECONDS);
+        TotpVerifier adaptive = new TotpVerifier(config, settings, now.toEpochSecond(), new TotpSearchWindow(1, 0, false));
+
+        adaptive.verify("394482");
+        assertThat(adaptive.getMatchedOffset()).isEqualTo(1);
+        assertThat(settings.getClockDriftSeconds()).isEqualTo(30);
+    }
+
+    @Test
+    public void verify_whenOutsideAdaptiveWindow_thenCheckRestOfWindow() throws OathVerificationException {
+        settings.setLastLogin(now.minusSeconds(31).toEpochSecond(), TimeUnit.SECONDS);
+        TotpVerifier adaptive = new TotpVerifier(config, settings, now.toEpochSecond(), new TotpSearchWindow(0, 0, false));
+
+        adaptive.verify("394482");
+        assertThat(adaptive.getMatchedOffset()).isEqualTo(1);
+        assertThat(adaptive.getCheckedSteps()).isEqualTo(2);
+    }
 }